@@ -0,0 +1,90 @@
+package org.smartsoftware.smartmap;
+
+import org.openjdk.jmh.annotations.*;
+import org.smartsoftware.smartmap.domain.communication.CommunicationChain;
+import org.smartsoftware.smartmap.domain.communication.request.GetRequest;
+import org.smartsoftware.smartmap.domain.communication.request.PutRequest;
+import org.smartsoftware.smartmap.domain.data.ByteArrayValue;
+import org.smartsoftware.smartmap.domain.data.StringKey;
+import org.smartsoftware.smartmap.request.manager.BenchmarkStorage;
+import org.smartsoftware.smartmap.request.manager.HashBasedRequestManager;
+
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The bytes allocated by a put and a get of a small value, through the request chain every call used to build
+ * and through the lean path the SmartMap takes now. It is meant to be run with the GC profiler, the bytes per
+ * operation are its 'gc.alloc.rate.norm':
+ *
+ *     java -jar target/benchmarks.jar SmartMapAllocationBenchmark -prof gc
+ *
+ * The keys are built up front, so their strings are not counted.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SmartMapAllocationBenchmark {
+
+    public static final String REQUEST_CHAIN = "requestChain";
+    public static final String LEAN = "lean";
+
+    private static final int KEY_CARDINALITY = 1000;
+
+    @Param({REQUEST_CHAIN, LEAN})
+    public String path;
+
+    @Param({BenchmarkStorage.SQLITE_REGISTER, BenchmarkStorage.LOG_REGISTER})
+    public String register;
+
+    @Param({"100"})
+    public int valueSize;
+
+    private BenchmarkStorage storage;
+    private HashBasedRequestManager requestManager;
+    private SmartMap smartMap;
+    private byte[] value;
+    private String[] keys;
+
+    @Setup(Level.Trial)
+    public void setUp() throws ReflectiveOperationException {
+        storage = new BenchmarkStorage(1, register);
+        requestManager = storage.startRequestManager(false);
+        smartMap = SmartMapBenchmark.newSmartMap(requestManager);
+        value = new byte[valueSize];
+
+        keys = new String[KEY_CARDINALITY];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = BenchmarkStorage.keyOf(i);
+            smartMap.put(keys[i], value);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        storage.close();
+    }
+
+    @Benchmark
+    public Object put() {
+        String key = keys[ThreadLocalRandom.current().nextInt(keys.length)];
+        if (LEAN.equals(path)) {
+            smartMap.put(key, value);
+            return null;
+        }
+        return requestManager.onRequest(new CommunicationChain(new PutRequest(new StringKey(key), new ByteArrayValue(value))));
+    }
+
+    @Benchmark
+    public Object get() {
+        String key = keys[ThreadLocalRandom.current().nextInt(keys.length)];
+        if (LEAN.equals(path)) {
+            return smartMap.get(key);
+        }
+        return requestManager.onRequest(new CommunicationChain(new GetRequest(new StringKey(key))));
+    }
+}
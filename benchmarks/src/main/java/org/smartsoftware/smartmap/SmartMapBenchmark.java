@@ -0,0 +1,86 @@
+package org.smartsoftware.smartmap;
+
+import org.openjdk.jmh.annotations.*;
+import org.smartsoftware.smartmap.request.manager.BenchmarkStorage;
+import org.smartsoftware.smartmap.request.manager.HashBasedRequestManager;
+
+import java.lang.reflect.Field;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SmartMapBenchmark {
+
+    @Param({"100", "10240", "1048576", "10485760"})
+    public int valueSize;
+
+    @Param({"1", "4"})
+    public int shardCount;
+
+    @Param({"1000", "100000"})
+    public int keyCardinality;
+
+    @Param({"true", "false"})
+    public boolean isGcRunning;
+
+    private BenchmarkStorage storage;
+    private SmartMap smartMap;
+    private byte[] value;
+    private int preloadedKeys;
+
+    @Setup(Level.Trial)
+    public void setUp() throws ReflectiveOperationException {
+        storage = new BenchmarkStorage(shardCount);
+        smartMap = newSmartMap(storage.startRequestManager(isGcRunning));
+        value = new byte[valueSize];
+
+        preloadedKeys = BenchmarkStorage.preloadedKeys(keyCardinality, valueSize);
+        for (int i = 0; i < preloadedKeys; i++) {
+            smartMap.put(BenchmarkStorage.keyOf(i), value);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        storage.close();
+    }
+
+    @Benchmark
+    public void put() {
+        smartMap.put(BenchmarkStorage.keyOf(ThreadLocalRandom.current().nextInt(keyCardinality)), value);
+    }
+
+    @Benchmark
+    public byte[] get() {
+        return smartMap.get(BenchmarkStorage.keyOf(ThreadLocalRandom.current().nextInt(preloadedKeys)));
+    }
+
+    @Benchmark
+    public void putAndRemove() {
+        // a key out of the preloaded range, so the reads keep hitting
+        String key = BenchmarkStorage.keyOf(keyCardinality + ThreadLocalRandom.current().nextInt(keyCardinality));
+        smartMap.put(key, value);
+        smartMap.remove(key);
+    }
+
+    @Benchmark
+    public Collection<String> listKeys() {
+        return smartMap.listKeys();
+    }
+
+    static SmartMap newSmartMap(HashBasedRequestManager requestManager) throws ReflectiveOperationException {
+        // the request manager is injected by Spring otherwise
+        SmartMap smartMap = new SmartMap();
+        Field requestManagerField = SmartMap.class.getDeclaredField("requestManager");
+        requestManagerField.setAccessible(true);
+        requestManagerField.set(smartMap, requestManager);
+        return smartMap;
+    }
+}
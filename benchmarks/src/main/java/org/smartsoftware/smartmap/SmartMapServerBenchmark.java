@@ -0,0 +1,96 @@
+package org.smartsoftware.smartmap;
+
+import org.openjdk.jmh.annotations.*;
+import org.smartsoftware.smartmap.client.SmartMapClient;
+import org.smartsoftware.smartmap.request.manager.BenchmarkStorage;
+import org.smartsoftware.smartmap.server.SmartMapServer;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The SmartMap served over a local TCP connection, every JMH thread is a client of its own. The pipelined gets
+ * send a batch of gets on a connection and wait for all of the replies at once, their throughput is counted
+ * in gets, not in batches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SmartMapServerBenchmark {
+
+    private static final int KEY_CARDINALITY = 10_000;
+    private static final int PIPELINE_SIZE = 64;
+
+    @Param({"100", "10240"})
+    public int valueSize;
+
+    @Param({"16"})
+    public int workerThreads;
+
+    private BenchmarkStorage storage;
+    private SmartMapServer server;
+    private byte[] value;
+
+    @Setup(Level.Trial)
+    public void setUp() throws ReflectiveOperationException, IOException {
+        storage = new BenchmarkStorage(4);
+        SmartMap smartMap = SmartMapBenchmark.newSmartMap(storage.startRequestManager(false));
+        value = new byte[valueSize];
+        for (int i = 0; i < KEY_CARDINALITY; i++) {
+            smartMap.put(BenchmarkStorage.keyOf(i), value);
+        }
+
+        server = new SmartMapServer(smartMap);
+        server.setHost("127.0.0.1");
+        server.setPort(0);
+        server.setWorkerThreads(workerThreads);
+        server.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        server.close();
+        storage.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        private SmartMapClient client;
+
+        @Setup(Level.Trial)
+        public void setUp(SmartMapServerBenchmark benchmark) {
+            client = new SmartMapClient("127.0.0.1", benchmark.server.getPort(), 1);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            client.close();
+        }
+    }
+
+    @Benchmark
+    public byte[] get(Client client) {
+        return client.client.get(BenchmarkStorage.keyOf(ThreadLocalRandom.current().nextInt(KEY_CARDINALITY)));
+    }
+
+    @Benchmark
+    public void put(Client client) {
+        client.client.put(BenchmarkStorage.keyOf(ThreadLocalRandom.current().nextInt(KEY_CARDINALITY)), value);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE_SIZE)
+    public void pipelinedGet(Client client) {
+        SmartMapClient.Pipeline pipeline = client.client.pipeline();
+        for (int i = 0; i < PIPELINE_SIZE; i++) {
+            pipeline.get(BenchmarkStorage.keyOf(ThreadLocalRandom.current().nextInt(KEY_CARDINALITY)));
+        }
+        pipeline.sync();
+    }
+}
@@ -0,0 +1,50 @@
+package org.smartsoftware.smartmap.benchmark;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs the benchmarks for every thread count of the 'smartmap.benchmark.threads' property (1, 4 and 16 unless
+ * the JMH '-t' option is given) and writes all the results into a single JSON file, 'jmh-result.json' unless
+ * the JMH '-rff' option is given, so the files of two commits could be compared.
+ */
+public class BenchmarkRunner {
+
+    private static final String DEFAULT_THREADS = "1,4,16";
+    private static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+
+        List<Integer> threadCounts = new ArrayList<>();
+        if (commandLineOptions.getThreads().hasValue()) {
+            threadCounts.add(commandLineOptions.getThreads().get());
+        }
+        else {
+            for (String threads : System.getProperty("smartmap.benchmark.threads", DEFAULT_THREADS).split(",")) {
+                threadCounts.add(Integer.parseInt(threads.trim()));
+            }
+        }
+
+        List<RunResult> results = new ArrayList<>();
+        for (Integer threads : threadCounts) {
+            results.addAll(new Runner(new OptionsBuilder()
+                    .parent(commandLineOptions)
+                    .threads(threads)
+                    .build()
+            ).run());
+        }
+
+        ResultFormatType resultFormat = commandLineOptions.getResultFormat().orElse(ResultFormatType.JSON);
+        String resultFile = commandLineOptions.getResult().orElse(DEFAULT_RESULT_FILE);
+        ResultFormatFactory.getInstance(resultFormat, resultFile).writeOut(Collections.unmodifiableList(results));
+    }
+}
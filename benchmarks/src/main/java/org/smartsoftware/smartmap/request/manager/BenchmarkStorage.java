@@ -0,0 +1,151 @@
+package org.smartsoftware.smartmap.request.manager;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.smartsoftware.smartmap.request.manager.datasource.BenchmarkDAOs;
+import org.smartsoftware.smartmap.request.manager.datasource.LogStructuredShardDAO;
+import org.smartsoftware.smartmap.request.manager.datasource.SqliteShardDAO;
+import org.smartsoftware.smartmap.request.manager.filesystem.BenchmarkFileSystems;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Shards configured the way application-context.xml does it, in a temporary directory removed on close.
+ */
+public class BenchmarkStorage implements AutoCloseable {
+
+    // the housekeeper is "stopped" by pausing it for longer than any benchmark runs
+    private static final long STOPPED_GC_DELAY_MS = TimeUnit.DAYS.toMillis(1);
+
+    // large values are preloaded for a part of the keys only, so a trial fits on a disk
+    private static final long PRELOAD_BUDGET_BYTES = 256L * 1024 * 1024;
+
+    public static final String SQLITE_REGISTER = "sqlite";
+    public static final String LOG_REGISTER = "log";
+
+    // the same as the register.readers.maxActive of the configuration
+    private static final int READERS_PER_SHARD = 4;
+
+    private final Path root;
+    private final String register;
+    private final List<BasicDataSource> dataSources = new ArrayList<>();
+    private final List<LogStructuredShardDAO> logRegisters = new ArrayList<>();
+    private final List<Shard> shards = new ArrayList<>();
+    private HashBasedRequestManager requestManager;
+
+    public BenchmarkStorage(int shardCount) {
+        this(shardCount, SQLITE_REGISTER);
+    }
+
+    public BenchmarkStorage(int shardCount, String register) {
+        this.register = register;
+        try {
+            root = Files.createTempDirectory("smartmap-benchmark");
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(newShard(root.resolve("shard" + i).toString()));
+        }
+    }
+
+    public HashBasedRequestManager startRequestManager(boolean isGcRunning) {
+        requestManager = new HashBasedRequestManager(shards);
+        if ( !isGcRunning ) {
+            requestManager.setGcMinDelayMs(STOPPED_GC_DELAY_MS);
+            requestManager.setGcMaxDelayMs(STOPPED_GC_DELAY_MS);
+        }
+        requestManager.init();
+        return requestManager;
+    }
+
+    /**
+     * The number of keys holding a value before a trial, the reads are spread over them.
+     */
+    public static int preloadedKeys(int keyCardinality, int valueSize) {
+        return (int) Math.max(1, Math.min(keyCardinality, PRELOAD_BUDGET_BYTES / valueSize));
+    }
+
+    public static String keyOf(int index) {
+        return "benchmark_key_" + index;
+    }
+
+    public static BasicDataSource newDataSource(String shardPath) {
+        BasicDataSource dataSource = new BasicDataSource();
+        dataSource.setDriverClassName("org.sqlite.JDBC");
+        dataSource.setUrl("jdbc:sqlite:" + shardPath + "/shard_db");
+        dataSource.setInitialSize(1);
+        dataSource.setMaxActive(1);
+        dataSource.setMaxIdle(1);
+        dataSource.setPoolPreparedStatements(true);
+        return dataSource;
+    }
+
+    public static BasicDataSource newReadDataSource(String shardPath, int maxReaders) {
+        BasicDataSource dataSource = newDataSource(shardPath);
+        dataSource.setConnectionProperties("open_mode=1");
+        dataSource.setInitialSize(0);
+        dataSource.setMaxActive(maxReaders);
+        dataSource.setMaxIdle(maxReaders);
+        return dataSource;
+    }
+
+    public static void deleteRecursively(Path path) {
+        try (Stream<Path> paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (requestManager != null) {
+            requestManager.shutdown();
+        }
+        for (BasicDataSource dataSource : dataSources) {
+            dataSource.close();
+        }
+        for (LogStructuredShardDAO logRegister : logRegisters) {
+            try {
+                logRegister.close();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        deleteRecursively(root);
+    }
+
+    private Shard newShard(String shardPath) {
+        try {
+            Files.createDirectories(Paths.get(shardPath));
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (LOG_REGISTER.equals(register)) {
+            LogStructuredShardDAO logRegister = BenchmarkDAOs.newLogStructuredShardDAO(Paths.get(shardPath));
+            logRegisters.add(logRegister);
+            return new Shard(shardPath, logRegister, BenchmarkFileSystems.newFileSystemShard(shardPath));
+        }
+        BasicDataSource dataSource = newDataSource(shardPath);
+        BasicDataSource readDataSource = newReadDataSource(shardPath, READERS_PER_SHARD);
+        dataSources.add(readDataSource);
+        dataSources.add(dataSource);
+        SqliteShardDAO dao = BenchmarkDAOs.newSqliteShardDAO(Paths.get(shardPath), dataSource);
+        dao.setReadDataSource(readDataSource);
+        return new Shard(shardPath, dao, BenchmarkFileSystems.newFileSystemShard(shardPath));
+    }
+}
@@ -0,0 +1,85 @@
+package org.smartsoftware.smartmap.request.manager;
+
+import org.openjdk.jmh.annotations.*;
+import org.smartsoftware.smartmap.domain.communication.CommunicationChain;
+import org.smartsoftware.smartmap.domain.communication.request.GetRequest;
+import org.smartsoftware.smartmap.domain.communication.request.ListKeysRequest;
+import org.smartsoftware.smartmap.domain.communication.request.PutRequest;
+import org.smartsoftware.smartmap.domain.communication.request.RemoveRequest;
+import org.smartsoftware.smartmap.domain.data.ByteArrayValue;
+import org.smartsoftware.smartmap.domain.data.StringKey;
+
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RequestManagerBenchmark {
+
+    @Param({"100", "10240", "1048576", "10485760"})
+    public int valueSize;
+
+    @Param({"1", "4"})
+    public int shardCount;
+
+    @Param({"1000", "100000"})
+    public int keyCardinality;
+
+    @Param({"true", "false"})
+    public boolean isGcRunning;
+
+    @Param({BenchmarkStorage.SQLITE_REGISTER, BenchmarkStorage.LOG_REGISTER})
+    public String register;
+
+    private BenchmarkStorage storage;
+    private HashBasedRequestManager requestManager;
+    private ByteArrayValue value;
+    private int preloadedKeys;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        storage = new BenchmarkStorage(shardCount, register);
+        requestManager = storage.startRequestManager(isGcRunning);
+        value = new ByteArrayValue(new byte[valueSize]);
+
+        preloadedKeys = BenchmarkStorage.preloadedKeys(keyCardinality, valueSize);
+        for (int i = 0; i < preloadedKeys; i++) {
+            requestManager.onRequest(new CommunicationChain(new PutRequest(new StringKey(BenchmarkStorage.keyOf(i)), value)));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        storage.close();
+    }
+
+    @Benchmark
+    public CommunicationChain put() {
+        StringKey key = new StringKey(BenchmarkStorage.keyOf(ThreadLocalRandom.current().nextInt(keyCardinality)));
+        return requestManager.onRequest(new CommunicationChain(new PutRequest(key, value)));
+    }
+
+    @Benchmark
+    public CommunicationChain get() {
+        StringKey key = new StringKey(BenchmarkStorage.keyOf(ThreadLocalRandom.current().nextInt(preloadedKeys)));
+        return requestManager.onRequest(new CommunicationChain(new GetRequest(key)));
+    }
+
+    @Benchmark
+    public CommunicationChain putAndRemove() {
+        // a key out of the preloaded range, so the reads keep hitting
+        StringKey key = new StringKey(BenchmarkStorage.keyOf(keyCardinality + ThreadLocalRandom.current().nextInt(keyCardinality)));
+        requestManager.onRequest(new CommunicationChain(new PutRequest(key, value)));
+        return requestManager.onRequest(new CommunicationChain(new RemoveRequest(key)));
+    }
+
+    @Benchmark
+    public CommunicationChain listKeys() {
+        return requestManager.onRequest(new CommunicationChain(new ListKeysRequest()));
+    }
+}
@@ -0,0 +1,18 @@
+package org.smartsoftware.smartmap.request.manager.datasource;
+
+import javax.sql.DataSource;
+import java.nio.file.Path;
+
+public final class BenchmarkDAOs {
+
+    private BenchmarkDAOs() {
+    }
+
+    public static SqliteShardDAO newSqliteShardDAO(Path shardPath, DataSource dataSource) {
+        return new SqliteShardDAO(shardPath, dataSource);
+    }
+
+    public static LogStructuredShardDAO newLogStructuredShardDAO(Path shardPath) {
+        return new LogStructuredShardDAO(shardPath);
+    }
+}
@@ -0,0 +1,82 @@
+package org.smartsoftware.smartmap.request.manager.datasource;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.openjdk.jmh.annotations.*;
+import org.smartsoftware.smartmap.domain.data.StringKey;
+import org.smartsoftware.smartmap.request.manager.BenchmarkStorage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The register on its own: the value files are never written, the entries only point to them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SqliteShardDAOBenchmark {
+
+    @Param({"1000", "100000"})
+    public int keyCardinality;
+
+    @Param({"0", "2"})
+    public long groupCommitWindowMs;
+
+    private Path shardPath;
+    private BasicDataSource dataSource;
+    private SqliteShardDAO dao;
+    private final AtomicLong clock = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        shardPath = Files.createTempDirectory("smartmap-dao-benchmark");
+        dataSource = BenchmarkStorage.newDataSource(shardPath.toString());
+        dao = new SqliteShardDAO(shardPath, dataSource);
+        dao.setGroupCommitWindowMs(groupCommitWindowMs);
+        dao.init();
+
+        for (int i = 0; i < keyCardinality; i++) {
+            addCommittedEntry(new StringKey(BenchmarkStorage.keyOf(i)));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        dataSource.close();
+        BenchmarkStorage.deleteRecursively(shardPath);
+    }
+
+    @Benchmark
+    public boolean addAndCommitEntry() {
+        return addCommittedEntry(new StringKey(BenchmarkStorage.keyOf(ThreadLocalRandom.current().nextInt(keyCardinality))));
+    }
+
+    @Benchmark
+    public Optional<String> getCommittedPath() {
+        return dao.getCommittedPathFor(new StringKey(BenchmarkStorage.keyOf(ThreadLocalRandom.current().nextInt(keyCardinality))));
+    }
+
+    @Benchmark
+    public boolean markEntriesAsRemoved() {
+        StringKey key = new StringKey(BenchmarkStorage.keyOf(keyCardinality + ThreadLocalRandom.current().nextInt(keyCardinality)));
+        addCommittedEntry(key);
+        return dao.markEntriesAsRemoved(key);
+    }
+
+    private boolean addCommittedEntry(StringKey key) {
+        // the versions have to be unique per key whatever the number of the threads is
+        long version = clock.incrementAndGet();
+        String filePath = key.get() + "$" + version + ".data";
+        return dao.addUpdatingEntry(version, key, filePath)
+                && dao.commitEntry(version, key, filePath);
+    }
+}
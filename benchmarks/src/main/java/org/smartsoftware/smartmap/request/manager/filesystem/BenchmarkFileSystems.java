@@ -0,0 +1,11 @@
+package org.smartsoftware.smartmap.request.manager.filesystem;
+
+public final class BenchmarkFileSystems {
+
+    private BenchmarkFileSystems() {
+    }
+
+    public static FileSystemShard newFileSystemShard(String shardLocation) {
+        return new FileSystemShard(shardLocation);
+    }
+}
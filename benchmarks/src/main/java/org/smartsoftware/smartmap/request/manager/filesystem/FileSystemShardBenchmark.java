@@ -0,0 +1,78 @@
+package org.smartsoftware.smartmap.request.manager.filesystem;
+
+import org.openjdk.jmh.annotations.*;
+import org.smartsoftware.smartmap.domain.data.ByteArrayValue;
+import org.smartsoftware.smartmap.domain.data.IValue;
+import org.smartsoftware.smartmap.domain.data.StringKey;
+import org.smartsoftware.smartmap.request.manager.BenchmarkStorage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The value files on their own, without the register.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FileSystemShardBenchmark {
+
+    @Param({"100", "10240", "1048576", "10485760"})
+    public int valueSize;
+
+    @Param({"1000", "100000"})
+    public int keyCardinality;
+
+    @Param({"false", "true"})
+    public boolean isMemoryMapped;
+
+    @Param({"NONE", "BATCHED", "ALWAYS"})
+    public Durability durability;
+
+    private Path shardPath;
+    private FileSystemShard fileSystem;
+    private ByteArrayValue value;
+    private String[] locations;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        shardPath = Files.createTempDirectory("smartmap-fs-benchmark");
+        fileSystem = new FileSystemShard(shardPath.toString());
+        fileSystem.setMemoryMappedReads(isMemoryMapped);
+        fileSystem.setDurability(durability);
+        fileSystem.init();
+        value = new ByteArrayValue(new byte[valueSize]);
+
+        locations = new String[BenchmarkStorage.preloadedKeys(keyCardinality, valueSize)];
+        for (int i = 0; i < locations.length; i++) {
+            locations[i] = write(BenchmarkStorage.keyOf(i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkStorage.deleteRecursively(shardPath);
+    }
+
+    @Benchmark
+    public IValue read() {
+        return fileSystem.getValueFrom(locations[ThreadLocalRandom.current().nextInt(locations.length)]);
+    }
+
+    @Benchmark
+    public boolean writeAndRemove() {
+        return fileSystem.removeFile(write(BenchmarkStorage.keyOf(keyCardinality + ThreadLocalRandom.current().nextInt(keyCardinality))));
+    }
+
+    private String write(String key) {
+        String location = fileSystem.newLocationFor(new StringKey(key), value).get();
+        fileSystem.createNewFileWithValue(location, value);
+        return location;
+    }
+}
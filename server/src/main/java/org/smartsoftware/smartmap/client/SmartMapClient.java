@@ -0,0 +1,432 @@
+package org.smartsoftware.smartmap.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+/**
+ * A client of the SmartMap server. The calls borrow a connection of a pool, so the client is shared by any number
+ * of threads, and they block until the reply arrives. The connections are opened on demand, up to the size
+ * of the pool, and those broken by an I/O error are dropped.
+ *
+ * A pipeline sends its commands without waiting for the replies and reads all of them at once, on sync(): a batch
+ * of commands costs a round trip instead of a round trip per command.
+ */
+public class SmartMapClient implements AutoCloseable {
+
+    private static final byte[] EMPTY_VALUE = new byte[0];
+    private static final byte[] GET = command("GET");
+    private static final byte[] SET = command("SET");
+    private static final byte[] DEL = command("DEL");
+    private static final byte[] MGET = command("MGET");
+    private static final byte[] MSET = command("MSET");
+    private static final byte[] KEYS = command("KEYS");
+
+    // a pipeline reads the replies of a window before it sends the next one, so neither side waits for the other forever
+    private static final int PIPELINE_WINDOW = 1024;
+
+    private static final int CONNECT_TIMEOUT_MS = 5_000;
+
+    private final InetSocketAddress address;
+    private final Semaphore permits;
+    private final BlockingQueue<Connection> idleConnections = new LinkedBlockingQueue<>();
+    private volatile boolean isClosed = false;
+
+    public SmartMapClient(String host, int port) {
+        this(host, port, 8);
+    }
+
+    public SmartMapClient(String host, int port, int poolSize) {
+        this.address = new InetSocketAddress(host, port);
+        this.permits = new Semaphore(poolSize);
+    }
+
+    /**
+     * The value of the key, or an empty array if there is none, the same way the SmartMap returns it.
+     */
+    public byte[] get(String key) {
+        Object reply = call(GET, keyOf(key));
+        return reply == null ? EMPTY_VALUE : (byte[]) reply;
+    }
+
+    public void put(String key, byte[] value) {
+        call(SET, keyOf(key), value);
+    }
+
+    public void remove(String key) {
+        call(DEL, keyOf(key));
+    }
+
+    /**
+     * The values of the keys that have one.
+     */
+    public Map<String, byte[]> getAll(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return new LinkedHashMap<>();
+        }
+        List<String> requestKeys = new ArrayList<>(keys);
+        byte[][] arguments = new byte[requestKeys.size()][];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = keyOf(requestKeys.get(i));
+        }
+
+        List<?> values = (List<?>) call(MGET, arguments);
+        Map<String, byte[]> found = new LinkedHashMap<>();
+        for (int i = 0; i < requestKeys.size(); i++) {
+            if (values.get(i) != null) {
+                found.put(requestKeys.get(i), (byte[]) values.get(i));
+            }
+        }
+        return found;
+    }
+
+    public void putAll(Map<String, byte[]> values) {
+        if (values.isEmpty()) {
+            return;
+        }
+        byte[][] arguments = new byte[2 * values.size()][];
+        int i = 0;
+        for (Map.Entry<String, byte[]> value : values.entrySet()) {
+            arguments[i++] = keyOf(value.getKey());
+            arguments[i++] = value.getValue();
+        }
+        call(MSET, arguments);
+    }
+
+    public void removeAll(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        byte[][] arguments = new byte[keys.size()][];
+        int i = 0;
+        for (String key : keys) {
+            arguments[i++] = keyOf(key);
+        }
+        call(DEL, arguments);
+    }
+
+    /**
+     * The keys starting with the prefix, which could not hold the glob characters '*', '?', '[' and '\'.
+     */
+    public List<String> listKeys(String prefix) {
+        List<?> keys = (List<?>) call(KEYS, keyOf(prefix + "*"));
+        List<String> found = new ArrayList<>(keys.size());
+        keys.forEach(key -> found.add(new String((byte[]) key, StandardCharsets.UTF_8)));
+        return found;
+    }
+
+    public Pipeline pipeline() {
+        return new Pipeline();
+    }
+
+    @Override
+    public void close() {
+        isClosed = true;
+        Connection connection;
+        while ((connection = idleConnections.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    private Object call(byte[] name, byte[]... arguments) {
+        Connection connection = borrow();
+        boolean isBroken = true;
+        try {
+            connection.write(commandOf(name, arguments));
+            connection.output.flush();
+            Object reply = connection.readReply();
+            isBroken = false;
+            return valueOf(reply);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        finally {
+            giveBack(connection, isBroken);
+        }
+    }
+
+    private Connection borrow() {
+        if (isClosed) {
+            throw new IllegalStateException("The client is closed.");
+        }
+        try {
+            permits.acquire();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a connection.", e);
+        }
+
+        Connection connection = idleConnections.poll();
+        if (connection != null) {
+            return connection;
+        }
+        try {
+            return new Connection();
+        }
+        catch (IOException e) {
+            permits.release();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void giveBack(Connection connection, boolean isBroken) {
+        if (isBroken || isClosed) {
+            connection.close();
+        }
+        else {
+            idleConnections.add(connection);
+        }
+        permits.release();
+    }
+
+    private static Object valueOf(Object reply) {
+        if (reply instanceof ServerError) {
+            throw new IllegalStateException(((ServerError) reply).message);
+        }
+        return reply;
+    }
+
+    private static byte[][] commandOf(byte[] name, byte[]... arguments) {
+        byte[][] command = new byte[arguments.length + 1][];
+        command[0] = name;
+        System.arraycopy(arguments, 0, command, 1, arguments.length);
+        return command;
+    }
+
+    private static byte[] keyOf(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] command(String name) {
+        return name.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Commands sent together on sync(). The futures of the commands are completed by sync(), a pipeline could be
+     * reused once it is synced. It is not thread safe.
+     */
+    public class Pipeline {
+
+        private final List<byte[][]> commands = new ArrayList<>();
+        private final List<PendingReply<?>> replies = new ArrayList<>();
+
+        private Pipeline() {
+        }
+
+        public CompletableFuture<byte[]> get(String key) {
+            return add(reply -> reply == null ? EMPTY_VALUE : (byte[]) reply, GET, keyOf(key));
+        }
+
+        public CompletableFuture<Void> put(String key, byte[] value) {
+            return add(reply -> null, SET, keyOf(key), value);
+        }
+
+        public CompletableFuture<Void> remove(String key) {
+            return add(reply -> null, DEL, keyOf(key));
+        }
+
+        public int size() {
+            return commands.size();
+        }
+
+        /**
+         * Sends the commands and completes their futures with the replies: a command the server has failed
+         * completes exceptionally, the others are not affected. An I/O error fails all the commands not replied yet.
+         */
+        public void sync() {
+            if (commands.isEmpty()) {
+                return;
+            }
+            Connection connection = borrow();
+            boolean isBroken = true;
+            int replied = 0;
+            try {
+                for (int windowStart = 0; windowStart < commands.size(); windowStart += PIPELINE_WINDOW) {
+                    int windowEnd = Math.min(commands.size(), windowStart + PIPELINE_WINDOW);
+                    for (int i = windowStart; i < windowEnd; i++) {
+                        connection.write(commands.get(i));
+                    }
+                    connection.output.flush();
+                    for (; replied < windowEnd; replied++) {
+                        replies.get(replied).complete(connection.readReply());
+                    }
+                }
+                isBroken = false;
+            }
+            catch (IOException e) {
+                for (; replied < replies.size(); replied++) {
+                    replies.get(replied).future.completeExceptionally(new UncheckedIOException(e));
+                }
+            }
+            finally {
+                giveBack(connection, isBroken);
+                commands.clear();
+                replies.clear();
+            }
+        }
+
+        private <T> CompletableFuture<T> add(Function<Object, T> decoder, byte[] name, byte[]... arguments) {
+            commands.add(commandOf(name, arguments));
+
+            PendingReply<T> reply = new PendingReply<>(decoder);
+            replies.add(reply);
+            return reply.future;
+        }
+    }
+
+    private static class PendingReply<T> {
+        private final Function<Object, T> decoder;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        private PendingReply(Function<Object, T> decoder) {
+            this.decoder = decoder;
+        }
+
+        private void complete(Object reply) {
+            if (reply instanceof ServerError) {
+                future.completeExceptionally(new IllegalStateException(((ServerError) reply).message));
+            }
+            else {
+                future.complete(decoder.apply(reply));
+            }
+        }
+    }
+
+    private static class ServerError {
+        private final String message;
+
+        private ServerError(String message) {
+            this.message = message;
+        }
+    }
+
+    private class Connection {
+
+        private final Socket socket;
+        private final InputStream input;
+        private final OutputStream output;
+
+        private Connection() throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(address, CONNECT_TIMEOUT_MS);
+            input = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            output = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        }
+
+        /**
+         * Writes a command, the name followed by the arguments, as a RESP array of bulk strings.
+         */
+        private void write(byte[][] command) throws IOException {
+            writeLine('*', command.length);
+            for (byte[] argument : command) {
+                writeBulk(argument);
+            }
+        }
+
+        private void writeBulk(byte[] value) throws IOException {
+            writeLine('$', value.length);
+            output.write(value);
+            output.write('\r');
+            output.write('\n');
+        }
+
+        private void writeLine(char type, long number) throws IOException {
+            output.write(type);
+            output.write(Long.toString(number).getBytes(StandardCharsets.US_ASCII));
+            output.write('\r');
+            output.write('\n');
+        }
+
+        private Object readReply() throws IOException {
+            int type = input.read();
+            switch (type) {
+                case '+':
+                    return readLine();
+                case '-':
+                    return new ServerError(readLine());
+                case ':':
+                    return Long.parseLong(readLine());
+                case '$': {
+                    int length = Integer.parseInt(readLine());
+                    if (length < 0) {
+                        return null;
+                    }
+                    byte[] value = new byte[length];
+                    readFully(value);
+                    readLine();
+                    return value;
+                }
+                case '*': {
+                    int length = Integer.parseInt(readLine());
+                    if (length < 0) {
+                        return null;
+                    }
+                    List<Object> values = new ArrayList<>(length);
+                    for (int i = 0; i < length; i++) {
+                        values.add(readReply());
+                    }
+                    return values;
+                }
+                case -1:
+                    throw new EOFException("The server has closed the connection.");
+                default:
+                    throw new IOException("Unexpected reply type '" + (char) type + "'.");
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int next;
+            while ((next = input.read()) != '\r') {
+                if (next < 0) {
+                    throw new EOFException("The server has closed the connection.");
+                }
+                line.append((char) next);
+            }
+            if (input.read() != '\n') {
+                throw new IOException("A reply line is not terminated by CRLF.");
+            }
+            return line.toString();
+        }
+
+        private void readFully(byte[] value) throws IOException {
+            int offset = 0;
+            while (offset < value.length) {
+                int read = input.read(value, offset, value.length - offset);
+                if (read < 0) {
+                    throw new EOFException("The server has closed the connection.");
+                }
+                offset += read;
+            }
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                // the connection is dropped anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package org.smartsoftware.smartmap.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Decodes the commands of a client out of the bytes received so far. A command is either a RESP array of bulk strings,
+ * the way the clients send them, or an inline command (space separated words on a line), the way one types them
+ * in telnet. A command split across reads is not consumed until the rest of it arrives, so the reader keeps no state
+ * between the reads and the caller simply retries with more bytes.
+ */
+public class RespCommandReader {
+
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final long NO_LINE = Long.MIN_VALUE;
+
+    private final int maxRequestSize;
+
+    public RespCommandReader(int maxRequestSize) {
+        this.maxRequestSize = maxRequestSize;
+    }
+
+    /**
+     * Reads the next complete command from the position of the buffer and moves the position past it. The position
+     * is left untouched when the buffer holds a part of a command only.
+     *
+     * @throws IllegalArgumentException if the bytes are not a command or the command is larger than allowed
+     */
+    public Optional<List<byte[]>> read(ByteBuffer input) {
+        int start = input.position();
+        Optional<List<byte[]>> command = input.get(start) == '*' ? readArray(input) : readInline(input);
+        if ( !command.isPresent() ) {
+            input.position(start);
+        }
+        return command;
+    }
+
+    private Optional<List<byte[]>> readArray(ByteBuffer input) {
+        input.get();
+        long length = readNumber(input);
+        if (length == NO_LINE) {
+            return Optional.empty();
+        }
+        if (length < 0 || length > maxRequestSize) {
+            throw new IllegalArgumentException("invalid multibulk length");
+        }
+
+        List<byte[]> arguments = new ArrayList<>((int) Math.min(length, 16));
+        long requestSize = 0;
+        for (int i = 0; i < length; i++) {
+            if ( !input.hasRemaining() ) {
+                return Optional.empty();
+            }
+            if (input.get() != '$') {
+                throw new IllegalArgumentException("expected '$', got '" + (char) input.get(input.position() - 1) + "'");
+            }
+            long argumentLength = readNumber(input);
+            if (argumentLength == NO_LINE) {
+                return Optional.empty();
+            }
+            requestSize += argumentLength;
+            if (argumentLength < 0 || requestSize > maxRequestSize) {
+                throw new IllegalArgumentException("invalid bulk length");
+            }
+            if (input.remaining() < argumentLength + 2) {
+                return Optional.empty();
+            }
+            byte[] argument = new byte[(int) argumentLength];
+            input.get(argument);
+            if (input.get() != '\r' || input.get() != '\n') {
+                throw new IllegalArgumentException("bulk string is not terminated by CRLF");
+            }
+            arguments.add(argument);
+        }
+        return Optional.of(arguments);
+    }
+
+    private Optional<List<byte[]>> readInline(ByteBuffer input) {
+        int lineEnd = indexOfLineEnd(input);
+        if (lineEnd < 0) {
+            return Optional.empty();
+        }
+
+        List<byte[]> arguments = new ArrayList<>();
+        int wordStart = -1;
+        for (int i = input.position(); i <= lineEnd; i++) {
+            boolean isSeparator = i == lineEnd || input.get(i) == ' ' || input.get(i) == '\t' || input.get(i) == '\r';
+            if (isSeparator && wordStart >= 0) {
+                byte[] word = new byte[i - wordStart];
+                for (int j = 0; j < word.length; j++) {
+                    word[j] = input.get(wordStart + j);
+                }
+                arguments.add(word);
+                wordStart = -1;
+            }
+            else if ( !isSeparator && wordStart < 0 ) {
+                wordStart = i;
+            }
+        }
+        input.position(lineEnd + 1);
+        return Optional.of(arguments.isEmpty() ? Collections.emptyList() : arguments);
+    }
+
+    /**
+     * Reads a decimal number up to the CRLF, or returns NO_LINE if the line has not been received completely yet.
+     */
+    private static long readNumber(ByteBuffer input) {
+        int lineEnd = indexOfLineEnd(input);
+        if (lineEnd < 0) {
+            return NO_LINE;
+        }
+        if (lineEnd - input.position() < 2 || input.get(lineEnd - 1) != '\r') {
+            throw new IllegalArgumentException("invalid length line");
+        }
+
+        boolean isNegative = input.get(input.position()) == '-';
+        int digitsStart = isNegative ? input.position() + 1 : input.position();
+        if (lineEnd - 1 - digitsStart > 18) {
+            throw new IllegalArgumentException("length out of range");
+        }
+        long number = 0;
+        for (int i = digitsStart; i < lineEnd - 1; i++) {
+            byte digit = input.get(i);
+            if (digit < '0' || digit > '9') {
+                throw new IllegalArgumentException("invalid length '" + (char) digit + "'");
+            }
+            number = number * 10 + (digit - '0');
+        }
+        input.position(lineEnd + 1);
+        return isNegative ? -number : number;
+    }
+
+    private static int indexOfLineEnd(ByteBuffer input) {
+        int searchEnd = Math.min(input.limit(), input.position() + MAX_LINE_LENGTH);
+        for (int i = input.position(); i < searchEnd; i++) {
+            if (input.get(i) == '\n') {
+                return i;
+            }
+        }
+        if (searchEnd - input.position() >= MAX_LINE_LENGTH) {
+            throw new IllegalArgumentException("too big inline request");
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,175 @@
+package org.smartsoftware.smartmap.server;
+
+import org.smartsoftware.smartmap.ISmartMap;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * The subset of the Redis commands the SmartMap could serve, so the standard Redis clients and redis-cli work with
+ * the server as they are. The keys are UTF-8 strings, the values are opaque bytes. As in the SmartMap, an empty value
+ * is the same as no value at all.
+ */
+public class RespCommands {
+
+    private final ISmartMap smartMap;
+
+    public RespCommands(ISmartMap smartMap) {
+        this.smartMap = smartMap;
+    }
+
+    /**
+     * Executes the command and writes its reply.
+     *
+     * @return false if the connection should be closed once the reply is sent
+     */
+    public boolean execute(List<byte[]> command, RespOutput output) {
+        if (command.isEmpty()) {
+            return true;
+        }
+
+        String name = new String(command.get(0), StandardCharsets.US_ASCII).toUpperCase(Locale.ROOT);
+        int arguments = command.size() - 1;
+        switch (name) {
+            case "GET":
+                if (arguments != 1) {
+                    return wrongArguments(name, output);
+                }
+                byte[] value = smartMap.get(keyOf(command.get(1)));
+                if (value.length == 0) {
+                    output.nullBulk();
+                }
+                else {
+                    output.bulk(value);
+                }
+                return true;
+
+            case "SET":
+                if (arguments != 2) {
+                    return wrongArguments(name, output);
+                }
+                return replyToStore(smartMap.put(keyOf(command.get(1)), command.get(2)), output);
+
+            case "DEL":
+                if (arguments < 1) {
+                    return wrongArguments(name, output);
+                }
+                if (arguments == 1) {
+                    smartMap.remove(keyOf(command.get(1)));
+                }
+                else {
+                    smartMap.removeAll(keysOf(command, 1));
+                }
+                // the SmartMap does not tell whether a key has been there, every given key is counted
+                output.integer(arguments);
+                return true;
+
+            case "MGET":
+                if (arguments < 1) {
+                    return wrongArguments(name, output);
+                }
+                List<String> keys = keysOf(command, 1);
+                Map<String, byte[]> values = smartMap.getAll(keys);
+                output.arrayHeader(keys.size());
+                for (String key : keys) {
+                    byte[] found = values.get(key);
+                    if (found == null || found.length == 0) {
+                        output.nullBulk();
+                    }
+                    else {
+                        output.bulk(found);
+                    }
+                }
+                return true;
+
+            case "MSET":
+                if (arguments < 2 || arguments % 2 != 0) {
+                    return wrongArguments(name, output);
+                }
+                Map<String, byte[]> newValues = new LinkedHashMap<>();
+                for (int i = 1; i < command.size(); i += 2) {
+                    newValues.put(keyOf(command.get(i)), command.get(i + 1));
+                }
+                return replyToStore(smartMap.putAll(newValues), output);
+
+            case "KEYS":
+                if (arguments != 1) {
+                    return wrongArguments(name, output);
+                }
+                String pattern = keyOf(command.get(1));
+                String prefix = pattern.substring(0, Math.max(0, pattern.length() - 1));
+                if ( !pattern.endsWith("*") || prefix.matches(".*[*?\\[\\\\].*") ) {
+                    output.error("ERR only the 'prefix*' patterns are supported");
+                    return true;
+                }
+                List<String> matching = smartMap.streamKeys(prefix).collect(Collectors.toList());
+                output.arrayHeader(matching.size());
+                matching.forEach(output::bulk);
+                return true;
+
+            case "PING":
+                if (arguments == 0) {
+                    output.simpleString("PONG");
+                }
+                else if (arguments == 1) {
+                    output.bulk(command.get(1));
+                }
+                else {
+                    return wrongArguments(name, output);
+                }
+                return true;
+
+            case "ECHO":
+                if (arguments != 1) {
+                    return wrongArguments(name, output);
+                }
+                output.bulk(command.get(1));
+                return true;
+
+            case "COMMAND":
+                // redis-cli asks for the command docs on start, none are given
+                output.arrayHeader(0);
+                return true;
+
+            case "QUIT":
+                output.simpleString("OK");
+                return false;
+
+            default:
+                output.error("ERR unknown command '" + name.toLowerCase(Locale.ROOT) + "'");
+                return true;
+        }
+    }
+
+    private static boolean replyToStore(boolean isStored, RespOutput output) {
+        if (isStored) {
+            output.simpleString("OK");
+        }
+        else {
+            output.error("ERR unable to store the value");
+        }
+        return true;
+    }
+
+    private static boolean wrongArguments(String name, RespOutput output) {
+        output.error("ERR wrong number of arguments for '" + name.toLowerCase(Locale.ROOT) + "' command");
+        return true;
+    }
+
+    private static String keyOf(byte[] argument) {
+        return new String(argument, StandardCharsets.UTF_8);
+    }
+
+    private static List<String> keysOf(List<byte[]> command, int from) {
+        List<String> keys = new ArrayList<>(command.size() - from);
+        for (int i = from; i < command.size(); i++) {
+            keys.add(keyOf(command.get(i)));
+        }
+        return keys;
+    }
+}
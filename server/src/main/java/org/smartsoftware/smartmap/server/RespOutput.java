@@ -0,0 +1,79 @@
+package org.smartsoftware.smartmap.server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The replies of a run of pipelined commands, encoded in RESP one after another into a single growable buffer,
+ * so they are written to the connection at once.
+ */
+public class RespOutput extends ByteArrayOutputStream {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] NULL_BULK = "$-1\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    public RespOutput(int initialSize) {
+        super(initialSize);
+    }
+
+    public RespOutput simpleString(String value) {
+        write('+');
+        writeAscii(value);
+        return endLine();
+    }
+
+    public RespOutput error(String message) {
+        write('-');
+        // a line break would end the reply early
+        writeAscii(message.replace('\r', ' ').replace('\n', ' '));
+        return endLine();
+    }
+
+    public RespOutput integer(long value) {
+        write(':');
+        writeAscii(Long.toString(value));
+        return endLine();
+    }
+
+    public RespOutput bulk(byte[] value) {
+        write('$');
+        writeAscii(Integer.toString(value.length));
+        endLine();
+        write(value, 0, value.length);
+        return endLine();
+    }
+
+    public RespOutput bulk(String value) {
+        return bulk(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public RespOutput nullBulk() {
+        write(NULL_BULK, 0, NULL_BULK.length);
+        return this;
+    }
+
+    public RespOutput arrayHeader(int length) {
+        write('*');
+        writeAscii(Integer.toString(length));
+        return endLine();
+    }
+
+    /**
+     * The replies written so far, the buffer is shared, not copied.
+     */
+    public ByteBuffer toBuffer() {
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+
+    private RespOutput endLine() {
+        write(CRLF, 0, CRLF.length);
+        return this;
+    }
+
+    private void writeAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            write(value.charAt(i));
+        }
+    }
+}
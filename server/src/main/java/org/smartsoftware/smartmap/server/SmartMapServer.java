@@ -0,0 +1,438 @@
+package org.smartsoftware.smartmap.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smartsoftware.smartmap.ISmartMap;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves a SmartMap over TCP with the RESP protocol of Redis. A single thread owns the selector: it accepts
+ * the connections, reads whatever the clients send and decodes the commands. The commands block on the disk,
+ * so they are executed by a pool of workers, one worker at a time for a connection: the commands of a connection
+ * are executed in the order they have been sent and all the replies a worker has at hand are written at once.
+ * A client could pipeline as many commands as it likes, they cost a system call per batch, not per command.
+ *
+ * A worker writes its replies itself as long as the socket takes them, the selector thread only takes over the ones
+ * left when the client reads slowly. A connection is not read while too many of its commands wait for a worker or
+ * too many of its replies wait for the client, so a client that never reads its replies could not fill the memory.
+ */
+public class SmartMapServer implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SmartMapServer.class);
+
+    private static final int INITIAL_INPUT_SIZE = 16 * 1024;
+    private static final int MAX_OUTPUT_CHUNK = 64 * 1024;
+    private static final int MAX_PENDING_COMMANDS = 1024;
+    private static final long MAX_PENDING_OUTPUT = 1024 * 1024;
+
+    // a marker of a malformed command, the connection is closed once the replies of the previous ones are sent
+    private static final List<byte[]> PROTOCOL_ERROR = new ArrayList<>(0);
+
+    private final RespCommands commands;
+
+    private String host = "127.0.0.1";
+    private int port = 6380;
+    private int workerThreads = 2 * Runtime.getRuntime().availableProcessors();
+    private int maxRequestSize = 16 * 1024 * 1024;
+
+    private RespCommandReader reader;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private ExecutorService workers;
+    private Thread selectorThread;
+    private volatile boolean isRunning = false;
+
+    private final Queue<Connection> pendingUpdates = new ConcurrentLinkedQueue<>();
+
+    public SmartMapServer(ISmartMap smartMap) {
+        this.commands = new RespCommands(smartMap);
+    }
+
+    /**
+     * The address to listen on, the loopback one by default. The server does not authenticate its clients,
+     * so any other address opens the data to everyone who could reach it.
+     */
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    /**
+     * The port to listen on, 0 picks a free one, see getPort().
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public void setMaxRequestSize(int maxRequestSize) {
+        this.maxRequestSize = maxRequestSize;
+    }
+
+    public void start() throws IOException {
+        reader = new RespCommandReader(maxRequestSize);
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(host, port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        AtomicInteger workerCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(workerThreads, task -> {
+            Thread worker = new Thread(task, "smartmap-server-worker-" + workerCount.incrementAndGet());
+            worker.setDaemon(true);
+            return worker;
+        });
+
+        isRunning = true;
+        selectorThread = new Thread(this::run, "smartmap-server-selector");
+        selectorThread.start();
+        LOG.info("SmartMap server is listening on {}:{}.", host, getPort());
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    @Override
+    public void close() {
+        if ( !isRunning ) {
+            return;
+        }
+        isRunning = false;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+            workers.shutdown();
+            workers.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        }
+        catch (IOException e) {
+            LOG.error("Unable to close the SmartMap server.", e);
+        }
+        LOG.info("SmartMap server is stopped.");
+    }
+
+    private void run() {
+        while (isRunning) {
+            try {
+                selector.select();
+                Connection updated;
+                while ((updated = pendingUpdates.poll()) != null) {
+                    updated.update();
+                }
+
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    if ( !key.isValid() ) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isWritable()) {
+                        connection.onWritable();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable();
+                    }
+                }
+            }
+            catch (IOException | ClosedSelectorException e) {
+                LOG.error("SmartMap server selector has failed.", e);
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                ((Connection) key.attachment()).close();
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        }
+    }
+
+    private class Connection {
+
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer input = ByteBuffer.allocate(INITIAL_INPUT_SIZE);
+
+        private final Queue<List<byte[]>> pendingCommands = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingCommandCount = new AtomicInteger();
+        private final AtomicBoolean isScheduled = new AtomicBoolean(false);
+        private volatile String protocolError;
+
+        // guarded by this
+        private final ArrayDeque<ByteBuffer> pendingOutput = new ArrayDeque<>();
+        private long pendingOutputBytes = 0;
+
+        // nothing is read anymore: the client has closed its side, has sent a malformed command or QUIT
+        private volatile boolean isInputClosed = false;
+        private volatile boolean isClosing = false;
+        private volatile boolean isReadPaused = false;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Called by the selector thread only.
+         */
+        private void onReadable() {
+            int read;
+            try {
+                read = channel.read(input);
+            }
+            catch (IOException e) {
+                close();
+                return;
+            }
+            if (read < 0) {
+                isInputClosed = true;
+                update();
+                return;
+            }
+
+            input.flip();
+            boolean isReceived = false;
+            try {
+                while (input.hasRemaining()) {
+                    Optional<List<byte[]>> command = reader.read(input);
+                    if ( !command.isPresent() ) {
+                        break;
+                    }
+                    enqueue(command.get());
+                    isReceived = true;
+                }
+            }
+            catch (IllegalArgumentException e) {
+                protocolError = "ERR Protocol error: " + e.getMessage();
+                isInputClosed = true;
+                enqueue(PROTOCOL_ERROR);
+                isReceived = true;
+            }
+            input.compact();
+            if ( !input.hasRemaining() ) {
+                // a command larger than the buffer, the reader bounds it by the max request size
+                ByteBuffer largerInput = ByteBuffer.allocate(2 * input.capacity());
+                input.flip();
+                largerInput.put(input);
+                input = largerInput;
+            }
+
+            if (isReceived) {
+                schedule();
+            }
+            update();
+        }
+
+        /**
+         * Called by the selector thread only.
+         */
+        private void onWritable() {
+            try {
+                synchronized (this) {
+                    flush();
+                }
+            }
+            catch (IOException e) {
+                close();
+                return;
+            }
+            update();
+        }
+
+        /**
+         * Closes the connection once it is done, or sets what the selector waits for otherwise. Called by the selector
+         * thread only, the workers ask for it with requestUpdate().
+         */
+        private void update() {
+            if ( !key.isValid() ) {
+                return;
+            }
+            boolean hasOutput;
+            synchronized (this) {
+                hasOutput = !pendingOutput.isEmpty();
+            }
+            boolean isDone = isClosing || isInputClosed && pendingCommands.isEmpty();
+            if (isDone && !hasOutput && !isScheduled.get()) {
+                close();
+                return;
+            }
+
+            boolean isReadable = !isInputClosed && !isClosing && isUnderLimits();
+            if ( !isReadable && !isInputClosed && !isClosing ) {
+                // a worker checks the flag after it is done, the limits are checked again not to miss it
+                isReadPaused = true;
+                isReadable = isUnderLimits();
+            }
+            if (isReadable) {
+                isReadPaused = false;
+            }
+            key.interestOps((isReadable ? SelectionKey.OP_READ : 0) | (hasOutput ? SelectionKey.OP_WRITE : 0));
+        }
+
+        private boolean isUnderLimits() {
+            synchronized (this) {
+                return pendingCommandCount.get() < MAX_PENDING_COMMANDS && pendingOutputBytes < MAX_PENDING_OUTPUT;
+            }
+        }
+
+        private void enqueue(List<byte[]> command) {
+            pendingCommandCount.incrementAndGet();
+            pendingCommands.add(command);
+        }
+
+        private void schedule() {
+            if (isScheduled.compareAndSet(false, true)) {
+                try {
+                    workers.execute(this::process);
+                }
+                catch (RejectedExecutionException e) {
+                    // the server is stopping
+                    isScheduled.set(false);
+                }
+            }
+        }
+
+        /**
+         * Executes the pending commands on a worker.
+         */
+        private void process() {
+            RespOutput output = new RespOutput(256);
+            List<byte[]> command;
+            while ( !isClosing && (command = pendingCommands.poll()) != null ) {
+                if (command == PROTOCOL_ERROR) {
+                    output.error(protocolError);
+                    isClosing = true;
+                }
+                else if ( !execute(command, output) ) {
+                    isClosing = true;
+                }
+                pendingCommandCount.decrementAndGet();
+
+                if (output.size() >= MAX_OUTPUT_CHUNK) {
+                    send(output.toBuffer());
+                    output = new RespOutput(256);
+                }
+            }
+            if (output.size() > 0) {
+                send(output.toBuffer());
+            }
+
+            isScheduled.set(false);
+            if ( !isClosing && !pendingCommands.isEmpty() ) {
+                schedule();
+            }
+            if (isReadPaused || isClosing || isInputClosed) {
+                requestUpdate();
+            }
+        }
+
+        private boolean execute(List<byte[]> command, RespOutput output) {
+            try {
+                return commands.execute(command, output);
+            }
+            catch (RuntimeException e) {
+                LOG.error("Unable to execute a command of {} arguments.", command.size(), e);
+                output.error("ERR " + e.getMessage());
+                return true;
+            }
+        }
+
+        /**
+         * Writes the replies right away as long as the socket takes them, the selector thread writes the rest.
+         */
+        private void send(ByteBuffer replies) {
+            boolean hasOutput;
+            synchronized (this) {
+                pendingOutput.add(replies);
+                pendingOutputBytes += replies.remaining();
+                try {
+                    flush();
+                }
+                catch (IOException e) {
+                    pendingOutput.clear();
+                    pendingOutputBytes = 0;
+                    isClosing = true;
+                }
+                hasOutput = !pendingOutput.isEmpty();
+            }
+            if (hasOutput) {
+                requestUpdate();
+            }
+        }
+
+        // guarded by this
+        private void flush() throws IOException {
+            while ( !pendingOutput.isEmpty() ) {
+                ByteBuffer replies = pendingOutput.peek();
+                int written = channel.write(replies);
+                pendingOutputBytes -= written;
+                if (replies.hasRemaining()) {
+                    return;
+                }
+                pendingOutput.poll();
+            }
+        }
+
+        private void requestUpdate() {
+            pendingUpdates.add(this);
+            selector.wakeup();
+        }
+
+        private void close() {
+            key.cancel();
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                LOG.error("Unable to close a connection.", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package org.smartsoftware.smartmap.server;
+
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+/**
+ * Starts the SmartMap and its server as configured by server-context.xml, they are stopped on the JVM shutdown.
+ */
+public class SmartMapServerMain {
+
+    public static void main(String[] args) {
+        ClassPathXmlApplicationContext context = new ClassPathXmlApplicationContext("server-context.xml");
+        context.registerShutdownHook();
+    }
+}
@@ -0,0 +1,224 @@
+package org.smartsoftware.smartmap.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.smartsoftware.smartmap.ISmartMap;
+import org.smartsoftware.smartmap.client.SmartMapClient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class SmartMapServerTest {
+
+    private SmartMapServer server;
+    private SmartMapClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new SmartMapServer(new InMemorySmartMap());
+        server.setHost("127.0.0.1");
+        server.setPort(0);
+        server.setWorkerThreads(4);
+        server.start();
+        client = new SmartMapClient("127.0.0.1", server.getPort(), 4);
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void shouldServeClientCallsAndPipelines() {
+        client.put("user_1", "first".getBytes());
+        assertThat(new String(client.get("user_1")), is("first"));
+        assertThat(client.get("missing").length, is(0));
+
+        Map<String, byte[]> values = new LinkedHashMap<>();
+        values.put("user_2", "second".getBytes());
+        values.put("other_1", "other".getBytes());
+        client.putAll(values);
+        assertThat(client.getAll(Arrays.asList("user_1", "missing", "user_2")).keySet(), contains("user_1", "user_2"));
+        assertThat(client.listKeys("user_"), contains("user_1", "user_2"));
+
+        client.removeAll(Arrays.asList("user_1", "user_2"));
+        assertThat(client.listKeys("user_"), is(empty()));
+
+        // more commands than a window of the pipeline
+        SmartMapClient.Pipeline pipeline = client.pipeline();
+        for (int i = 0; i < 3000; i++) {
+            pipeline.put("pipelined_" + i, ("value_" + i).getBytes());
+        }
+        List<CompletableFuture<byte[]>> gets = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            gets.add(pipeline.get("pipelined_" + i));
+        }
+        pipeline.sync();
+        for (int i = 0; i < 3000; i++) {
+            assertThat(new String(gets.get(i).join()), is("value_" + i));
+        }
+    }
+
+    @Test
+    public void shouldDecodeCommandsSplitAcrossReads() throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", server.getPort())) {
+            OutputStream output = socket.getOutputStream();
+            byte[] commands = ("*3\r\n$3\r\nSET\r\n$3\r\nkey\r\n$5\r\nvalue\r\n" +
+                    "*2\r\n$3\r\nGET\r\n$3\r\nkey\r\n" +
+                    "PING\r\n" +
+                    "*1\r\n$4\r\nNOPE\r\n" +
+                    "*1\r\n!oops\r\n").getBytes(StandardCharsets.US_ASCII);
+            for (byte command : commands) {
+                output.write(command);
+                output.flush();
+            }
+
+            String replies = readAll(socket.getInputStream());
+            assertThat(replies, is("+OK\r\n$5\r\nvalue\r\n+PONG\r\n-ERR unknown command 'nope'\r\n" +
+                    "-ERR Protocol error: expected '$', got '!'\r\n"));
+        }
+    }
+
+    @Test
+    public void shouldReplyWithErrorWhenValueIsNotStored() throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", server.getPort())) {
+            OutputStream output = socket.getOutputStream();
+            output.write(("*3\r\n$3\r\nSET\r\n$12\r\nunstorable_1\r\n$5\r\nvalue\r\n" +
+                    "*5\r\n$4\r\nMSET\r\n$3\r\nkey\r\n$5\r\nvalue\r\n$12\r\nunstorable_2\r\n$5\r\nvalue\r\n" +
+                    "*2\r\n$3\r\nGET\r\n$3\r\nkey\r\n" +
+                    "QUIT\r\n").getBytes(StandardCharsets.US_ASCII));
+            output.flush();
+
+            String replies = readAll(socket.getInputStream());
+            assertThat(replies, is("-ERR unable to store the value\r\n-ERR unable to store the value\r\n$-1\r\n+OK\r\n"));
+        }
+    }
+
+    private static String readAll(InputStream input) throws IOException {
+        // the server closes the connection after a malformed command
+        ByteArrayOutputStream replies = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = input.read(buffer)) >= 0) {
+            replies.write(buffer, 0, read);
+        }
+        return new String(replies.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    private static class InMemorySmartMap implements ISmartMap {
+
+        // the values of these keys fail to be stored
+        private static final String UNSTORABLE_PREFIX = "unstorable_";
+
+        private final NavigableMap<String, byte[]> values = new ConcurrentSkipListMap<>();
+
+        @Override
+        public byte[] get(String key) {
+            return values.getOrDefault(key, new byte[0]);
+        }
+
+        @Override
+        public ByteBuffer getBuffer(String key) {
+            return ByteBuffer.wrap(get(key));
+        }
+
+        @Override
+        public boolean put(String key, byte[] value) {
+            if (key.startsWith(UNSTORABLE_PREFIX)) {
+                return false;
+            }
+            values.put(key, value);
+            return true;
+        }
+
+        @Override
+        public boolean put(String key, InputStream value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean put(String key, ReadableByteChannel value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ReadableByteChannel openValue(String key) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void remove(String key) {
+            values.remove(key);
+        }
+
+        @Override
+        public Collection<String> listKeys() {
+            return new ArrayList<>(values.keySet());
+        }
+
+        @Override
+        public Stream<String> streamKeys(String prefix) {
+            return values.tailMap(prefix).keySet().stream().filter(key -> key.startsWith(prefix))
+                    .collect(Collectors.toList()).stream();
+        }
+
+        @Override
+        public Map<String, byte[]> getAll(Collection<String> keys) {
+            Map<String, byte[]> found = new LinkedHashMap<>();
+            keys.stream().filter(values::containsKey).forEach(key -> found.put(key, values.get(key)));
+            return found;
+        }
+
+        @Override
+        public boolean putAll(Map<String, byte[]> newValues) {
+            if (newValues.keySet().stream().anyMatch(key -> key.startsWith(UNSTORABLE_PREFIX))) {
+                return false;
+            }
+            values.putAll(newValues);
+            return true;
+        }
+
+        @Override
+        public void removeAll(Collection<String> keys) {
+            keys.forEach(values::remove);
+        }
+
+        @Override
+        public CompletableFuture<byte[]> getAsync(String key) {
+            return CompletableFuture.completedFuture(get(key));
+        }
+
+        @Override
+        public CompletableFuture<Void> putAsync(String key, byte[] value) {
+            put(key, value);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> removeAsync(String key) {
+            remove(key);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Collection<String>> listKeysAsync() {
+            return CompletableFuture.completedFuture(listKeys());
+        }
+    }
+}
@@ -1,6 +1,12 @@
 package org.smartsoftware.smartmap;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
 /**
  * Created by Dmitry on 23.04.2017.
@@ -8,8 +14,40 @@ import java.util.Collection;
 public interface ISmartMap {
 
     byte[] get(String key);
-    void put(String key, byte[] value);
+    ByteBuffer getBuffer(String key);
+
+    /**
+     * @return false if the value has not been stored, the previous value of the key is left as it was then
+     */
+    boolean put(String key, byte[] value);
+
+    /**
+     * Streaming variants for large values, which are copied in chunks and never held in memory as a whole.
+     * The source is read to its end but left open, the opened channel is closed by the caller.
+     */
+    boolean put(String key, InputStream value);
+    boolean put(String key, ReadableByteChannel value);
+    ReadableByteChannel openValue(String key);
+
     void remove(String key);
     Collection<String> listKeys();
 
+    /**
+     * The keys starting with the prefix in the code point order. They are read page by page while the stream is consumed.
+     */
+    Stream<String> streamKeys(String prefix);
+
+    Map<String, byte[]> getAll(Collection<String> keys);
+
+    /**
+     * @return false if any of the values has not been stored
+     */
+    boolean putAll(Map<String, byte[]> values);
+    void removeAll(Collection<String> keys);
+
+    CompletableFuture<byte[]> getAsync(String key);
+    CompletableFuture<Void> putAsync(String key, byte[] value);
+    CompletableFuture<Void> removeAsync(String key);
+    CompletableFuture<Collection<String>> listKeysAsync();
+
 }
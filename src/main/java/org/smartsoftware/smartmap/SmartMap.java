@@ -1,21 +1,31 @@
 package org.smartsoftware.smartmap;
 
 import org.smartsoftware.smartmap.domain.communication.CommunicationChain;
-import org.smartsoftware.smartmap.domain.communication.request.GetRequest;
-import org.smartsoftware.smartmap.domain.communication.request.ListKeysRequest;
-import org.smartsoftware.smartmap.domain.communication.request.PutRequest;
-import org.smartsoftware.smartmap.domain.communication.request.RemoveRequest;
+import org.smartsoftware.smartmap.domain.communication.request.*;
 import org.smartsoftware.smartmap.domain.communication.response.IResponse;
+import org.smartsoftware.smartmap.domain.communication.response.KeysPageResponse;
 import org.smartsoftware.smartmap.domain.communication.response.ListResponse;
+import org.smartsoftware.smartmap.domain.communication.response.SuccessResponse;
 import org.smartsoftware.smartmap.domain.communication.response.ValueResponse;
+import org.smartsoftware.smartmap.domain.communication.response.ValuesResponse;
 import org.smartsoftware.smartmap.domain.data.ByteArrayValue;
+import org.smartsoftware.smartmap.domain.data.ChannelValue;
+import org.smartsoftware.smartmap.domain.data.IKey;
+import org.smartsoftware.smartmap.domain.data.IValue;
 import org.smartsoftware.smartmap.domain.data.StringKey;
 import org.smartsoftware.smartmap.request.manager.HashBasedRequestManager;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import java.util.Collection;
-import java.util.Collections;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Created by dkober on 25.4.2017 г..
@@ -23,35 +33,85 @@ import java.util.Collections;
 @Component
 public class SmartMap implements ISmartMap {
 
+    private static final int KEYS_PAGE_SIZE = 1000;
+    private static final byte[] EMPTY_VALUE = new byte[0];
+
     @Autowired
     private HashBasedRequestManager requestManager;
 
     @Override
     public byte[] get(String key) {
+        return requestManager.get(new StringKey(key)).flatMap(IValue::get).orElse(EMPTY_VALUE);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getAsync(String key) {
+        return requestManager
+                .onRequestAsync(new CommunicationChain(new GetRequest(new StringKey(key))))
+                .thenApply(communicationChain -> toValue(communicationChain.getResponse()));
+    }
+
+    private byte[] toValue(IResponse response) {
+        if (response instanceof ValueResponse) {
+            return ((ValueResponse) response).getValue().get().get();
+        }
+        else {
+            return EMPTY_VALUE;
+        }
+    }
+
+    @Override
+    public ByteBuffer getBuffer(String key) {
+        Optional<ByteBuffer> buffer = requestManager.get(new StringKey(key)).flatMap(IValue::getBuffer);
+        return buffer.isPresent() ? buffer.get() : ByteBuffer.allocate(0).asReadOnlyBuffer();
+    }
+
+    @Override
+    public boolean put(String key, byte[] value) {
+        return requestManager.put(new StringKey(key), new ByteArrayValue(value));
+    }
+
+    @Override
+    public boolean put(String key, InputStream value) {
+        return put(key, Channels.newChannel(value));
+    }
+
+    @Override
+    public boolean put(String key, ReadableByteChannel value) {
+        return requestManager.put(new StringKey(key), new ChannelValue(value));
+    }
+
+    @Override
+    public ReadableByteChannel openValue(String key) {
         CommunicationChain communicationChain = requestManager.onRequest(
-                new CommunicationChain(new GetRequest(new StringKey(key)))
+                new CommunicationChain(new OpenValueRequest(new StringKey(key)))
         );
         IResponse response = communicationChain.getResponse();
         if (response instanceof ValueResponse) {
-            return ((ValueResponse) response).getValue().get().get();
+            return ((ValueResponse) response).getValue().openChannel().get();
         }
         else {
-            return new byte[0];
+            return new ByteArrayValue(new byte[0]).openChannel().get();
         }
     }
 
     @Override
-    public void put(String key, byte[] value) {
-        requestManager.onRequest(
-                new CommunicationChain(new PutRequest(new StringKey(key), new ByteArrayValue(value)))
-        );
+    public CompletableFuture<Void> putAsync(String key, byte[] value) {
+        return requestManager
+                .onRequestAsync(new CommunicationChain(new PutRequest(new StringKey(key), new ByteArrayValue(value))))
+                .thenApply(communicationChain -> null);
     }
 
     @Override
     public void remove(String key) {
-        requestManager.onRequest(
-            new CommunicationChain(new RemoveRequest(new StringKey(key)))
-        );
+        requestManager.remove(new StringKey(key));
+    }
+
+    @Override
+    public CompletableFuture<Void> removeAsync(String key) {
+        return requestManager
+                .onRequestAsync(new CommunicationChain(new RemoveRequest(new StringKey(key))))
+                .thenApply(communicationChain -> null);
     }
 
     @Override
@@ -59,7 +119,22 @@ public class SmartMap implements ISmartMap {
         CommunicationChain communicationChain = requestManager.onRequest(
                 new CommunicationChain(new ListKeysRequest())
         );
-        IResponse response = communicationChain.getResponse();
+        return toKeys(communicationChain.getResponse());
+    }
+
+    @Override
+    public Stream<String> streamKeys(String prefix) {
+        return StreamSupport.stream(new KeysPageSpliterator(prefix), false);
+    }
+
+    @Override
+    public CompletableFuture<Collection<String>> listKeysAsync() {
+        return requestManager
+                .onRequestAsync(new CommunicationChain(new ListKeysRequest()))
+                .thenApply(communicationChain -> toKeys(communicationChain.getResponse()));
+    }
+
+    private Collection<String> toKeys(IResponse response) {
         if (response instanceof ListResponse) {
             return ((ListResponse) response).get();
         }
@@ -67,4 +142,79 @@ public class SmartMap implements ISmartMap {
             return Collections.emptySet();
         }
     }
+
+    private class KeysPageSpliterator extends Spliterators.AbstractSpliterator<String> {
+        private final String prefix;
+        private Iterator<String> page = Collections.emptyIterator();
+        private Optional<String> nextPageToken = Optional.empty();
+        private boolean isLastPage = false;
+
+        private KeysPageSpliterator(String prefix) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL);
+            this.prefix = prefix;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super String> action) {
+            while ( !page.hasNext() ) {
+                if (isLastPage) {
+                    return false;
+                }
+                readNextPage();
+            }
+            action.accept(page.next());
+            return true;
+        }
+
+        private void readNextPage() {
+            CommunicationChain communicationChain = requestManager.onRequest(
+                    new CommunicationChain(new ListKeysPageRequest(prefix, nextPageToken.orElse(null), KEYS_PAGE_SIZE))
+            );
+            IResponse response = communicationChain.getResponse();
+            if ( !(response instanceof KeysPageResponse) ) {
+                throw new IllegalStateException("Unable to read the keys starting with '" + prefix + "'.");
+            }
+            KeysPageResponse keysPage = (KeysPageResponse) response;
+            page = keysPage.get().iterator();
+            nextPageToken = keysPage.getNextPageToken();
+            isLastPage = !nextPageToken.isPresent();
+        }
+    }
+
+    @Override
+    public Map<String, byte[]> getAll(Collection<String> keys) {
+        List<IKey> requestKeys = new ArrayList<>(keys.size());
+        keys.forEach(key -> requestKeys.add(new StringKey(key)));
+        CommunicationChain communicationChain = requestManager.onRequest(
+                new CommunicationChain(new BatchGetRequest(requestKeys))
+        );
+        IResponse response = communicationChain.getResponse();
+        if (response instanceof ValuesResponse) {
+            Map<String, byte[]> values = new LinkedHashMap<>();
+            ((ValuesResponse) response).get().forEach((key, value) -> values.put(key, value.get().get()));
+            return values;
+        }
+        else {
+            return Collections.emptyMap();
+        }
+    }
+
+    @Override
+    public boolean putAll(Map<String, byte[]> values) {
+        List<PutRequest> putRequests = new ArrayList<>(values.size());
+        values.forEach((key, value) -> putRequests.add(new PutRequest(new StringKey(key), new ByteArrayValue(value))));
+        CommunicationChain communicationChain = requestManager.onRequest(
+                new CommunicationChain(new BatchPutRequest(putRequests))
+        );
+        return communicationChain.getResponse() instanceof SuccessResponse;
+    }
+
+    @Override
+    public void removeAll(Collection<String> keys) {
+        List<IKey> requestKeys = new ArrayList<>(keys.size());
+        keys.forEach(key -> requestKeys.add(new StringKey(key)));
+        requestManager.onRequest(
+                new CommunicationChain(new BatchRemoveRequest(requestKeys))
+        );
+    }
 }
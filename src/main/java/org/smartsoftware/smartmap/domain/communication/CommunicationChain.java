@@ -5,6 +5,7 @@ import org.smartsoftware.smartmap.domain.communication.response.*;
 import org.smartsoftware.smartmap.domain.data.IValue;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by dkober on 24.4.2017 г..
@@ -64,6 +65,18 @@ public class CommunicationChain {
         return this;
     }
 
+    public CommunicationChain withValuesResponse(Map<String, IValue> values) {
+        checkResponseSetUpAlready();
+        this.setResponse(new ValuesResponse(values));
+        return this;
+    }
+
+    public CommunicationChain withKeysPageResponse(List<String> keys, String nextPageToken) {
+        checkResponseSetUpAlready();
+        this.setResponse(new KeysPageResponse(keys, nextPageToken));
+        return this;
+    }
+
     private void checkResponseSetUpAlready() {
         if (this.response != null) {
             throw new IllegalStateException("A response for this communication chain is specified already.");
@@ -0,0 +1,23 @@
+package org.smartsoftware.smartmap.domain.communication.request;
+
+import org.smartsoftware.smartmap.domain.data.IKey;
+
+import java.util.List;
+
+public class BatchPutRequest implements IRequest {
+
+    private final List<PutRequest> requests;
+
+    public BatchPutRequest(List<PutRequest> requests) {
+        this.requests = requests;
+    }
+
+    @Override
+    public IKey getKey() {
+        return null;
+    }
+
+    public List<PutRequest> getRequests() {
+        return requests;
+    }
+}
@@ -0,0 +1,23 @@
+package org.smartsoftware.smartmap.domain.communication.request;
+
+import org.smartsoftware.smartmap.domain.data.IKey;
+
+import java.util.List;
+
+public class BatchRemoveRequest implements IRequest {
+
+    private final List<IKey> keys;
+
+    public BatchRemoveRequest(List<IKey> keys) {
+        this.keys = keys;
+    }
+
+    @Override
+    public IKey getKey() {
+        return null;
+    }
+
+    public List<IKey> getKeys() {
+        return keys;
+    }
+}
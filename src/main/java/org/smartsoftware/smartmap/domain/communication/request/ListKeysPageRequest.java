@@ -0,0 +1,39 @@
+package org.smartsoftware.smartmap.domain.communication.request;
+
+import org.smartsoftware.smartmap.domain.data.IKey;
+
+import java.util.Optional;
+
+/**
+ * Requests a page of the keys starting with the prefix in ascending order. The next page starts after the page token
+ * of the previous one.
+ */
+public class ListKeysPageRequest implements IRequest {
+
+    private final String prefix;
+    private final String pageToken;
+    private final int limit;
+
+    public ListKeysPageRequest(String prefix, String pageToken, int limit) {
+        this.prefix = prefix;
+        this.pageToken = pageToken;
+        this.limit = limit;
+    }
+
+    @Override
+    public IKey getKey() {
+        return null;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public Optional<String> getPageToken() {
+        return Optional.ofNullable(pageToken);
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,19 @@
+package org.smartsoftware.smartmap.domain.communication.request;
+
+import org.smartsoftware.smartmap.domain.data.IKey;
+
+/**
+ * Requests a channel reading the latest value of the key instead of the value itself, it is closed by the requester.
+ */
+public class OpenValueRequest implements IRequest {
+
+    private final IKey key;
+
+    public OpenValueRequest(IKey key) {
+        this.key = key;
+    }
+
+    public IKey getKey() {
+        return key;
+    }
+}
@@ -0,0 +1,27 @@
+package org.smartsoftware.smartmap.domain.communication.response;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+public class KeysPageResponse implements IResponse {
+
+    private final List<String> keys;
+    private final String nextPageToken;
+
+    public KeysPageResponse(List<String> keys, String nextPageToken) {
+        this.keys = new ArrayList<>(keys);
+        this.nextPageToken = nextPageToken;
+    }
+
+    public List<String> get() {
+        return new ArrayList<>(keys);
+    }
+
+    /**
+     * Absent for the last page.
+     */
+    public Optional<String> getNextPageToken() {
+        return Optional.ofNullable(nextPageToken);
+    }
+}
@@ -0,0 +1,19 @@
+package org.smartsoftware.smartmap.domain.communication.response;
+
+import org.smartsoftware.smartmap.domain.data.IValue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ValuesResponse implements IResponse {
+
+    private final Map<String, IValue> values = new LinkedHashMap<>();
+
+    public ValuesResponse(Map<String, IValue> values) {
+        this.values.putAll(values);
+    }
+
+    public Map<String, IValue> get() {
+        return new LinkedHashMap<>(values);
+    }
+}
@@ -0,0 +1,61 @@
+package org.smartsoftware.smartmap.domain.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A channel reading a value that is in memory already.
+ */
+class ByteBufferChannel implements ReadableByteChannel {
+
+    // a heap buffer is copied to a temporary direct one of the same size on a channel write, and the JDK keeps it
+    // per thread, so a large value is written in chunks to keep that copy small
+    private static final int WRITE_CHUNK_SIZE = 64 * 1024;
+
+    private final ByteBuffer buffer;
+    private volatile boolean open = true;
+
+    ByteBufferChannel(ByteBuffer buffer) {
+        this.buffer = buffer.duplicate();
+    }
+
+    static void writeFully(ByteBuffer source, WritableByteChannel target) throws IOException {
+        ByteBuffer chunk = source.duplicate();
+        int end = chunk.limit();
+        while (chunk.position() < end) {
+            chunk.limit(Math.min(end, chunk.position() + WRITE_CHUNK_SIZE));
+            while (chunk.hasRemaining()) {
+                target.write(chunk);
+            }
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer target) throws IOException {
+        if ( !open ) {
+            throw new ClosedChannelException();
+        }
+        if ( !buffer.hasRemaining() ) {
+            return -1;
+        }
+        int length = Math.min(buffer.remaining(), target.remaining());
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(slice.position() + length);
+        target.put(slice);
+        buffer.position(buffer.position() + length);
+        return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+}
@@ -0,0 +1,31 @@
+package org.smartsoftware.smartmap.domain.data;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+
+/**
+ * A value backed by a (possibly memory mapped) buffer. The buffer is handed out as a read-only view, so it is
+ * never copied unless the value is requested as a byte array.
+ */
+public class ByteBufferValue implements IValue {
+
+    private final ByteBuffer buffer;
+
+    public ByteBufferValue(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public Optional<byte[]> get() {
+        ByteBuffer view = buffer.duplicate();
+        byte[] data = new byte[view.remaining()];
+        view.get(data);
+        return Optional.of(data);
+    }
+
+    @Override
+    public Optional<ByteBuffer> getBuffer() {
+        return Optional.of(buffer.asReadOnlyBuffer());
+    }
+
+}
@@ -0,0 +1,86 @@
+package org.smartsoftware.smartmap.domain.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Optional;
+
+/**
+ * A value streamed from a channel, so it is never held in memory as a whole while it is written to a file or read
+ * from one. The channel could be consumed once only: a value requested as a byte array is read to the end and
+ * kept, which is what a shard storing the values in segments does, as it needs to know the length up front.
+ * The channel is closed by the one who has opened it.
+ */
+public class ChannelValue implements IValue {
+
+    private static final int COPY_CHUNK_SIZE = 64 * 1024;
+
+    private final ReadableByteChannel channel;
+    private byte[] data;
+
+    public ChannelValue(ReadableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public synchronized Optional<byte[]> get() {
+        if (data == null) {
+            try {
+                data = readAll();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return Optional.of(data);
+    }
+
+    @Override
+    public synchronized boolean isStreamed() {
+        return data == null;
+    }
+
+    @Override
+    public synchronized Optional<ReadableByteChannel> openChannel() {
+        return data == null ? Optional.of(channel) : IValue.super.openChannel();
+    }
+
+    @Override
+    public synchronized void writeTo(WritableByteChannel target) throws IOException {
+        if (data != null) {
+            IValue.super.writeTo(target);
+        }
+        else if (target instanceof FileChannel) {
+            // the transfer goes through the kernel if the source is a file too, otherwise through a small buffer
+            FileChannel file = (FileChannel) target;
+            long position = file.position();
+            long transferred;
+            while ((transferred = file.transferFrom(channel, position, Long.MAX_VALUE)) > 0) {
+                position += transferred;
+            }
+            file.position(position);
+        }
+        else {
+            ByteBuffer chunk = ByteBuffer.allocate(COPY_CHUNK_SIZE);
+            while (channel.read(chunk) >= 0 || chunk.position() > 0) {
+                chunk.flip();
+                target.write(chunk);
+                chunk.compact();
+            }
+        }
+    }
+
+    private byte[] readAll() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteBuffer chunk = ByteBuffer.allocate(COPY_CHUNK_SIZE);
+        while (channel.read(chunk) >= 0) {
+            output.write(chunk.array(), 0, chunk.position());
+            chunk.clear();
+        }
+        return output.toByteArray();
+    }
+}
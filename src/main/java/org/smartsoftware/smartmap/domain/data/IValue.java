@@ -1,5 +1,9 @@
 package org.smartsoftware.smartmap.domain.data;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Optional;
 
 /**
@@ -11,4 +15,26 @@ public interface IValue {
         return Optional.empty();
     }
 
+    default Optional<ByteBuffer> getBuffer() {
+        return get().map(data -> ByteBuffer.wrap(data).asReadOnlyBuffer());
+    }
+
+    /**
+     * Whether the value is read from a channel, so its length is not known until it is read to the end.
+     */
+    default boolean isStreamed() {
+        return false;
+    }
+
+    default Optional<ReadableByteChannel> openChannel() {
+        return getBuffer().map(ByteBufferChannel::new);
+    }
+
+    default void writeTo(WritableByteChannel target) throws IOException {
+        Optional<ByteBuffer> buffer = getBuffer();
+        if (buffer.isPresent()) {
+            ByteBufferChannel.writeFully(buffer.get(), target);
+        }
+    }
+
 }
@@ -4,15 +4,38 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.smartsoftware.smartmap.domain.communication.CommunicationChain;
 import org.smartsoftware.smartmap.domain.communication.request.*;
+import org.smartsoftware.smartmap.domain.data.ByteArrayValue;
+import org.smartsoftware.smartmap.domain.data.ChannelValue;
 import org.smartsoftware.smartmap.domain.data.IKey;
 import org.smartsoftware.smartmap.domain.data.IValue;
+import org.smartsoftware.smartmap.domain.data.StringKey;
+import org.smartsoftware.smartmap.request.manager.datasource.CommittedEntry;
+import org.smartsoftware.smartmap.request.manager.datasource.IShardDAO;
+import org.smartsoftware.smartmap.request.manager.metrics.ShardMetrics;
+import org.smartsoftware.smartmap.request.manager.metrics.Stage;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
-import java.nio.file.Paths;
-import java.sql.Timestamp;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
 
 /**
  * Created by Dmitry on 23.04.2017.
@@ -22,44 +45,370 @@ public class HashBasedRequestManager implements IRequestManager {
 
     private static final Logger LOG = LoggerFactory.getLogger(HashBasedRequestManager.class);
 
+    private static final long TOMBSTONE_RETENTION_MS = 60_000;
+
+    private static final int MIGRATION_LOCK_STRIPES = 64;
+
+    private static final long SHUTDOWN_TIMEOUT_MS = 10_000;
+
     private final List<Shard> shards;
+    private int virtualNodesPerShard = 128;
+    private volatile ShardRing ring;
+    private volatile Migration migration;
+    private volatile CompletableFuture<Void> rebalancing = CompletableFuture.completedFuture(null);
+    private volatile boolean isShuttingDown = false;
+
+    private int gcBatchSize = 256;
+    private long gcMinDelayMs = 50;
+    private long gcMaxDelayMs = 2000;
+    private HouseKeeper houseKeeper;
+
+    private int initThreads = Runtime.getRuntime().availableProcessors();
+    private boolean indexCheckpoints = false;
+
+    // the values up to this size are kept in their register entries, a zero keeps every value in a file
+    private int inlineValueThreshold = 0;
 
     HashBasedRequestManager(List<Shard> shards) {
-        this.shards = shards;
+        this.shards = new CopyOnWriteArrayList<>(shards);
+    }
+
+    public void setVirtualNodesPerShard(int virtualNodesPerShard) {
+        this.virtualNodesPerShard = virtualNodesPerShard;
+    }
+
+    public void setGcBatchSize(int gcBatchSize) {
+        this.gcBatchSize = gcBatchSize;
+    }
+
+    public void setGcMinDelayMs(long gcMinDelayMs) {
+        this.gcMinDelayMs = gcMinDelayMs;
+    }
+
+    public void setGcMaxDelayMs(long gcMaxDelayMs) {
+        this.gcMaxDelayMs = gcMaxDelayMs;
+    }
+
+    public void setInitThreads(int initThreads) {
+        this.initThreads = initThreads;
+    }
+
+    public void setIndexCheckpoints(boolean indexCheckpoints) {
+        this.indexCheckpoints = indexCheckpoints;
+    }
+
+    public void setInlineValueThreshold(int inlineValueThreshold) {
+        this.inlineValueThreshold = inlineValueThreshold;
     }
 
     @PostConstruct
     public void init() {
         LOG.trace("Initializing a Request Manager...");
 
+        initShards();
+        checkRingMembers();
+        ring = new ShardRing(shards, virtualNodesPerShard);
+        writeRingMembers(shards);
+
         scheduleHouseKeeper();
+        moveMisplacedKeys();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        LOG.trace("Shutting a Request Manager down...");
+        if (houseKeeper != null) {
+            houseKeeper.shutdown();
+        }
+        stopRebalancing();
+        shards.forEach(Shard::stopExecutor);
+        if (indexCheckpoints) {
+            checkpointIndexes();
+        }
+        shards.forEach(shard -> shard.getFileSystem().flush());
+        shards.forEach(shard -> shard.getMetrics().unregisterMBean());
+    }
+
+    /**
+     * The metrics of the shards by the shard path, the same ones the shard MBeans expose.
+     */
+    public Map<String, ShardMetrics> getMetrics() {
+        Map<String, ShardMetrics> metrics = new LinkedHashMap<>();
+        shards.forEach(shard -> metrics.put(shard.getPath(), shard.getMetrics()));
+        return metrics;
+    }
 
-        shards.stream().forEach(shard -> {
-            shard.getFileSystem().init();
-            shard.getDao().init();
+    /**
+     * Initializes the shards in parallel, so a start takes as long as the largest shard rather than all of them.
+     */
+    private void initShards() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService initExecutor = Executors.newFixedThreadPool(Math.max(1, Math.min(initThreads, shards.size())), runnable -> {
+            Thread thread = new Thread(runnable, "shard-init-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
         });
+        try {
+            CompletableFuture.allOf(shards.stream()
+                    .map(shard -> CompletableFuture.runAsync(() -> initShard(shard), initExecutor))
+                    .toArray(CompletableFuture[]::new)
+            ).join();
+        }
+        catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+        finally {
+            initExecutor.shutdown();
+        }
     }
 
-    private void scheduleHouseKeeper() {
-        Timer timer = new Timer();
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                performGC();
+    /**
+     * Makes sure every shard the keys have been moved to by a previous run is configured, the keys it holds
+     * would be lost otherwise.
+     */
+    private void checkRingMembers() {
+        Set<String> configuredShards = shards.stream().map(Shard::getName).collect(Collectors.toSet());
+        for (Shard shard : shards) {
+            for (String member : shard.readRingMembers()) {
+                if ( !member.isEmpty() && !configuredShards.contains(member) ) {
+                    throw new IllegalStateException("The '" + member + "' shard is a part of the ring of the '" + shard.getPath()
+                            + "' shard, but it is not configured. A shard added at runtime has to be configured as well.");
+                }
             }
-        }, 1000, 2000);
+        }
+    }
+
+    private void writeRingMembers(List<Shard> ringShards) {
+        List<String> shardNames = ringShards.stream().map(Shard::getName).sorted().collect(Collectors.toList());
+        ringShards.forEach(shard -> shard.writeRingMembers(shardNames));
+    }
+
+    /**
+     * Moves the keys a shard holds but the ring routes to another one: the keys of the shards written before
+     * the ring, when the keys were routed by their hash modulo the number of shards, and the keys a migration
+     * interrupted by a shutdown or a crash has not moved yet. They are moved in the background the same way
+     * the keys of an added shard are, until a key is moved it is still read from the shard it has been found in.
+     */
+    private void moveMisplacedKeys() {
+        // the moved keys keep their versions, the versions handed out afterwards have to follow all of them
+        long lastVersion = shards.stream().mapToLong(Shard::getLastVersion).max().orElse(0);
+        shards.forEach(shard -> shard.advanceVersionTo(lastVersion));
+
+        if ( !hasMisplacedKeys() ) {
+            return;
+        }
+        Migration newMigration = Migration.toRing(shards, ring);
+        synchronized (this) {
+            migration = newMigration;
+        }
+        LOG.info("Moving the keys to the shards the ring routes them to...");
+        rebalancing = startRebalance(new ArrayList<>(shards), newMigration);
+    }
+
+    private boolean hasMisplacedKeys() {
+        for (Shard shard : shards) {
+            for (String key : shard.getIndex().keys()) {
+                IKey shardKey = new StringKey(key);
+                if (ring.shardFor(shardKey) != shard && shard.getIndex().getLatestPath(shardKey).isPresent()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void initShard(Shard shard) {
+        shard.getFileSystem().init();
+        shard.getDao().init();
+        if ( !indexCheckpoints || !shard.getIndex().loadCheckpoint(shard.getIndexCheckpointPath(), shard.getDao()) ) {
+            shard.getIndex().load(shard.getDao());
+        }
+        shard.advanceVersionTo(shard.getIndex().getLastVersion());
+        shard.startExecutor();
+        shard.getFileSystem().bindMetrics(shard.getMetrics());
+        shard.getMetrics().registerMBean();
+    }
+
+    /**
+     * Adds a shard to the ring while the requests keep being served. Only the keys the new shard takes over are
+     * moved to it, in the background: until a key is moved it is still read from its previous shard, while new
+     * versions of it are written to the new one.
+     */
+    public CompletableFuture<Void> addShard(Shard newShard) {
+        List<Shard> sourceShards;
+        Migration newMigration;
+        synchronized (this) {
+            if (migration != null) {
+                throw new IllegalStateException("The keys are being moved to " + migration.describeTarget() + " already.");
+            }
+            initShard(newShard);
+            // the moved versions keep their versions, the new ones written to the shard meanwhile have to follow them
+            shards.forEach(shard -> newShard.advanceVersionTo(shard.getLastVersion()));
+
+            sourceShards = new ArrayList<>(shards);
+            List<Shard> targetShards = new ArrayList<>(shards);
+            targetShards.add(newShard);
+            ShardRing targetRing = new ShardRing(targetShards, virtualNodesPerShard);
+
+            // a restart in the middle of the migration resumes it, once the shard is configured
+            writeRingMembers(targetShards);
+
+            newMigration = Migration.toShard(ring, targetRing, newShard);
+            migration = newMigration;
+            shards.add(newShard);
+            ring = targetRing;
+            houseKeeper.schedule(newShard);
+            houseKeeper.submit(newShard, () -> reconcile(newShard));
+        }
+
+        LOG.trace("Moving keys to the '{}' shard...", newShard.getPath());
+        CompletableFuture<Void> newRebalancing = startRebalance(sourceShards, newMigration);
+        rebalancing = newRebalancing;
+        return newRebalancing;
     }
 
-    private void performGC() {
-        LOG.trace("A GC is started...");
-        shards.stream().forEach(shard -> {
-            Map<Integer, String> houseKeepingCandidates = shard.getDao().getAllRemovedAndCommittedEntriesButLatest();
-            houseKeepingCandidates.values().stream().forEach(path -> shard.getFileSystem().removeFile(Paths.get(path)));
-            shard.getDao().removeEntries(houseKeepingCandidates.keySet());
+    /**
+     * The keys being moved in the background, by the start up or by the last added shard. It is completed once
+     * all of them are moved, or once the manager is shut down in the middle, the rest is moved on the next start.
+     */
+    public CompletableFuture<Void> getRebalancing() {
+        return rebalancing;
+    }
 
+    private CompletableFuture<Void> startRebalance(List<Shard> sourceShards, Migration activeMigration) {
+        return CompletableFuture.runAsync(() -> rebalance(sourceShards, activeMigration), task -> {
+            Thread rebalancer = new Thread(task, "shard-rebalancer");
+            rebalancer.setDaemon(true);
+            rebalancer.start();
         });
     }
 
+    private void rebalance(List<Shard> sourceShards, Migration activeMigration) {
+        int movedKeys = 0;
+        try {
+            for (Shard sourceShard : sourceShards) {
+                for (String key : sourceShard.getIndex().keys()) {
+                    if (isShuttingDown) {
+                        LOG.info("Moved {} keys to {} before the shutdown, the rest is moved on the next start.", movedKeys, activeMigration.describeTarget());
+                        return;
+                    }
+                    IKey sourceKey = new StringKey(key);
+                    if ( !activeMigration.isMoving(sourceKey) || activeMigration.targetShardFor(sourceKey) == sourceShard ) {
+                        continue;
+                    }
+                    try {
+                        if (moveKey(sourceKey, sourceShard, activeMigration)) {
+                            movedKeys++;
+                        }
+                    }
+                    catch (RuntimeException e) {
+                        LOG.error("Unable to move the '{}' key to {}.", new Object[] {key, activeMigration.describeTarget()}, e);
+                    }
+                }
+            }
+        }
+        finally {
+            migration = null;
+        }
+        LOG.info("Moved {} keys to {}.", movedKeys, activeMigration.describeTarget());
+    }
+
+    private boolean moveKey(IKey key, Shard sourceShard, Migration activeMigration) {
+        ReentrantLock keyLock = activeMigration.lockFor(key);
+        keyLock.lock();
+        try {
+            return moveKey(key, sourceShard, activeMigration.targetShardFor(key));
+        }
+        finally {
+            keyLock.unlock();
+        }
+    }
+
+    /**
+     * Stops moving the keys, the ones left are found misplaced and moved on the next start.
+     */
+    private void stopRebalancing() {
+        isShuttingDown = true;
+        try {
+            rebalancing.get(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException | TimeoutException e) {
+            LOG.error("The keys have not stopped being moved in time.", e);
+        }
+    }
+
+    private boolean moveKey(IKey key, Shard sourceShard, Shard targetShard) {
+        Optional<CommittedEntry> entry = sourceShard.getIndex().getLatestEntry(key);
+        if ( !entry.isPresent() ) {
+            return false;
+        }
+
+        // a newer version or a remove has reached the target shard already
+        if ( !targetShard.getIndex().hasVersionOf(key) && !copyValue(key, entry.get(), sourceShard, targetShard) ) {
+            LOG.error("Unable to move the '{}' key to the '{}' shard.", key.get(), targetShard.getPath());
+            return false;
+        }
+        return removeFrom(sourceShard, key);
+    }
+
+    private boolean copyValue(IKey key, CommittedEntry entry, Shard sourceShard, Shard targetShard) {
+        if (Shard.isInline(entry.getPath())) {
+            Optional<byte[]> inlineValue = sourceShard.getDao().getInlineValue(key, entry.getPath());
+            return inlineValue.isPresent() && putInto(targetShard, key, new ByteArrayValue(inlineValue.get()), entry::getVersion);
+        }
+
+        Optional<ReadableByteChannel> source = sourceShard.getFileSystem().openValueFrom(entry.getPath());
+        if ( !source.isPresent() ) {
+            return false;
+        }
+        try (ReadableByteChannel channel = source.get()) {
+            return putInto(targetShard, key, new ChannelValue(channel), entry::getVersion);
+        }
+        catch (IOException e) {
+            LOG.error("Unable to close the '{}' value of the '{}' shard.", new Object[] {entry.getPath(), sourceShard.getPath()}, e);
+            return false;
+        }
+    }
+
+    private void scheduleHouseKeeper() {
+        houseKeeper = new HouseKeeper(gcBatchSize, gcMinDelayMs, gcMaxDelayMs, this::afterGCSweep);
+        shards.forEach(houseKeeper::schedule);
+        shards.forEach(shard -> houseKeeper.submit(shard, () -> reconcile(shard)));
+    }
+
+    /**
+     * Removes the values a previous run has left without register entries. It is done in the background,
+     * the shard serves requests meanwhile.
+     */
+    private void reconcile(Shard shard) {
+        long startedAt = System.nanoTime();
+        int removedValues = shard.getFileSystem().reconcile(new ShardLocationRegister(shard));
+        LOG.trace("Removed {} orphan values of the '{}' shard in {} ms.",
+                new Object[] {removedValues, shard.getPath(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt)});
+    }
+
+    /**
+     * Writes the indexes down once the shards have stopped, so the next start does not read the whole registers.
+     */
+    private void checkpointIndexes() {
+        boolean isStopped = houseKeeper == null || houseKeeper.awaitTermination(SHUTDOWN_TIMEOUT_MS);
+        for (Shard shard : shards) {
+            if ( !isStopped || !shard.awaitExecutor(SHUTDOWN_TIMEOUT_MS) ) {
+                LOG.error("The '{}' shard has not stopped in time, its index is not checkpointed.", shard.getPath());
+                continue;
+            }
+            shard.getIndex().writeCheckpoint(shard.getIndexCheckpointPath(), shard.getDao().getMaxEntryId());
+        }
+    }
+
+    private void afterGCSweep(Shard shard) {
+        shard.getIndex().purgeTombstonesOlderThan(Instant.now().toEpochMilli() - TOMBSTONE_RETENTION_MS);
+        shard.getFileSystem().compact(new ShardLocationRegister(shard));
+    }
+
     @Override
     public CommunicationChain onRequest(CommunicationChain communicationChain) {
         IRequest request = communicationChain.getRequest();
@@ -69,33 +418,149 @@ public class HashBasedRequestManager implements IRequestManager {
             Shard shard = identifyShardFor(requestKey);
             LOG.trace("Processing a Put request for the '{}' key on the '{}' shard.", requestKey.get(), shard.getPath());
 
-            return processPutRequest(communicationChain, requestKey, shard, (PutRequest) request);
+            return shard.process(Stage.PUT, () -> processPutRequest(communicationChain, requestKey, shard, (PutRequest) request));
         }
         else if (request instanceof GetRequest) {
             IKey requestKey = request.getKey();
             Shard shard = identifyShardFor(requestKey);
             LOG.trace("Processing a Get request for the '{}' key on the '{}' shard.", requestKey.get(), shard.getPath());
 
-            return processGetRequest(communicationChain, requestKey, shard);
+            return shard.process(Stage.GET, () -> processGetRequest(communicationChain, requestKey, shard));
+        }
+        else if (request instanceof OpenValueRequest) {
+            IKey requestKey = request.getKey();
+            Shard shard = identifyShardFor(requestKey);
+            LOG.trace("Processing an OpenValue request for the '{}' key on the '{}' shard.", requestKey.get(), shard.getPath());
+
+            return shard.process(Stage.GET, () -> processOpenValueRequest(communicationChain, requestKey, shard));
         }
         else if (request instanceof RemoveRequest) {
             IKey requestKey = request.getKey();
             Shard shard = identifyShardFor(requestKey);
             LOG.trace("Processing a Remove request for the '{}' key on the '{}' shard.", requestKey.get(), shard.getPath());
 
-            return processRemoveRequest(communicationChain, requestKey, shard);
+            return shard.process(Stage.REMOVE, () -> processRemoveRequest(communicationChain, requestKey, shard));
         }
         else if (request instanceof ListKeysRequest) {
             LOG.trace("Processing a ListKey request.");
             return processListKeysRequest(communicationChain);
         }
+        else if (request instanceof ListKeysPageRequest) {
+            LOG.trace("Processing a ListKeysPage request.");
+            return processListKeysPageRequestAsync(communicationChain, (ListKeysPageRequest) request).join();
+        }
+        else if (request instanceof BatchPutRequest) {
+            LOG.trace("Processing a batch Put request.");
+            return processBatchPutRequest(communicationChain, (BatchPutRequest) request);
+        }
+        else if (request instanceof BatchGetRequest) {
+            LOG.trace("Processing a batch Get request.");
+            return processBatchGetRequest(communicationChain, (BatchGetRequest) request);
+        }
+        else if (request instanceof BatchRemoveRequest) {
+            LOG.trace("Processing a batch Remove request.");
+            return processBatchRemoveRequest(communicationChain, (BatchRemoveRequest) request);
+        }
         else {
             return processUnknownRequest(communicationChain);
         }
     }
 
+    /*
+     * The lean paths the SmartMap takes for a single key: the key is processed right away, with no communication
+     * chain, request and response built around it, so a call allocates little beyond the value itself.
+     */
+
+    public Optional<IValue> get(IKey key) {
+        Shard shard = identifyShardFor(key);
+        long startedAt = shard.beginRequest();
+        try {
+            return getLatestValue(shard, key, HashBasedRequestManager::readValue);
+        }
+        finally {
+            shard.endRequest(Stage.GET, startedAt);
+        }
+    }
+
+    public boolean put(IKey key, IValue value) {
+        Shard shard = identifyShardFor(key);
+        long startedAt = shard.beginRequest();
+        try {
+            return putInto(shard, key, value, shard::nextVersion);
+        }
+        finally {
+            shard.endRequest(Stage.PUT, startedAt);
+        }
+    }
+
+    public boolean remove(IKey key) {
+        Shard shard = identifyShardFor(key);
+        long startedAt = shard.beginRequest();
+        try {
+            return removeKey(shard, key);
+        }
+        finally {
+            shard.endRequest(Stage.REMOVE, startedAt);
+        }
+    }
+
+    @Override
+    public CompletableFuture<CommunicationChain> onRequestAsync(CommunicationChain communicationChain) {
+        IRequest request = communicationChain.getRequest();
+
+        if (request instanceof PutRequest || request instanceof GetRequest || request instanceof OpenValueRequest || request instanceof RemoveRequest) {
+            Shard shard = identifyShardFor(request.getKey());
+            return CompletableFuture.supplyAsync(() -> onRequest(communicationChain), shard.getExecutor());
+        }
+        else if (request instanceof ListKeysRequest) {
+            LOG.trace("Processing an asynchronous ListKey request.");
+            return processListKeysRequestAsync(communicationChain);
+        }
+        else if (request instanceof ListKeysPageRequest) {
+            LOG.trace("Processing an asynchronous ListKeysPage request.");
+            return processListKeysPageRequestAsync(communicationChain, (ListKeysPageRequest) request);
+        }
+        else if (request instanceof BatchPutRequest) {
+            LOG.trace("Processing an asynchronous batch Put request.");
+            return processBatchPutRequestAsync(communicationChain, (BatchPutRequest) request);
+        }
+        else if (request instanceof BatchGetRequest) {
+            LOG.trace("Processing an asynchronous batch Get request.");
+            return processBatchGetRequestAsync(communicationChain, (BatchGetRequest) request);
+        }
+        else if (request instanceof BatchRemoveRequest) {
+            LOG.trace("Processing an asynchronous batch Remove request.");
+            return processBatchRemoveRequestAsync(communicationChain, (BatchRemoveRequest) request);
+        }
+        else {
+            return CompletableFuture.completedFuture(processUnknownRequest(communicationChain));
+        }
+    }
+
     private Shard identifyShardFor(IKey requestKey) {
-        return shards.get(getHashCodeFrom(requestKey) % shards.size());
+        return ring.shardFor(requestKey);
+    }
+
+    private <T> Map<Shard, List<T>> groupByShard(List<T> items, Function<T, IKey> keyExtractor) {
+        Map<Shard, List<T>> itemsByShard = new LinkedHashMap<>();
+        for (T item : items) {
+            itemsByShard.computeIfAbsent(identifyShardFor(keyExtractor.apply(item)), shard -> new ArrayList<>()).add(item);
+        }
+        return itemsByShard;
+    }
+
+    private <T, R> CompletableFuture<List<R>> fanOut(Map<Shard, List<T>> itemsByShard, Stage stage, BiFunction<Shard, List<T>, R> processor) {
+        List<CompletableFuture<R>> futures = new ArrayList<>(itemsByShard.size());
+        itemsByShard.forEach((shard, items) ->
+                futures.add(CompletableFuture.supplyAsync(() -> shard.process(stage, () -> processor.apply(shard, items)), shard.getExecutor()))
+        );
+        return allOf(futures);
+    }
+
+    private static <R> CompletableFuture<List<R>> allOf(List<CompletableFuture<R>> futures) {
+        return CompletableFuture
+                .allOf(futures.toArray(new CompletableFuture[futures.size()]))
+                .thenApply(ignored -> futures.stream().map(CompletableFuture::join).collect(Collectors.toList()));
     }
 
     private CommunicationChain processUnknownRequest(CommunicationChain communicationChain) {
@@ -104,79 +569,429 @@ public class HashBasedRequestManager implements IRequestManager {
     }
 
     private CommunicationChain processListKeysRequest(CommunicationChain communicationChain) {
-        List<String> allLatestCommittedKeys = new LinkedList<>();
+        Collection<String> allLatestCommittedKeys = migration == null ? new LinkedList<>() : new LinkedHashSet<>();
         for (Shard shardItem : shards) {
-            allLatestCommittedKeys.addAll(shardItem.getDao().getAllLatestCommittedKeys());
+            allLatestCommittedKeys.addAll(shardItem.process(Stage.LIST_KEYS, () -> shardItem.getDao().getAllLatestCommittedKeys()));
+        }
+        return communicationChain.withListResponse(new LinkedList<>(allLatestCommittedKeys));
+    }
+
+    private CompletableFuture<CommunicationChain> processListKeysRequestAsync(CommunicationChain communicationChain) {
+        List<CompletableFuture<List<String>>> futures = shards.stream()
+                .map(shard -> CompletableFuture.supplyAsync(() -> shard.process(Stage.LIST_KEYS, () -> shard.getDao().getAllLatestCommittedKeys()), shard.getExecutor()))
+                .collect(Collectors.toList());
+        return allOf(futures).thenApply(shardKeys -> {
+            // a key being moved to a new shard could be found in both of them for a moment
+            Collection<String> allLatestCommittedKeys = migration == null ? new LinkedList<>() : new LinkedHashSet<>();
+            shardKeys.forEach(allLatestCommittedKeys::addAll);
+            return communicationChain.withListResponse(new LinkedList<>(allLatestCommittedKeys));
+        });
+    }
+
+    private CompletableFuture<CommunicationChain> processListKeysPageRequestAsync(CommunicationChain communicationChain, ListKeysPageRequest pageRequest) {
+        int limit = pageRequest.getLimit();
+        List<CompletableFuture<List<String>>> futures = shards.stream()
+                .map(shard -> CompletableFuture.supplyAsync(() -> shard.process(Stage.LIST_KEYS, () ->
+                        shard.getDao().getLatestCommittedKeys(pageRequest.getPrefix(), pageRequest.getPageToken(), limit)
+                ), shard.getExecutor()))
+                .collect(Collectors.toList());
+        return allOf(futures).thenApply(shardPages -> {
+            // every shard pages in the same order, so the first keys of the merged pages are the first keys overall
+            TreeSet<String> mergedKeys = new TreeSet<>(IShardDAO.KEY_ORDER);
+            boolean hasMore = false;
+            for (List<String> shardPage : shardPages) {
+                mergedKeys.addAll(shardPage);
+                hasMore |= shardPage.size() == limit;
+            }
+
+            List<String> page = new ArrayList<>(Math.min(limit, mergedKeys.size()));
+            Iterator<String> keys = mergedKeys.iterator();
+            while (keys.hasNext() && page.size() < limit) {
+                page.add(keys.next());
+            }
+            hasMore |= keys.hasNext();
+            String nextPageToken = hasMore && !page.isEmpty() ? page.get(page.size() - 1) : null;
+            return communicationChain.withKeysPageResponse(page, nextPageToken);
+        });
+    }
+
+    private CommunicationChain processBatchPutRequest(CommunicationChain communicationChain, BatchPutRequest batchPutRequest) {
+        boolean allPut = true;
+        for (Map.Entry<Shard, List<PutRequest>> shardRequests : groupByShard(batchPutRequest.getRequests(), PutRequest::getKey).entrySet()) {
+            Shard shard = shardRequests.getKey();
+            allPut &= shard.process(Stage.BATCH_PUT, () -> processShardPutRequests(shard, shardRequests.getValue()));
+        }
+        return allPut ? communicationChain.withSuccessResponse() : communicationChain.withFailedResponse();
+    }
+
+    private CompletableFuture<CommunicationChain> processBatchPutRequestAsync(CommunicationChain communicationChain, BatchPutRequest batchPutRequest) {
+        return fanOut(groupByShard(batchPutRequest.getRequests(), PutRequest::getKey), Stage.BATCH_PUT, this::processShardPutRequests).thenApply(results ->
+                results.stream().allMatch(Boolean::booleanValue) ? communicationChain.withSuccessResponse() : communicationChain.withFailedResponse()
+        );
+    }
+
+    private boolean processShardPutRequests(Shard shard, List<PutRequest> putRequests) {
+        List<IKey> keys = new ArrayList<>(putRequests.size());
+        putRequests.forEach(putRequest -> keys.add(putRequest.getKey()));
+        return shard.withKeysLocked(keys, () -> putBatchLocked(shard, putRequests));
+    }
+
+    private boolean putBatchLocked(Shard shard, List<PutRequest> putRequests) {
+        // the keys of a batch are distinct, so they could share a single version
+        long version = shard.nextVersion();
+        Map<IKey, String> filePaths = new LinkedHashMap<>();
+        Map<IKey, byte[]> inlineValues = new HashMap<>();
+        for (PutRequest putRequest : putRequests) {
+            Optional<byte[]> inlineValue = inlineValueOf(putRequest.getValue());
+            Optional<String> location = inlineValue.isPresent()
+                    ? Optional.of(shard.newInlineLocation())
+                    : shard.getFileSystem().newLocationFor(putRequest.getKey(), putRequest.getValue());
+            if ( !location.isPresent() ) {
+                LOG.error("Unable to allocate a location for the '{}' key.", putRequest.getKey().get());
+                filePaths.values().forEach(shard::removeValue);
+                return false;
+            }
+            filePaths.put(putRequest.getKey(), location.get());
+            inlineValue.ifPresent(value -> inlineValues.put(putRequest.getKey(), value));
+        }
+
+        boolean areUpdatingRecordsAdded = shard.getDao().addUpdatingEntries(version, filePaths, inlineValues);
+        if ( !areUpdatingRecordsAdded ) {
+            LOG.error("Unable to create write ahead log records for a batch of {} keys.", filePaths.size());
+            filePaths.values().forEach(shard::removeValue);
+            return false;
+        }
+
+        Map<IKey, String> writtenKeys = new LinkedHashMap<>();
+        for (PutRequest putRequest : putRequests) {
+            if (inlineValues.containsKey(putRequest.getKey()) || shard.getFileSystem().createNewFileWithValue(filePaths.get(putRequest.getKey()), putRequest.getValue())) {
+                writtenKeys.put(putRequest.getKey(), filePaths.get(putRequest.getKey()));
+            }
+            else {
+                LOG.error("Unable to create a new file for the '{}' key.", putRequest.getKey().get());
+                shard.removeValue(filePaths.get(putRequest.getKey()));
+            }
+        }
+
+        boolean entriesCommitted = shard.getDao().commitEntries(version, writtenKeys);
+        if ( !entriesCommitted ) {
+            LOG.error("Unable to commit write ahead log records for a batch of {} keys.", writtenKeys.size());
+            return false;
+        }
+        writtenKeys.forEach((key, filePath) -> shard.getIndex().onCommit(key, version, filePath));
+
+        return writtenKeys.size() == putRequests.size();
+    }
+
+    private CommunicationChain processBatchGetRequest(CommunicationChain communicationChain, BatchGetRequest batchGetRequest) {
+        Map<String, IValue> values = new LinkedHashMap<>();
+        for (Map.Entry<Shard, List<IKey>> shardKeys : groupByShard(batchGetRequest.getKeys(), Function.identity()).entrySet()) {
+            Shard shard = shardKeys.getKey();
+            values.putAll(shard.process(Stage.BATCH_GET, () -> processShardGetRequests(shard, shardKeys.getValue())));
+        }
+        return communicationChain.withValuesResponse(values);
+    }
+
+    private CompletableFuture<CommunicationChain> processBatchGetRequestAsync(CommunicationChain communicationChain, BatchGetRequest batchGetRequest) {
+        return fanOut(groupByShard(batchGetRequest.getKeys(), Function.identity()), Stage.BATCH_GET, this::processShardGetRequests).thenApply(shardValues -> {
+            Map<String, IValue> values = new LinkedHashMap<>();
+            shardValues.forEach(values::putAll);
+            return communicationChain.withValuesResponse(values);
+        });
+    }
+
+    private Map<String, IValue> processShardGetRequests(Shard shard, List<IKey> keys) {
+        Map<String, IValue> values = new LinkedHashMap<>();
+        for (IKey key : keys) {
+            getLatestValue(shard, key, HashBasedRequestManager::readValue).ifPresent(value -> values.put(String.valueOf(key.get()), value));
         }
-        return communicationChain.withListResponse(allLatestCommittedKeys);
+        return values;
+    }
+
+    private CommunicationChain processBatchRemoveRequest(CommunicationChain communicationChain, BatchRemoveRequest batchRemoveRequest) {
+        boolean allRemoved = true;
+        for (Map.Entry<Shard, List<IKey>> shardKeys : groupByShard(batchRemoveRequest.getKeys(), Function.identity()).entrySet()) {
+            Shard shard = shardKeys.getKey();
+            allRemoved &= shard.process(Stage.BATCH_REMOVE, () -> processShardRemoveRequests(shard, shardKeys.getValue()));
+        }
+        return allRemoved ? communicationChain.withSuccessResponse() : communicationChain.withFailedResponse();
+    }
+
+    private CompletableFuture<CommunicationChain> processBatchRemoveRequestAsync(CommunicationChain communicationChain, BatchRemoveRequest batchRemoveRequest) {
+        return fanOut(groupByShard(batchRemoveRequest.getKeys(), Function.identity()), Stage.BATCH_REMOVE, this::processShardRemoveRequests).thenApply(results ->
+                results.stream().allMatch(Boolean::booleanValue) ? communicationChain.withSuccessResponse() : communicationChain.withFailedResponse()
+        );
+    }
+
+    private boolean processShardRemoveRequests(Shard shard, List<IKey> keys) {
+        if (migration != null) {
+            // the keys being moved have to be removed from both the shards one by one
+            boolean allRemoved = true;
+            for (IKey key : keys) {
+                allRemoved &= removeKey(shard, key);
+            }
+            return allRemoved;
+        }
+
+        List<IKey> existingKeys = new ArrayList<>(keys.size());
+        keys.stream().filter(key -> shard.getIndex().getLatestPath(key).isPresent()).forEach(existingKeys::add);
+        if (existingKeys.isEmpty()) {
+            return true;
+        }
+
+        return removeExisting(shard, existingKeys);
     }
 
     private CommunicationChain processRemoveRequest(CommunicationChain communicationChain, IKey requestKey, Shard shard) {
-        Optional<String> filePath = shard.getDao().getCommittedPathFor(requestKey);
-        if ( !filePath.isPresent() ) {
-            return communicationChain.withSuccessResponse();
+        return removeKey(shard, requestKey) ? communicationChain.withSuccessResponse() : communicationChain.withFailedResponse();
+    }
+
+    private boolean removeKey(Shard shard, IKey key) {
+        Migration activeMigration = migration;
+        if (activeMigration == null || !activeMigration.isMoving(key)) {
+            return removeFrom(shard, key);
         }
-        boolean entriesMarkedAsRemoved = shard.getDao().markEntriesAsRemoved(requestKey);
+
+        ReentrantLock keyLock = activeMigration.lockFor(key);
+        keyLock.lock();
+        try {
+            return removeFrom(activeMigration.sourceShardFor(key), key) && removeFrom(activeMigration.targetShardFor(key), key);
+        }
+        finally {
+            keyLock.unlock();
+        }
+    }
+
+    private boolean removeFrom(Shard shard, IKey requestKey) {
+        if ( !shard.getIndex().getLatestPath(requestKey).isPresent() ) {
+            return true;
+        }
+        return removeExisting(shard, Collections.singletonList(requestKey));
+    }
+
+    private boolean removeExisting(Shard shard, List<IKey> keys) {
+        return shard.withKeysLocked(keys, () -> removeLocked(shard, keys));
+    }
+
+    private boolean removeLocked(Shard shard, List<IKey> candidateKeys) {
+        // a concurrent remove might have taken some of the keys away while the locks were awaited
+        List<IKey> keys = new ArrayList<>(candidateKeys.size());
+        candidateKeys.stream().filter(key -> shard.getIndex().getLatestPath(key).isPresent()).forEach(keys::add);
+        if (keys.isEmpty()) {
+            return true;
+        }
+
+        // the remove is ordered after every put which has got its version before, and before every later one
+        long version = shard.nextVersion();
+
+        // only the values known to the register are released here, whatever else is left is up to the housekeeper
+        Map<Integer, String> committedEntries = shard.getDao().getCommittedEntriesFor(keys);
+
+        boolean entriesMarkedAsRemoved = shard.getDao().markEntriesAsRemoved(keys);
         if ( !entriesMarkedAsRemoved ) {
-            LOG.error("Unable to mark entries as removed for the '{}' key.", requestKey.get());
-            return communicationChain.withFailedResponse();
+            LOG.error("Unable to mark entries as removed for a batch of {} keys.", keys.size());
+            return false;
         }
+        keys.forEach(key -> shard.getIndex().onRemove(key, version));
 
-        boolean filesAreRemoved = shard.getFileSystem().removeAllFilesWithMask(
-                Paths.get(shard.getPath()),
-                String.valueOf(requestKey.get()) + "\\$.*\\.data"
-        );
+        boolean filesAreRemoved = shard.getDao().removeEntries(committedEntries, shard::removeValue);
         if ( !filesAreRemoved ) {
-            LOG.error("Unable to remove files for the '{}' key.", requestKey.get());
-            return communicationChain.withFailedResponse();
+            LOG.error("Unable to remove files for a batch of {} keys.", keys.size());
+            return false;
         }
-
-        return communicationChain.withSuccessResponse();
+        return true;
     }
 
     private CommunicationChain processGetRequest(CommunicationChain communicationChain, IKey requestKey, Shard shard) {
-        Optional<String> filePath = shard.getDao().getCommittedPathFor(requestKey);
-        if (filePath.isPresent()) {
-            IValue value = shard.getFileSystem().getValueFrom(Paths.get(filePath.get()));
-            if (value.get().isPresent()) {
-                return communicationChain.withValueResponse(value);
-            }
-            else {
-                return communicationChain.withEmptyResponse();
-            }
+        Optional<IValue> value = getLatestValue(shard, requestKey, HashBasedRequestManager::readValue);
+        if (value.isPresent()) {
+            return communicationChain.withValueResponse(value.get());
+        }
+        else {
+            return communicationChain.withEmptyResponse();
+        }
+    }
+
+    private CommunicationChain processOpenValueRequest(CommunicationChain communicationChain, IKey requestKey, Shard shard) {
+        Optional<IValue> value = getLatestValue(shard, requestKey, HashBasedRequestManager::openValue);
+        if (value.isPresent()) {
+            return communicationChain.withValueResponse(value.get());
         }
         else {
             return communicationChain.withEmptyResponse();
         }
     }
 
+    private Optional<IValue> getLatestValue(Shard shard, IKey key, BiFunction<Shard, String, Optional<IValue>> valueReader) {
+        Optional<IValue> value = readLatestValue(shard, key, valueReader);
+        Migration activeMigration = migration;
+        if ( !value.isPresent() && activeMigration != null && activeMigration.isMoving(key) && activeMigration.targetShardFor(key) == shard ) {
+            // the key might have not been moved yet, or might have been moved while the previous shard was looked up
+            value = readLatestValue(activeMigration.sourceShardFor(key), key, valueReader);
+            if ( !value.isPresent() ) {
+                value = readLatestValue(shard, key, valueReader);
+            }
+        }
+        return value;
+    }
+
+    private static Optional<IValue> readValue(Shard shard, String filePath) {
+        IValue value = shard.getFileSystem().getValueFrom(filePath);
+        return value.getBuffer().isPresent() ? Optional.of(value) : Optional.empty();
+    }
+
+    private static Optional<IValue> openValue(Shard shard, String filePath) {
+        return shard.getFileSystem().openValueFrom(filePath).map(ChannelValue::new);
+    }
+
+    private Optional<IValue> readLatestValue(Shard shard, IKey key, BiFunction<Shard, String, Optional<IValue>> valueReader) {
+        long stageStartedAt = System.nanoTime();
+        Optional<String> filePath = shard.getIndex().getLatestPath(key);
+        shard.getMetrics().record(Stage.GET_INDEX_LOOKUP, stageStartedAt);
+        if ( !filePath.isPresent() ) {
+            return Optional.empty();
+        }
+
+        stageStartedAt = System.nanoTime();
+        // an inline value is read off the register by the same key index the path would be looked up by
+        Optional<IValue> value = Shard.isInline(filePath.get())
+                ? shard.getDao().getInlineValue(key, filePath.get()).map(ByteArrayValue::new)
+                : valueReader.apply(shard, filePath.get());
+        shard.getMetrics().record(Stage.GET_FILE_READ, stageStartedAt);
+        return value;
+    }
+
     private CommunicationChain processPutRequest(CommunicationChain communicationChain, IKey requestKey, Shard shard, PutRequest putRequest) {
-        Timestamp timestamp = new Timestamp(Instant.now().toEpochMilli());
-        String filePath = shard.getPath() + "/" + requestKey.get() + "$" + UUID.randomUUID() + ".data";
+        return putInto(shard, requestKey, putRequest.getValue(), shard::nextVersion) ? communicationChain.withSuccessResponse() : communicationChain.withFailedResponse();
+    }
+
+    /**
+     * Puts the value with the version handed out once no one else is changing the key.
+     */
+    private boolean putInto(Shard shard, IKey requestKey, IValue value, LongSupplier versionSupplier) {
+        return shard.withKeysLocked(Collections.singletonList(requestKey), () -> putLocked(shard, requestKey, value, versionSupplier.getAsLong()));
+    }
+
+    private boolean putLocked(Shard shard, IKey requestKey, IValue value, long version) {
+        Optional<byte[]> inlineValue = inlineValueOf(value);
+        Optional<String> location = inlineValue.isPresent() ? Optional.of(shard.newInlineLocation()) : shard.getFileSystem().newLocationFor(requestKey, value);
+        if ( !location.isPresent() ) {
+            LOG.error("Unable to allocate a location for the '{}' key.", requestKey.get());
+            return false;
+        }
+        String filePath = location.get();
 
-        boolean isUpdatingRecordAdded = shard.getDao().addUpdatingEntry(timestamp, requestKey, filePath);
+        long stageStartedAt = System.nanoTime();
+        boolean isUpdatingRecordAdded = shard.getDao().addUpdatingEntry(version, requestKey, filePath, inlineValue);
+        shard.getMetrics().record(Stage.PUT_REGISTER_INSERT, stageStartedAt);
         if ( !isUpdatingRecordAdded ) {
             LOG.error("Unable to create a write ahead log record for the '{}' key.", requestKey.get());
-            return communicationChain.withFailedResponse();
+            // no entry refers to the reserved location, it is released right away
+            shard.removeValue(filePath);
+            return false;
         }
 
-        boolean newFileAdded = shard.getFileSystem().createNewFileWithValue(Paths.get(filePath), putRequest.getValue());
-        if ( !newFileAdded ) {
-            LOG.error("Unable to create a new file for the '{}' key.", requestKey.get());
-            return communicationChain.withFailedResponse();
+        if ( !inlineValue.isPresent() ) {
+            stageStartedAt = System.nanoTime();
+            boolean newFileAdded = shard.getFileSystem().createNewFileWithValue(filePath, value);
+            shard.getMetrics().record(Stage.PUT_FILE_WRITE, stageStartedAt);
+            if ( !newFileAdded ) {
+                LOG.error("Unable to create a new file for the '{}' key.", requestKey.get());
+                // the entry is never committed, the register drops it on the next start
+                shard.removeValue(filePath);
+                return false;
+            }
         }
 
-        boolean entryCommitted = shard.getDao().commitEntry(timestamp, requestKey);
+        stageStartedAt = System.nanoTime();
+        boolean entryCommitted = shard.getDao().commitEntry(version, requestKey, filePath);
+        shard.getMetrics().record(Stage.PUT_REGISTER_COMMIT, stageStartedAt);
         if ( !entryCommitted ) {
             LOG.error("Unable to commit a white ahead log record for the '{}' key.", requestKey.get());
-            return communicationChain.withFailedResponse();
+            return false;
         }
+        shard.getIndex().onCommit(requestKey, version, filePath);
 
+        return true;
+    }
 
-        return communicationChain.withSuccessResponse();
+    /**
+     * The bytes of a value small enough to be kept in its register entry. A streamed value is never inlined,
+     * its length is not known before it is read.
+     */
+    private Optional<byte[]> inlineValueOf(IValue value) {
+        if (inlineValueThreshold <= 0 || value.isStreamed()) {
+            return Optional.empty();
+        }
+        Optional<ByteBuffer> buffer = value.getBuffer();
+        if ( !buffer.isPresent() || buffer.get().remaining() > inlineValueThreshold ) {
+            return Optional.empty();
+        }
+        byte[] data = new byte[buffer.get().remaining()];
+        buffer.get().duplicate().get(data);
+        return Optional.of(data);
     }
 
-    private int getHashCodeFrom(IKey key) {
-        return key.get().hashCode();
+    /**
+     * The keys being moved to the shards the target ring routes them to, each one from the shard it is found in.
+     */
+    private static class Migration {
+        private final Function<IKey, Shard> sourceShards;
+        private final ShardRing targetRing;
+        // the only shard the keys are moved to, or null if they are moved to any of them
+        private final Shard targetShard;
+        private final ReentrantLock[] keyLocks = new ReentrantLock[MIGRATION_LOCK_STRIPES];
+
+        private Migration(Function<IKey, Shard> sourceShards, ShardRing targetRing, Shard targetShard) {
+            this.sourceShards = sourceShards;
+            this.targetRing = targetRing;
+            this.targetShard = targetShard;
+            for (int i = 0; i < keyLocks.length; i++) {
+                keyLocks[i] = new ReentrantLock();
+            }
+        }
+
+        /**
+         * The keys an added shard takes over, from the shards the previous ring has routed them to.
+         */
+        private static Migration toShard(ShardRing sourceRing, ShardRing targetRing, Shard targetShard) {
+            return new Migration(sourceRing::shardFor, targetRing, targetShard);
+        }
+
+        /**
+         * The keys found in any shard but the one the ring routes them to. A key which is not found elsewhere
+         * is in its shard already.
+         */
+        private static Migration toRing(List<Shard> shards, ShardRing ring) {
+            return new Migration(key -> {
+                Shard routedShard = ring.shardFor(key);
+                for (Shard shard : shards) {
+                    if (shard != routedShard && shard.getIndex().getLatestPath(key).isPresent()) {
+                        return shard;
+                    }
+                }
+                return routedShard;
+            }, ring, null);
+        }
+
+        private boolean isMoving(IKey key) {
+            return targetShard == null || targetRing.shardFor(key) == targetShard;
+        }
+
+        private Shard sourceShardFor(IKey key) {
+            return sourceShards.apply(key);
+        }
+
+        private Shard targetShardFor(IKey key) {
+            return targetRing.shardFor(key);
+        }
+
+        private String describeTarget() {
+            return targetShard == null ? "the shards the ring routes them to" : "the '" + targetShard.getPath() + "' shard";
+        }
+
+        private ReentrantLock lockFor(IKey key) {
+            return keyLocks[Math.floorMod(String.valueOf(key.get()).hashCode(), keyLocks.length)];
+        }
     }
 }
@@ -0,0 +1,165 @@
+package org.smartsoftware.smartmap.request.manager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smartsoftware.smartmap.request.manager.metrics.Stage;
+
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Collects the outdated versions of the shards incrementally. Every run of a shard removes a bounded batch of
+ * the register records and their files and then resumes from where the previous run has stopped, so a run costs
+ * the same however big the register is. A shard with a backlog is revisited sooner, an idle or a busy one later.
+ */
+class HouseKeeper {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HouseKeeper.class);
+
+    // the number of register ids a single run looks through
+    private static final int SCAN_WINDOW_BATCHES = 16;
+
+    private final int batchSize;
+    private final long minDelayMs;
+    private final long maxDelayMs;
+    private final Consumer<Shard> afterSweep;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private int scheduledShards = 0;
+
+    HouseKeeper(int batchSize, long minDelayMs, long maxDelayMs, Consumer<Shard> afterSweep) {
+        this.batchSize = batchSize;
+        this.minDelayMs = minDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.afterSweep = afterSweep;
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "house-keeper-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts collecting the shard. Each shard is collected by its own chain of runs, so the shards are collected
+     * in parallel and a slow shard does not hold up the others.
+     */
+    synchronized void schedule(Shard shard) {
+        scheduledShards++;
+        scheduler.setCorePoolSize(Math.max(scheduler.getCorePoolSize(), scheduledShards));
+        ShardSweep sweep = new ShardSweep(shard);
+        scheduler.schedule(() -> run(sweep), maxDelayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a one off task of the shard in the background, e.g. a reconciliation after the start.
+     */
+    void submit(Shard shard, Runnable task) {
+        scheduler.schedule(() -> {
+            try {
+                task.run();
+            }
+            catch (RuntimeException e) {
+                LOG.error("Unable to run a background task of the '{}' shard.", shard.getPath(), e);
+            }
+        }, minDelayMs, TimeUnit.MILLISECONDS);
+    }
+
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    boolean awaitTermination(long timeoutMs) {
+        try {
+            return scheduler.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void run(ShardSweep sweep) {
+        long nextDelayMs = maxDelayMs;
+        try {
+            boolean hasBacklog = collectBatch(sweep);
+            nextDelayMs = nextDelay(sweep, hasBacklog);
+        }
+        catch (RuntimeException e) {
+            LOG.error("Unable to collect the '{}' shard.", sweep.shard.getPath(), e);
+        }
+
+        if ( !scheduler.isShutdown() ) {
+            sweep.delayMs = nextDelayMs;
+            scheduler.schedule(() -> run(sweep), nextDelayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private boolean collectBatch(ShardSweep sweep) {
+        Shard shard = sweep.shard;
+        long startedAt = System.nanoTime();
+        int upToId = sweep.cursor + batchSize * SCAN_WINDOW_BATCHES;
+
+        Map<Integer, String> houseKeepingCandidates = shard.getDao().getCollectableEntries(sweep.cursor, upToId, batchSize);
+        if ( !houseKeepingCandidates.isEmpty() ) {
+            int[] reclaimed = new int[2];
+            shard.getDao().removeEntries(houseKeepingCandidates, location -> {
+                reclaimed[0]++;
+                if (shard.removeValue(location)) {
+                    reclaimed[1]++;
+                }
+            });
+            shard.getMetrics().onGcReclaimed(reclaimed[0], reclaimed[1]);
+        }
+
+        boolean hasBacklog = true;
+        int maxEntryId = shard.getDao().getMaxEntryId();
+        boolean isBatchFull = houseKeepingCandidates.size() == batchSize;
+        if (isBatchFull) {
+            // the window is not looked through completely yet
+            sweep.cursor = lastIdOf(houseKeepingCandidates);
+        }
+        else if (upToId < maxEntryId) {
+            sweep.cursor = upToId;
+        }
+        else {
+            LOG.trace("A GC sweep of the '{}' shard is completed.", shard.getPath());
+            sweep.cursor = 0;
+            afterSweep.accept(shard);
+            hasBacklog = false;
+        }
+
+        shard.getMetrics().setGcBacklog(hasBacklog ? Math.max(0, maxEntryId - sweep.cursor) : 0);
+        shard.getMetrics().record(Stage.GC_CYCLE, startedAt);
+        return hasBacklog;
+    }
+
+    private long nextDelay(ShardSweep sweep, boolean hasBacklog) {
+        // a backlog halves the pause down to the minimum, foreground load and idleness double it up to the maximum
+        if (hasBacklog && !sweep.shard.isBusy()) {
+            return Math.max(minDelayMs, sweep.delayMs / 2);
+        }
+        return Math.min(maxDelayMs, Math.max(minDelayMs, sweep.delayMs * 2));
+    }
+
+    private static int lastIdOf(Map<Integer, String> entries) {
+        int lastId = 0;
+        for (Integer id : entries.keySet()) {
+            lastId = id;
+        }
+        return lastId;
+    }
+
+    private class ShardSweep {
+        private final Shard shard;
+        private int cursor = 0;
+        private long delayMs = maxDelayMs;
+
+        private ShardSweep(Shard shard) {
+            this.shard = shard;
+        }
+    }
+}
@@ -2,6 +2,8 @@ package org.smartsoftware.smartmap.request.manager;
 
 import org.smartsoftware.smartmap.domain.communication.CommunicationChain;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Created by Dmitry on 23.04.2017.
  */
@@ -11,4 +13,6 @@ public interface IRequestManager {
 
     CommunicationChain onRequest(CommunicationChain communicationChain);
 
+    CompletableFuture<CommunicationChain> onRequestAsync(CommunicationChain communicationChain);
+
 }
@@ -0,0 +1,226 @@
+package org.smartsoftware.smartmap.request.manager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smartsoftware.smartmap.domain.data.IKey;
+import org.smartsoftware.smartmap.domain.data.StringKey;
+import org.smartsoftware.smartmap.request.manager.datasource.CommittedEntry;
+import org.smartsoftware.smartmap.request.manager.datasource.IShardDAO;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * An in-memory 'key -> latest committed path' view of a shard register. The register stays the durable record,
+ * the index is rebuilt from it on start up and then kept up to date on every commit and remove.
+ *
+ * Versions are ordered by their register versions alone, which a shard hands out unique and strictly increasing
+ * (see Shard.nextVersion), so a commit that arrives late never hides a newer one. A remove leaves a tombstone behind
+ * to win against commits it has already invalidated in the register; tombstones are purged by the housekeeper
+ * once they are old enough by the wall clock, the versions tell nothing about the time.
+ *
+ * On shutdown the index could be written down to a checkpoint, so the next start reads it instead of the whole
+ * register and only replays the entries committed after it.
+ */
+public class LatestVersionIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LatestVersionIndex.class);
+
+    private static final int CHECKPOINT_MAGIC = 0x534d4958;
+
+    private final ConcurrentMap<String, Version> versions = new ConcurrentHashMap<>();
+
+    public void load(IShardDAO dao) {
+        versions.clear();
+        dao.forEachLatestCommittedEntry(entry ->
+                versions.put(entry.getKey(), new Version(entry.getVersion(), entry.getPath()))
+        );
+    }
+
+    /**
+     * Loads the index from a checkpoint and the entries the register has committed after it. The checkpoint is
+     * removed once loaded, it is valid only until the shard is changed again.
+     *
+     * @return false if there is no valid checkpoint, the index is to be loaded from the register then
+     */
+    public boolean loadCheckpoint(Path checkpointPath, IShardDAO dao) {
+        if ( !Files.exists(checkpointPath) ) {
+            return false;
+        }
+
+        versions.clear();
+        int registerEntryId;
+        try (InputStream checkpointInput = new BufferedInputStream(Files.newInputStream(checkpointPath), 64 * 1024)) {
+            CheckedInputStream checkedInput = new CheckedInputStream(checkpointInput, new CRC32());
+            DataInputStream input = new DataInputStream(checkedInput);
+            if (input.readInt() != CHECKPOINT_MAGIC) {
+                throw new IOException("The file is not an index checkpoint.");
+            }
+            registerEntryId = input.readInt();
+            int versionCount = input.readInt();
+            for (int i = 0; i < versionCount; i++) {
+                String key = readString(input);
+                long version = input.readLong();
+                versions.put(key, new Version(version, readString(input)));
+            }
+            long checksum = checkedInput.getChecksum().getValue();
+            if (new DataInputStream(checkpointInput).readLong() != checksum) {
+                throw new IOException("The index checkpoint is corrupted.");
+            }
+            Files.delete(checkpointPath);
+        }
+        catch (IOException e) {
+            LOG.error("Unable to load the '{}' index checkpoint.", checkpointPath, e);
+            versions.clear();
+            return false;
+        }
+
+        if (registerEntryId > dao.getMaxEntryId()) {
+            // the register is older than the checkpoint, it has been replaced since
+            versions.clear();
+            return false;
+        }
+        dao.forEachCommittedEntryAfter(registerEntryId, entry -> onCommit(new StringKey(entry.getKey()), entry.getVersion(), entry.getPath()));
+        return true;
+    }
+
+    /**
+     * Writes the index down, as of the given register entry. It is meant to be done once the shard has stopped
+     * serving requests.
+     */
+    public boolean writeCheckpoint(Path checkpointPath, int registerEntryId) {
+        Path checkpointTempPath = checkpointPath.resolveSibling(checkpointPath.getFileName() + ".tmp");
+        try (OutputStream checkpointOutput = new BufferedOutputStream(Files.newOutputStream(checkpointTempPath), 64 * 1024)) {
+            CheckedOutputStream checkedOutput = new CheckedOutputStream(checkpointOutput, new CRC32());
+            DataOutputStream output = new DataOutputStream(checkedOutput);
+            List<Map.Entry<String, Version>> latestVersions = new ArrayList<>(versions.size());
+            versions.entrySet().stream().filter(version -> version.getValue().path != null).forEach(latestVersions::add);
+
+            output.writeInt(CHECKPOINT_MAGIC);
+            output.writeInt(registerEntryId);
+            output.writeInt(latestVersions.size());
+            for (Map.Entry<String, Version> version : latestVersions) {
+                writeString(output, version.getKey());
+                output.writeLong(version.getValue().version);
+                writeString(output, version.getValue().path);
+            }
+            output.flush();
+            new DataOutputStream(checkpointOutput).writeLong(checkedOutput.getChecksum().getValue());
+        }
+        catch (IOException e) {
+            LOG.error("Unable to write the '{}' index checkpoint.", checkpointPath, e);
+            return false;
+        }
+
+        try {
+            Files.move(checkpointTempPath, checkpointPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        }
+        catch (IOException e) {
+            LOG.error("Unable to replace the '{}' index checkpoint.", checkpointPath, e);
+            return false;
+        }
+    }
+
+    public Optional<String> getLatestPath(IKey key) {
+        Version version = versions.get(String.valueOf(key.get()));
+        if (version == null) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(version.path);
+    }
+
+    public Optional<CommittedEntry> getLatestEntry(IKey key) {
+        String entryKey = String.valueOf(key.get());
+        Version version = versions.get(entryKey);
+        if (version == null || version.path == null) {
+            return Optional.empty();
+        }
+        return Optional.of(new CommittedEntry(entryKey, version.version, version.path));
+    }
+
+    public boolean hasVersionOf(IKey key) {
+        return versions.containsKey(String.valueOf(key.get()));
+    }
+
+    /**
+     * The latest version the index knows of, a tombstone included.
+     */
+    public long getLastVersion() {
+        long lastVersion = 0;
+        for (Version version : versions.values()) {
+            lastVersion = Math.max(lastVersion, version.version);
+        }
+        return lastVersion;
+    }
+
+    public Set<String> keys() {
+        return versions.keySet();
+    }
+
+    public void onCommit(IKey key, long version, String path) {
+        Version committed = new Version(version, path);
+        versions.merge(String.valueOf(key.get()), committed, LatestVersionIndex::newerOf);
+    }
+
+    public void onRemove(IKey key, long version) {
+        Version tombstone = new Version(version, null, System.currentTimeMillis());
+        versions.merge(String.valueOf(key.get()), tombstone, LatestVersionIndex::newerOf);
+    }
+
+    public void onRelocate(IKey key, String fromPath, String toPath) {
+        versions.computeIfPresent(String.valueOf(key.get()), (entryKey, current) ->
+                fromPath.equals(current.path) ? new Version(current.version, toPath) : current
+        );
+    }
+
+    public void purgeTombstonesOlderThan(long epochMillis) {
+        versions.entrySet().removeIf(entry -> entry.getValue().path == null && entry.getValue().removedAt < epochMillis);
+    }
+
+    /**
+     * Only the entries of a register written before the versions were unique could share one, they are replayed
+     * in the order they have been added, so the later one wins the same way it does in the register.
+     */
+    private static Version newerOf(Version current, Version candidate) {
+        return candidate.version >= current.version ? candidate : current;
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] data = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(data.length);
+        output.write(data);
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        byte[] data = new byte[input.readInt()];
+        input.readFully(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    private static class Version {
+        private final long version;
+        private final String path;
+        // the wall clock time a tombstone has been left at
+        private final long removedAt;
+
+        private Version(long version, String path) {
+            this(version, path, 0);
+        }
+
+        private Version(long version, String path, long removedAt) {
+            this.version = version;
+            this.path = path;
+            this.removedAt = removedAt;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.smartsoftware.smartmap.request.manager;
+
+/**
+ * The lower 64 bits of the x64 128-bit MurmurHash3 (seed 0), which spreads keys evenly over a shard ring.
+ */
+final class MurmurHash3 {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private MurmurHash3() {
+    }
+
+    static long hash64(byte[] data) {
+        int length = data.length;
+        int blocks = length >>> 4;
+        long h1 = 0;
+        long h2 = 0;
+
+        for (int i = 0; i < blocks; i++) {
+            long k1 = getLittleEndianLong(data, i << 4);
+            long k2 = getLittleEndianLong(data, (i << 4) + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int tail = blocks << 4;
+        long k1 = 0;
+        long k2 = 0;
+        switch (length & 15) {
+            case 15: k2 ^= (data[tail + 14] & 0xffL) << 48;
+            case 14: k2 ^= (data[tail + 13] & 0xffL) << 40;
+            case 13: k2 ^= (data[tail + 12] & 0xffL) << 32;
+            case 12: k2 ^= (data[tail + 11] & 0xffL) << 24;
+            case 11: k2 ^= (data[tail + 10] & 0xffL) << 16;
+            case 10: k2 ^= (data[tail + 9] & 0xffL) << 8;
+            case 9:  k2 ^= (data[tail + 8] & 0xffL);
+                     h2 ^= mixK2(k2);
+            case 8:  k1 ^= (data[tail + 7] & 0xffL) << 56;
+            case 7:  k1 ^= (data[tail + 6] & 0xffL) << 48;
+            case 6:  k1 ^= (data[tail + 5] & 0xffL) << 40;
+            case 5:  k1 ^= (data[tail + 4] & 0xffL) << 32;
+            case 4:  k1 ^= (data[tail + 3] & 0xffL) << 24;
+            case 3:  k1 ^= (data[tail + 2] & 0xffL) << 16;
+            case 2:  k1 ^= (data[tail + 1] & 0xffL) << 8;
+            case 1:  k1 ^= (data[tail] & 0xffL);
+                     h1 ^= mixK1(k1);
+            default:
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        return h1 + h2;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static long getLittleEndianLong(byte[] data, int offset) {
+        return (data[offset] & 0xffL)
+                | (data[offset + 1] & 0xffL) << 8
+                | (data[offset + 2] & 0xffL) << 16
+                | (data[offset + 3] & 0xffL) << 24
+                | (data[offset + 4] & 0xffL) << 32
+                | (data[offset + 5] & 0xffL) << 40
+                | (data[offset + 6] & 0xffL) << 48
+                | (data[offset + 7] & 0xffL) << 56;
+    }
+}
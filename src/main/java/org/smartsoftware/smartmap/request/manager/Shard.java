@@ -1,27 +1,258 @@
 package org.smartsoftware.smartmap.request.manager;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smartsoftware.smartmap.domain.data.IKey;
 import org.smartsoftware.smartmap.request.manager.datasource.IShardDAO;
 import org.smartsoftware.smartmap.request.manager.filesystem.IFileSystemShard;
+import org.smartsoftware.smartmap.request.manager.filesystem.LocationSequence;
+import org.smartsoftware.smartmap.request.manager.metrics.ShardMetrics;
+import org.smartsoftware.smartmap.request.manager.metrics.Stage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 /**
  * Created by dkober on 24.4.2017 г..
  */
 public class Shard {
 
+    private static final Logger LOG = LoggerFactory.getLogger(Shard.class);
+
+    private static final String INDEX_CHECKPOINT_FILE_NAME = "index.checkpoint";
+    private static final String RING_MEMBERS_FILE_NAME = "ring.members";
+    private static final String INLINE_LOCATION_PREFIX = "inline:";
+    private static final int KEY_LOCK_STRIPES = 1024;
+
     private final String path;
     private final IShardDAO dao;
     private final IFileSystemShard fileSystem;
+    private final LatestVersionIndex index = new LatestVersionIndex();
+    private final ShardMetrics metrics;
+
+    private int workerThreads = 4;
+    private int workerQueueCapacity = 1024;
+    private volatile ExecutorService executor;
+    private final AtomicInteger activeRequests = new AtomicInteger();
+
+    private final AtomicLong lastVersion = new AtomicLong();
+    private final ReentrantLock[] keyLocks = new ReentrantLock[KEY_LOCK_STRIPES];
+    private final LocationSequence inlineLocationSequence = new LocationSequence();
 
     public Shard(String path, IShardDAO dao, IFileSystemShard fileSystem) {
         this.path = path;
         this.dao = dao;
         this.fileSystem = fileSystem;
+        this.metrics = new ShardMetrics(path);
+        for (int i = 0; i < keyLocks.length; i++) {
+            keyLocks[i] = new ReentrantLock();
+        }
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public void setWorkerQueueCapacity(int workerQueueCapacity) {
+        this.workerQueueCapacity = workerQueueCapacity;
+    }
+
+    /**
+     * Starts a bounded executor the asynchronous requests of this shard are processed on. When the queue is full
+     * a request is processed on the submitting thread, which throttles the submitters down to the shard's pace.
+     */
+    void startExecutor() {
+        String shardName = Paths.get(path).getFileName().toString();
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(
+                workerThreads, workerThreads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(workerQueueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, shardName + "-worker-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy()
+        );
+    }
+
+    void stopExecutor() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Waits for the requests already submitted to the stopped executor to be processed.
+     */
+    boolean awaitExecutor(long timeoutMs) {
+        try {
+            return executor == null || executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    <R> R process(Stage stage, Supplier<R> request) {
+        long startedAt = beginRequest();
+        try {
+            return request.get();
+        }
+        finally {
+            endRequest(stage, startedAt);
+        }
+    }
+
+    /**
+     * The same as the process, for the callers which could not afford a request object. Tells when the request
+     * has started, the end of the request should be given that back.
+     */
+    long beginRequest() {
+        long startedAt = System.nanoTime();
+        activeRequests.incrementAndGet();
+        return startedAt;
+    }
+
+    void endRequest(Stage stage, long startedAt) {
+        activeRequests.decrementAndGet();
+        metrics.record(stage, startedAt);
+    }
+
+    /**
+     * The version of a change of this shard: a counter, so the versions of a shard are unique and ordered the way
+     * the changes have been made, whatever the clock does. The wall clock time of a change is kept by the register
+     * apart from it.
+     */
+    long nextVersion() {
+        return lastVersion.incrementAndGet();
+    }
+
+    /**
+     * Makes the next versions follow the given one, e.g. the latest version of the register on start up.
+     */
+    void advanceVersionTo(long version) {
+        lastVersion.accumulateAndGet(version, Math::max);
+    }
+
+    long getLastVersion() {
+        return lastVersion.get();
+    }
+
+    /**
+     * Runs a change of the keys with none of them being changed by anyone else, so the versions of a key are handed
+     * out in the order its changes reach the register. The stripes are taken in their order, so batches of any keys
+     * never wait for each other in a circle.
+     */
+    <R> R withKeysLocked(Collection<IKey> keys, Supplier<R> change) {
+        int[] stripes = keys.stream().mapToInt(key -> Math.floorMod(String.valueOf(key.get()).hashCode(), keyLocks.length)).distinct().toArray();
+        Arrays.sort(stripes);
+        int locked = 0;
+        try {
+            for (; locked < stripes.length; locked++) {
+                keyLocks[stripes[locked]].lock();
+            }
+            return change.get();
+        }
+        finally {
+            while (locked > 0) {
+                keyLocks[stripes[--locked]].unlock();
+            }
+        }
+    }
+
+    /**
+     * Tells whether foreground requests are being processed on this shard, so the background work could yield.
+     */
+    boolean isBusy() {
+        return activeRequests.get() > 0;
     }
 
     public String getPath() {
         return path;
     }
 
+    /**
+     * The name the shard is placed on the ring by, the name of its directory.
+     */
+    public String getName() {
+        return Paths.get(path).getFileName().toString();
+    }
+
+    Path getIndexCheckpointPath() {
+        return Paths.get(path).resolve(INDEX_CHECKPOINT_FILE_NAME);
+    }
+
+    /**
+     * The names of the shards of the ring this shard has last been a part of, none before the first start.
+     */
+    List<String> readRingMembers() {
+        Path ringMembersPath = Paths.get(path).resolve(RING_MEMBERS_FILE_NAME);
+        if ( !Files.exists(ringMembersPath) ) {
+            return Collections.emptyList();
+        }
+        try {
+            return Files.readAllLines(ringMembersPath, StandardCharsets.UTF_8);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Unable to read the ring members of the '" + path + "' shard.", e);
+        }
+    }
+
+    boolean writeRingMembers(List<String> shardNames) {
+        Path ringMembersPath = Paths.get(path).resolve(RING_MEMBERS_FILE_NAME);
+        Path ringMembersTempPath = ringMembersPath.resolveSibling(RING_MEMBERS_FILE_NAME + ".tmp");
+        try {
+            Files.createDirectories(ringMembersPath.getParent());
+            Files.write(ringMembersTempPath, shardNames, StandardCharsets.UTF_8);
+            Files.move(ringMembersTempPath, ringMembersPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        }
+        catch (IOException e) {
+            LOG.error("Unable to write the ring members of the '{}' shard.", path, e);
+            return false;
+        }
+    }
+
+    /**
+     * A location for a value kept in its register entry. It is unique, the same way a file path is, so an entry
+     * is found by its key and location whatever keeps its value.
+     */
+    String newInlineLocation() {
+        StringBuilder location = new StringBuilder(INLINE_LOCATION_PREFIX.length() + LocationSequence.nameLength());
+        return inlineLocationSequence.appendNext(location.append(INLINE_LOCATION_PREFIX)).toString();
+    }
+
+    static boolean isInline(String location) {
+        return location.startsWith(INLINE_LOCATION_PREFIX);
+    }
+
+    /**
+     * Releases the value at the location, an inline value is gone together with its entry. Tells whether
+     * a file has been removed.
+     */
+    boolean removeValue(String location) {
+        return !isInline(location) && fileSystem.removeFile(location);
+    }
+
     public IShardDAO getDao() {
         return dao;
     }
@@ -29,4 +260,16 @@ public class Shard {
     public IFileSystemShard getFileSystem() {
         return fileSystem;
     }
+
+    public LatestVersionIndex getIndex() {
+        return index;
+    }
+
+    public ShardMetrics getMetrics() {
+        return metrics;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
 }
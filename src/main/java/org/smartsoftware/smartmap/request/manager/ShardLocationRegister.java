@@ -0,0 +1,32 @@
+package org.smartsoftware.smartmap.request.manager;
+
+import org.smartsoftware.smartmap.domain.data.StringKey;
+import org.smartsoftware.smartmap.request.manager.filesystem.ILocationRegister;
+
+class ShardLocationRegister implements ILocationRegister {
+
+    private final Shard shard;
+
+    ShardLocationRegister(Shard shard) {
+        this.shard = shard;
+    }
+
+    @Override
+    public boolean isLatest(String key, String location) {
+        return shard.getIndex().getLatestPath(new StringKey(key)).map(location::equals).orElse(false);
+    }
+
+    @Override
+    public boolean relocate(String key, String fromLocation, String toLocation) {
+        boolean entryRelocated = shard.getDao().relocateEntry(fromLocation, toLocation);
+        if (entryRelocated) {
+            shard.getIndex().onRelocate(new StringKey(key), fromLocation, toLocation);
+        }
+        return entryRelocated;
+    }
+
+    @Override
+    public boolean isReferenced(String key, String location) {
+        return shard.getDao().hasEntryWithPath(new StringKey(key), location);
+    }
+}
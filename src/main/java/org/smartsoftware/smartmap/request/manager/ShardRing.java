@@ -0,0 +1,51 @@
+package org.smartsoftware.smartmap.request.manager;
+
+import org.smartsoftware.smartmap.domain.data.IKey;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A consistent hashing ring: every shard is placed on the ring at a number of virtual nodes and owns the keys
+ * hashed between its nodes and the preceding ones. Adding a shard takes over only the keys that fall in front
+ * of its nodes, every other key stays where it is.
+ *
+ * Node positions are derived from the shard directory names, so the ring survives restarts and reordering of
+ * the shards in the configuration. A ring is immutable, a new one is built when the shards change.
+ */
+class ShardRing {
+
+    private final long[] positions;
+    private final Shard[] owners;
+
+    ShardRing(List<Shard> shards, int virtualNodesPerShard) {
+        TreeMap<Long, Shard> nodes = new TreeMap<>();
+        for (Shard shard : shards) {
+            String shardName = shard.getName();
+            for (int node = 0; node < virtualNodesPerShard; node++) {
+                nodes.put(hash(shardName + "#" + node), shard);
+            }
+        }
+
+        positions = new long[nodes.size()];
+        owners = new Shard[nodes.size()];
+        int i = 0;
+        for (Map.Entry<Long, Shard> node : nodes.entrySet()) {
+            positions[i] = node.getKey();
+            owners[i] = node.getValue();
+            i++;
+        }
+    }
+
+    Shard shardFor(IKey key) {
+        int index = Arrays.binarySearch(positions, hash(String.valueOf(key.get())));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == positions.length ? 0 : index];
+    }
+
+    private static long hash(String value) {
+        return MurmurHash3.hash64(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,29 @@
+package org.smartsoftware.smartmap.request.manager.datasource;
+
+/**
+ * The latest committed register record of a key.
+ */
+public class CommittedEntry {
+
+    private final String key;
+    private final long version;
+    private final String path;
+
+    public CommittedEntry(String key, long version, String path) {
+        this.key = key;
+        this.version = version;
+        this.path = path;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public String getPath() {
+        return path;
+    }
+}
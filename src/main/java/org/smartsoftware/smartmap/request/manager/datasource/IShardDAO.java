@@ -2,24 +2,90 @@ package org.smartsoftware.smartmap.request.manager.datasource;
 
 import org.smartsoftware.smartmap.domain.data.IKey;
 
-import java.sql.Timestamp;
 import java.util.*;
+import java.util.function.Consumer;
 
 /**
  * Created by Dmitry on 23.04.2017.
  */
 public interface IShardDAO {
 
+    /**
+     * The order the keys are paged in: the binary order of their UTF-8 forms, which is the code point one.
+     */
+    Comparator<String> KEY_ORDER = (first, second) -> {
+        int firstIndex = 0;
+        int secondIndex = 0;
+        while (firstIndex < first.length() && secondIndex < second.length()) {
+            int firstCodePoint = first.codePointAt(firstIndex);
+            int secondCodePoint = second.codePointAt(secondIndex);
+            if (firstCodePoint != secondCodePoint) {
+                return Integer.compare(firstCodePoint, secondCodePoint);
+            }
+            firstIndex += Character.charCount(firstCodePoint);
+            secondIndex += Character.charCount(secondCodePoint);
+        }
+        return Integer.compare(first.length() - firstIndex, second.length() - secondIndex);
+    };
+
     void init();
 
     Optional<String> getCommittedPathFor(IKey key);
     List<String> getAllLatestCommittedKeys();
 
-    boolean addUpdatingEntry(Timestamp timestamp, IKey key, String filePath);
-    boolean commitEntry(Timestamp timestamp, IKey key);
+    /**
+     * Up to the limit of the keys starting with the prefix, after the given one, in the binary (code point) order.
+     */
+    List<String> getLatestCommittedKeys(String prefix, Optional<String> afterKey, int limit);
+    void forEachLatestCommittedEntry(Consumer<CommittedEntry> consumer);
+
+    /**
+     * The committed entries added after the given id, in the order of their ids.
+     */
+    void forEachCommittedEntryAfter(int afterId, Consumer<CommittedEntry> consumer);
+
+    /**
+     * Tells whether the value at the path belongs to an entry of the key, of any status.
+     */
+    boolean hasEntryWithPath(IKey key, String path);
+
+    default boolean addUpdatingEntry(long version, IKey key, String filePath) {
+        return addUpdatingEntry(version, key, filePath, Optional.empty());
+    }
+
+    /**
+     * Adds an updating entry, an inline value is kept in the entry itself and its path only names the version.
+     */
+    boolean addUpdatingEntry(long version, IKey key, String path, Optional<byte[]> inlineValue);
+    boolean commitEntry(long version, IKey key, String filePath);
     boolean markEntriesAsRemoved(IKey key);
 
-    Map<Integer, String> getAllRemovedAndCommittedEntriesButLatest();
-    boolean removeEntries(Set<Integer> ids);
+    default boolean addUpdatingEntries(long version, Map<IKey, String> filePaths) {
+        return addUpdatingEntries(version, filePaths, Collections.emptyMap());
+    }
+
+    /**
+     * Adds the updating entries of the keys, the keys having an inline value keep it in their entries.
+     */
+    boolean addUpdatingEntries(long version, Map<IKey, String> paths, Map<IKey, byte[]> inlineValues);
+    boolean commitEntries(long version, Map<IKey, String> filePaths);
+    boolean markEntriesAsRemoved(Collection<IKey> keys);
+    Map<Integer, String> getCommittedEntriesFor(Collection<IKey> keys);
+
+    /**
+     * The value kept in the committed entry of the key with the path, if the entry keeps one.
+     */
+    Optional<byte[]> getInlineValue(IKey key, String path);
+
+    boolean relocateEntry(String fromPath, String toPath);
+
+    Map<Integer, String> getCollectableEntries(int afterId, int upToId, int limit);
+    int getMaxEntryId();
+
+    /**
+     * Removes the entries and calls the remover for the value of every entry this call has actually removed,
+     * so a value is released once even when a remove and the housekeeper collect the same entry.
+     */
+    boolean removeEntries(Map<Integer, String> entries, Consumer<String> valueRemover);
 
 }
@@ -0,0 +1,663 @@
+package org.smartsoftware.smartmap.request.manager.datasource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smartsoftware.smartmap.domain.data.IKey;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A register kept in memory and made durable by an append-only log, with no SQL and no JDBC in between.
+ *
+ * Every change is appended to the log as a '[payload length][payload CRC][payload]' record and forced to the disk
+ * before it is applied in memory, a batch of changes is a single write and a single force. Once the log grows
+ * beyond the configured size, the whole register is written to a checkpoint (atomically, through a temporary file)
+ * and the log is started over. On start, the checkpoint is loaded, the log is replayed over it up to its first torn
+ * record, and everything that has not been committed is dropped, the same way the SQLite register does it.
+ */
+public class LogStructuredShardDAO implements IShardDAO {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LogStructuredShardDAO.class);
+
+    private static final String LOG_FILE_NAME = "register.log";
+    private static final String CHECKPOINT_FILE_NAME = "register.checkpoint";
+    private static final String CHECKPOINT_TEMP_FILE_NAME = "register.checkpoint.tmp";
+    private static final int CHECKPOINT_MAGIC = 0x534d5244;
+    // a checkpoint written before the entries could keep their values
+    private static final int CHECKPOINT_MAGIC_WITHOUT_VALUES = 0x534d5243;
+
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+    private static final byte ADD = 1;
+    private static final byte COMMIT = 2;
+    private static final byte REMOVE = 3;
+    private static final byte RELOCATE = 4;
+    private static final byte DELETE = 5;
+    private static final byte ADD_INLINE = 6;
+
+    private static final int UPDATING = 0;
+    private static final int COMMITTED = 1;
+    private static final int REMOVED = 2;
+
+    private final Path shardPath;
+    private long checkpointLogSize = 64L * 1024 * 1024;
+
+    private final NavigableMap<Integer, Entry> entriesById = new TreeMap<>();
+    private final NavigableMap<String, List<Entry>> entriesByKey = new TreeMap<>(KEY_ORDER);
+    private final Map<String, Entry> entriesByPath = new HashMap<>();
+    private int lastEntryId = 0;
+
+    private FileChannel logChannel;
+    private long logSize = 0;
+    private ByteBuffer pendingRecords = ByteBuffer.allocate(64 * 1024);
+    private int recordStart;
+    private final CRC32 recordChecksum = new CRC32();
+
+    LogStructuredShardDAO(Path shardPath) {
+        this.shardPath = shardPath;
+    }
+
+    public void setCheckpointLogSize(long checkpointLogSize) {
+        this.checkpointLogSize = checkpointLogSize;
+    }
+
+    @Override
+    public synchronized void init() {
+        LOG.trace("Initializing a log structured register for the : {} shard...", shardPath.toFile().getName());
+
+        try {
+            Files.createDirectories(shardPath);
+            Files.deleteIfExists(shardPath.resolve(CHECKPOINT_TEMP_FILE_NAME));
+            loadCheckpoint();
+            logChannel = FileChannel.open(shardPath.resolve(LOG_FILE_NAME), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            replayLog();
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Cannot recover the register of the " + shardPath + " shard.", e);
+        }
+
+        // initialize and cleanup the register the same way the SQLite one does it
+        new ArrayList<>(entriesById.values()).stream()
+                .filter(entry -> entry.status != COMMITTED)
+                .forEach(entry -> applyDelete(entry.id));
+        if ( !checkpoint() ) {
+            throw new RuntimeException("Cannot checkpoint the register of the " + shardPath + " shard.");
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (logChannel != null) {
+            logChannel.close();
+        }
+    }
+
+    @Override
+    public synchronized Optional<String> getCommittedPathFor(IKey key) {
+        return latestCommittedOf(entriesByKey.get(String.valueOf(key.get()))).map(entry -> entry.path);
+    }
+
+    @Override
+    public synchronized List<String> getAllLatestCommittedKeys() {
+        List<String> keys = new ArrayList<>();
+        entriesByKey.forEach((key, entries) -> {
+            if (latestCommittedOf(entries).isPresent()) {
+                keys.add(key);
+            }
+        });
+        return keys;
+    }
+
+    @Override
+    public synchronized List<String> getLatestCommittedKeys(String prefix, Optional<String> afterKey, int limit) {
+        NavigableMap<String, List<Entry>> tail = afterKey.isPresent() && KEY_ORDER.compare(afterKey.get(), prefix) >= 0
+                ? entriesByKey.tailMap(afterKey.get(), false)
+                : entriesByKey.tailMap(prefix, true);
+
+        List<String> keys = new ArrayList<>(Math.min(limit, 1024));
+        for (Map.Entry<String, List<Entry>> keyEntries : tail.entrySet()) {
+            if (keys.size() >= limit || !keyEntries.getKey().startsWith(prefix)) {
+                break;
+            }
+            if (latestCommittedOf(keyEntries.getValue()).isPresent()) {
+                keys.add(keyEntries.getKey());
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public synchronized void forEachLatestCommittedEntry(Consumer<CommittedEntry> consumer) {
+        entriesByKey.forEach((key, entries) -> latestCommittedOf(entries).ifPresent(entry ->
+                consumer.accept(new CommittedEntry(key, entry.version, entry.path))
+        ));
+    }
+
+    @Override
+    public synchronized void forEachCommittedEntryAfter(int afterId, Consumer<CommittedEntry> consumer) {
+        for (Entry entry : entriesById.tailMap(afterId, false).values()) {
+            if (entry.status == COMMITTED) {
+                consumer.accept(new CommittedEntry(entry.key, entry.version, entry.path));
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean hasEntryWithPath(IKey key, String path) {
+        Entry entry = entriesByPath.get(path);
+        return entry != null && entry.key.equals(String.valueOf(key.get()));
+    }
+
+    @Override
+    public synchronized boolean addUpdatingEntry(long version, IKey key, String path, Optional<byte[]> inlineValue) {
+        Map<IKey, byte[]> inlineValues = inlineValue.isPresent() ? Collections.singletonMap(key, inlineValue.get()) : Collections.emptyMap();
+        return addUpdatingEntries(version, Collections.singletonMap(key, path), inlineValues);
+    }
+
+    @Override
+    public synchronized boolean commitEntry(long version, IKey key, String filePath) {
+        return commitEntries(version, Collections.singletonMap(key, filePath));
+    }
+
+    @Override
+    public synchronized boolean markEntriesAsRemoved(IKey key) {
+        return markEntriesAsRemoved(Collections.singletonList(key));
+    }
+
+    @Override
+    public synchronized boolean addUpdatingEntries(long version, Map<IKey, String> paths, Map<IKey, byte[]> inlineValues) {
+        int entryId = lastEntryId;
+        for (Map.Entry<IKey, String> path : paths.entrySet()) {
+            byte[] inlineValue = inlineValues.get(path.getKey());
+            beginRecord(inlineValue != null ? ADD_INLINE : ADD);
+            putInt(++entryId);
+            putString(String.valueOf(path.getKey().get()));
+            putLong(version);
+            putString(path.getValue());
+            if (inlineValue != null) {
+                putBytes(inlineValue);
+            }
+            endRecord();
+        }
+        if ( !writeRecords() ) {
+            return false;
+        }
+
+        for (Map.Entry<IKey, String> path : paths.entrySet()) {
+            applyAdd(++lastEntryId, String.valueOf(path.getKey().get()), version, path.getValue(), inlineValues.get(path.getKey()));
+        }
+        checkpointIfLogIsFull();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean commitEntries(long version, Map<IKey, String> filePaths) {
+        // the keys of a batch share their version, an entry is matched by its key and path as well
+        List<Entry> committedEntries = new ArrayList<>(filePaths.size());
+        filePaths.forEach((key, filePath) -> {
+            Entry entry = entriesByPath.get(filePath);
+            if (entry != null && entry.status == UPDATING && entry.version == version && entry.key.equals(String.valueOf(key.get()))) {
+                committedEntries.add(entry);
+            }
+        });
+        if ( !changeStatus(committedEntries, COMMIT, COMMITTED) ) {
+            return false;
+        }
+        return committedEntries.size() == filePaths.size();
+    }
+
+    @Override
+    public synchronized boolean markEntriesAsRemoved(Collection<IKey> keys) {
+        List<Entry> keyEntries = new ArrayList<>();
+        for (IKey key : keys) {
+            keyEntries.addAll(entriesByKey.getOrDefault(String.valueOf(key.get()), Collections.emptyList()));
+        }
+        List<Entry> removedEntries = new ArrayList<>(keyEntries.size());
+        keyEntries.stream().filter(entry -> entry.status != REMOVED).forEach(removedEntries::add);
+        return changeStatus(removedEntries, REMOVE, REMOVED) && !keyEntries.isEmpty();
+    }
+
+    @Override
+    public synchronized Map<Integer, String> getCommittedEntriesFor(Collection<IKey> keys) {
+        Map<Integer, String> entryMap = new LinkedHashMap<>();
+        for (IKey key : keys) {
+            for (Entry entry : entriesByKey.getOrDefault(String.valueOf(key.get()), Collections.emptyList())) {
+                if (entry.status == COMMITTED) {
+                    entryMap.put(entry.id, entry.path);
+                }
+            }
+        }
+        return entryMap;
+    }
+
+    @Override
+    public synchronized Optional<byte[]> getInlineValue(IKey key, String path) {
+        Entry entry = entriesByPath.get(path);
+        if (entry == null || entry.status != COMMITTED || !entry.key.equals(String.valueOf(key.get()))) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(entry.inlineValue);
+    }
+
+    @Override
+    public synchronized boolean relocateEntry(String fromPath, String toPath) {
+        Entry entry = entriesByPath.get(fromPath);
+        if (entry == null || entry.status != COMMITTED) {
+            return false;
+        }
+
+        beginRecord(RELOCATE);
+        putInt(entry.id);
+        putString(toPath);
+        endRecord();
+        if ( !writeRecords() ) {
+            return false;
+        }
+        applyRelocate(entry.id, toPath);
+        checkpointIfLogIsFull();
+        return true;
+    }
+
+    @Override
+    public synchronized Map<Integer, String> getCollectableEntries(int afterId, int upToId, int limit) {
+        Map<Integer, String> entryMap = new LinkedHashMap<>();
+        if (upToId <= afterId) {
+            return entryMap;
+        }
+        for (Entry entry : entriesById.subMap(afterId, false, upToId, true).values()) {
+            if (entryMap.size() >= limit) {
+                break;
+            }
+            if (entry.status == REMOVED || (entry.status == COMMITTED && isSuperseded(entry))) {
+                entryMap.put(entry.id, entry.path);
+            }
+        }
+        return entryMap;
+    }
+
+    @Override
+    public synchronized int getMaxEntryId() {
+        return entriesById.isEmpty() ? 0 : entriesById.lastKey();
+    }
+
+    @Override
+    public boolean removeEntries(Map<Integer, String> entries, Consumer<String> valueRemover) {
+        List<Integer> removedIds = new ArrayList<>(entries.size());
+        synchronized (this) {
+            for (Integer id : entries.keySet()) {
+                if (entriesById.containsKey(id)) {
+                    beginRecord(DELETE);
+                    putInt(id);
+                    endRecord();
+                    removedIds.add(id);
+                }
+            }
+            if ( !writeRecords() ) {
+                return false;
+            }
+            removedIds.forEach(this::applyDelete);
+            checkpointIfLogIsFull();
+        }
+
+        // the values are released once their entries are gone for sure, and only by the call that removed them
+        removedIds.forEach(id -> valueRemover.accept(entries.get(id)));
+        return true;
+    }
+
+    private boolean changeStatus(List<Entry> entries, byte recordType, int status) {
+        for (Entry entry : entries) {
+            beginRecord(recordType);
+            putInt(entry.id);
+            endRecord();
+        }
+        if ( !writeRecords() ) {
+            return false;
+        }
+        entries.forEach(entry -> entry.status = status);
+        checkpointIfLogIsFull();
+        return true;
+    }
+
+    private static Optional<Entry> latestCommittedOf(List<Entry> entries) {
+        if (entries == null) {
+            return Optional.empty();
+        }
+        Entry latest = null;
+        for (Entry entry : entries) {
+            if (entry.status == COMMITTED && (latest == null || entry.isNewerThan(latest))) {
+                latest = entry;
+            }
+        }
+        return Optional.ofNullable(latest);
+    }
+
+    // the versions of a shard are unique, the equal ones of a log written before they were are ordered by their ids
+    private boolean isSuperseded(Entry entry) {
+        for (Entry other : entriesByKey.get(entry.key)) {
+            if (other.status == COMMITTED && other.isNewerThan(entry)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void applyAdd(int id, String key, long version, String path, byte[] inlineValue) {
+        applyDelete(id);
+        Entry entry = new Entry(id, key, version, path, inlineValue);
+        entriesById.put(id, entry);
+        entriesByKey.computeIfAbsent(key, entryKey -> new ArrayList<>(1)).add(entry);
+        entriesByPath.put(path, entry);
+        lastEntryId = Math.max(lastEntryId, id);
+    }
+
+    private void applyStatus(int id, int status) {
+        Entry entry = entriesById.get(id);
+        if (entry != null) {
+            entry.status = status;
+        }
+    }
+
+    private void applyRelocate(int id, String path) {
+        Entry entry = entriesById.get(id);
+        if (entry != null) {
+            entriesByPath.remove(entry.path);
+            entry.path = path;
+            entriesByPath.put(path, entry);
+        }
+    }
+
+    private void applyDelete(int id) {
+        Entry entry = entriesById.remove(id);
+        if (entry == null) {
+            return;
+        }
+        entriesByPath.remove(entry.path);
+        List<Entry> keyEntries = entriesByKey.get(entry.key);
+        keyEntries.remove(entry);
+        if (keyEntries.isEmpty()) {
+            entriesByKey.remove(entry.key);
+        }
+    }
+
+    private void beginRecord(byte recordType) {
+        ensureCapacity(RECORD_HEADER_SIZE + 1);
+        recordStart = pendingRecords.position();
+        pendingRecords.position(recordStart + RECORD_HEADER_SIZE);
+        pendingRecords.put(recordType);
+    }
+
+    private void putInt(int value) {
+        ensureCapacity(Integer.BYTES);
+        pendingRecords.putInt(value);
+    }
+
+    private void putLong(long value) {
+        ensureCapacity(Long.BYTES);
+        pendingRecords.putLong(value);
+    }
+
+    private void putString(String value) {
+        putBytes(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void putBytes(byte[] data) {
+        ensureCapacity(Integer.BYTES + data.length);
+        pendingRecords.putInt(data.length).put(data);
+    }
+
+    private void endRecord() {
+        int payloadLength = pendingRecords.position() - recordStart - RECORD_HEADER_SIZE;
+        recordChecksum.reset();
+        recordChecksum.update(pendingRecords.array(), recordStart + RECORD_HEADER_SIZE, payloadLength);
+        pendingRecords.putInt(recordStart, payloadLength);
+        pendingRecords.putInt(recordStart + Integer.BYTES, (int) recordChecksum.getValue());
+    }
+
+    private void ensureCapacity(int length) {
+        if (pendingRecords.remaining() < length) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pendingRecords.capacity() * 2, pendingRecords.position() + length));
+            pendingRecords.flip();
+            grown.put(pendingRecords);
+            pendingRecords = grown;
+        }
+    }
+
+    private boolean writeRecords() {
+        pendingRecords.flip();
+        try {
+            if (pendingRecords.hasRemaining()) {
+                int length = pendingRecords.remaining();
+                while (pendingRecords.hasRemaining()) {
+                    logChannel.write(pendingRecords, logSize + length - pendingRecords.remaining());
+                }
+                logChannel.force(false);
+                logSize += length;
+            }
+            return true;
+        }
+        catch (IOException e) {
+            LOG.error("Unable to append to the register log of the '{}' shard.", shardPath, e);
+            return false;
+        }
+        finally {
+            pendingRecords.clear();
+        }
+    }
+
+    private void checkpointIfLogIsFull() {
+        if (logSize >= checkpointLogSize) {
+            checkpoint();
+        }
+    }
+
+    private boolean checkpoint() {
+        Path checkpointTempPath = shardPath.resolve(CHECKPOINT_TEMP_FILE_NAME);
+        try (FileChannel checkpointChannel = FileChannel.open(checkpointTempPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            CheckedOutputStream checkedOutput = new CheckedOutputStream(new BufferedOutputStream(Channels.newOutputStream(checkpointChannel), 64 * 1024), new CRC32());
+            DataOutputStream output = new DataOutputStream(checkedOutput);
+            output.writeInt(CHECKPOINT_MAGIC);
+            output.writeInt(lastEntryId);
+            output.writeInt(entriesById.size());
+            for (Entry entry : entriesById.values()) {
+                output.writeInt(entry.id);
+                writeString(output, entry.key);
+                output.writeLong(entry.version);
+                writeString(output, entry.path);
+                output.writeByte(entry.status);
+                // a negative length stands for a value kept in a file
+                output.writeInt(entry.inlineValue != null ? entry.inlineValue.length : -1);
+                if (entry.inlineValue != null) {
+                    output.write(entry.inlineValue);
+                }
+            }
+            output.flush();
+            output.writeLong(checkedOutput.getChecksum().getValue());
+            output.flush();
+            checkpointChannel.force(true);
+        }
+        catch (IOException e) {
+            LOG.error("Unable to write a checkpoint of the '{}' shard register.", shardPath, e);
+            return false;
+        }
+
+        try {
+            Files.move(checkpointTempPath, shardPath.resolve(CHECKPOINT_FILE_NAME), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            forceDirectory();
+            // the log is started over only once the checkpoint has replaced the previous one for sure
+            logChannel.truncate(0);
+            logChannel.force(true);
+            logSize = 0;
+        }
+        catch (IOException e) {
+            LOG.error("Unable to replace the checkpoint of the '{}' shard register.", shardPath, e);
+            return false;
+        }
+        return true;
+    }
+
+    private void forceDirectory() {
+        try (FileChannel directory = FileChannel.open(shardPath, StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+        catch (IOException e) {
+            // not every platform could open a directory, a rename is durable there on its own
+            LOG.trace("Unable to force the '{}' directory.", shardPath, e);
+        }
+    }
+
+    private void loadCheckpoint() throws IOException {
+        Path checkpointPath = shardPath.resolve(CHECKPOINT_FILE_NAME);
+        if ( !Files.exists(checkpointPath) ) {
+            return;
+        }
+
+        try (InputStream checkpointInput = new BufferedInputStream(Files.newInputStream(checkpointPath), 64 * 1024)) {
+            CheckedInputStream checkedInput = new CheckedInputStream(checkpointInput, new CRC32());
+            DataInputStream input = new DataInputStream(checkedInput);
+            int magic = input.readInt();
+            if (magic != CHECKPOINT_MAGIC && magic != CHECKPOINT_MAGIC_WITHOUT_VALUES) {
+                throw new IOException("The " + checkpointPath + " file is not a register checkpoint.");
+            }
+            int checkpointLastEntryId = input.readInt();
+            int entryCount = input.readInt();
+            for (int i = 0; i < entryCount; i++) {
+                int id = input.readInt();
+                String key = readString(input);
+                long version = input.readLong();
+                String path = readString(input);
+                int status = input.readByte();
+                byte[] inlineValue = null;
+                if (magic == CHECKPOINT_MAGIC) {
+                    int inlineValueLength = input.readInt();
+                    if (inlineValueLength >= 0) {
+                        inlineValue = new byte[inlineValueLength];
+                        input.readFully(inlineValue);
+                    }
+                }
+                applyAdd(id, key, version, path, inlineValue);
+                applyStatus(id, status);
+            }
+            long checksum = checkedInput.getChecksum().getValue();
+            if (new DataInputStream(checkpointInput).readLong() != checksum) {
+                throw new IOException("The " + checkpointPath + " checkpoint is corrupted.");
+            }
+            lastEntryId = Math.max(lastEntryId, checkpointLastEntryId);
+        }
+    }
+
+    private void replayLog() throws IOException {
+        long logLength = logChannel.size();
+        long position = 0;
+        int replayedRecords = 0;
+        DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(logChannel.position(0)), 64 * 1024));
+        CRC32 checksum = new CRC32();
+        while (position + RECORD_HEADER_SIZE <= logLength) {
+            int payloadLength = input.readInt();
+            int expectedChecksum = input.readInt();
+            if (payloadLength <= 0 || position + RECORD_HEADER_SIZE + payloadLength > logLength) {
+                break;
+            }
+            byte[] payload = new byte[payloadLength];
+            input.readFully(payload);
+            checksum.reset();
+            checksum.update(payload, 0, payloadLength);
+            if ((int) checksum.getValue() != expectedChecksum) {
+                break;
+            }
+            replayRecord(ByteBuffer.wrap(payload));
+            position += RECORD_HEADER_SIZE + payloadLength;
+            replayedRecords++;
+        }
+
+        if (position < logLength) {
+            // a torn tail, such a record has never been acknowledged
+            LOG.warn("Truncating the register log of the '{}' shard at {} of {} bytes.", new Object[] {shardPath, position, logLength});
+            logChannel.truncate(position);
+        }
+        logSize = position;
+        LOG.trace("Replayed {} register log records of the '{}' shard.", replayedRecords, shardPath);
+    }
+
+    private void replayRecord(ByteBuffer record) {
+        byte recordType = record.get();
+        int id = record.getInt();
+        switch (recordType) {
+            case ADD:
+            case ADD_INLINE:
+                String key = getString(record);
+                long version = record.getLong();
+                String path = getString(record);
+                applyAdd(id, key, version, path, recordType == ADD_INLINE ? getBytes(record) : null);
+                break;
+            case COMMIT:
+                applyStatus(id, COMMITTED);
+                break;
+            case REMOVE:
+                applyStatus(id, REMOVED);
+                break;
+            case RELOCATE:
+                applyRelocate(id, getString(record));
+                break;
+            case DELETE:
+                applyDelete(id);
+                break;
+            default:
+                throw new IllegalStateException("Unknown register log record type " + recordType + " of the " + shardPath + " shard.");
+        }
+    }
+
+    // unlike writeUTF, a string is not limited to 64 KB
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] data = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(data.length);
+        output.write(data);
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        byte[] data = new byte[input.readInt()];
+        input.readFully(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    private static String getString(ByteBuffer record) {
+        return new String(getBytes(record), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] getBytes(ByteBuffer record) {
+        byte[] data = new byte[record.getInt()];
+        record.get(data);
+        return data;
+    }
+
+    private static class Entry {
+        private final int id;
+        private final String key;
+        private final long version;
+        private String path;
+        private final byte[] inlineValue;
+        private int status = UPDATING;
+
+        private Entry(int id, String key, long version, String path, byte[] inlineValue) {
+            this.id = id;
+            this.key = key;
+            this.version = version;
+            this.path = path;
+            this.inlineValue = inlineValue;
+        }
+
+        private boolean isNewerThan(Entry other) {
+            return version > other.version || (version == other.version && id > other.id);
+        }
+    }
+}
@@ -3,13 +3,24 @@ package org.smartsoftware.smartmap.request.manager.datasource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.smartsoftware.smartmap.domain.data.IKey;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.jdbc.core.support.JdbcDaoSupport;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.sql.DataSource;
 import java.nio.file.Path;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 /**
  * Created by Dmitry on 23.04.2017.
@@ -18,19 +29,53 @@ public class SqliteShardDAO extends JdbcDaoSupport implements IShardDAO {
 
     private static final Logger LOG = LoggerFactory.getLogger(SqliteShardDAO.class);
 
+    // the status codes of the entries, the layout before the second schema version kept them as text
+    private static final int UPDATING = 0;
+    private static final int COMMITTED = 1;
+    private static final int REMOVED = 2;
+
     private static final String GET_LATEST_COMMITTED_FILE_PATH =
             "SELECT path " +
             "FROM ENTRIES " +
-            "WHERE entry_key = ? AND status = 'COMMITTED'" +
-            "ORDER BY asAt DESC " +
+            "WHERE entry_key = ? AND status = " + COMMITTED + " " +
+            "ORDER BY version DESC, id DESC " +
             "LIMIT 1";
 
     private static final String GET_ALL_LATEST_COMMITTED_KEYS =
             "SELECT entry_key, MAX(asAt) asAt " +
             "FROM ENTRIES " +
-            "WHERE status = 'COMMITTED' " +
+            "WHERE status = " + COMMITTED + " " +
             "GROUP BY entry_key ";
 
+    // a page is read off the key index in its order, so it costs the same wherever it starts
+    private static final String GET_LATEST_COMMITTED_KEYS_PAGE =
+            "SELECT DISTINCT entry_key FROM ENTRIES " +
+            "WHERE entry_key >= ? AND status = " + COMMITTED + " " +
+            "ORDER BY entry_key LIMIT ?;";
+
+    private static final String GET_LATEST_COMMITTED_KEYS_PAGE_AFTER =
+            "SELECT DISTINCT entry_key FROM ENTRIES " +
+            "WHERE entry_key >= ? AND entry_key > ? AND status = " + COMMITTED + " " +
+            "ORDER BY entry_key LIMIT ?;";
+
+    // the versions of a shard are unique, the equal ones of a register written before they were are ordered by their ids
+    private static final String GET_ALL_LATEST_COMMITTED_ENTRIES =
+            "SELECT entry_key, version, path " +
+            "FROM ENTRIES e " +
+            "WHERE status = " + COMMITTED + " AND NOT EXISTS ( " +
+            "    SELECT 1 FROM ENTRIES n " +
+            "    WHERE n.entry_key = e.entry_key AND n.status = " + COMMITTED + " " +
+            "    AND (n.version > e.version OR (n.version = e.version AND n.id > e.id)) " +
+            ")";
+
+    // the ids only grow, so the entries committed after a checkpoint of the index are read off the primary key
+    private static final String GET_COMMITTED_ENTRIES_AFTER_ID =
+            "SELECT entry_key, version, path FROM ENTRIES " +
+            "WHERE id > ? AND status = " + COMMITTED + " " +
+            "ORDER BY id;";
+
+    private static final String COUNT_ENTRIES_WITH_PATH = "SELECT COUNT(*) FROM ENTRIES WHERE entry_key = ? AND path = ?;";
+
     private static final String CREATE_TABLE_IF_NOT_EXISTS = "CREATE TABLE IF NOT EXISTS ENTRIES(" +
             "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
             "entry_key TEXT NOT NULL, " +
@@ -39,36 +84,133 @@ public class SqliteShardDAO extends JdbcDaoSupport implements IShardDAO {
             "status TEXT CHECK(status IN ('UPDATING', 'COMMITTED', 'REMOVED')) " +
             ");";
 
-    private static final String GET_ALL_REMOVED_AND_COMMITTED_ENTRIES_BUT_LATEST =
-            "SELECT id, path from ENTRIES " +
-            "WHERE (status = 'COMMITTED' OR status = 'REMOVED') AND id NOT IN ( " +
-            "    SELECT id " +
-            "    FROM ( " +
-            "        SELECT " +
-            "            id, " +
-            "            entry_key, " +
-            "            MAX(asAt) asAt " +
-            "        FROM ENTRIES " +
-            "        WHERE status = 'COMMITTED' " +
-            "        GROUP BY entry_key " +
+    private static final String CREATE_KEY_INDEX_IF_NOT_EXISTS = "CREATE INDEX IF NOT EXISTS ENTRIES_KEY_AS_AT ON ENTRIES(entry_key, asAt);";
+
+    /*
+     * The version of the schema is kept in the user_version of a shard database. On start, the migrations a database
+     * has not seen yet are applied one by one, each of them together with the version it brings, so a database
+     * of any previous layout is upgraded in place. A migration is never changed once released, a new one is added.
+     */
+    private static final List<SchemaMigration> SCHEMA_MIGRATIONS = Arrays.asList(
+            new SchemaMigration(true,
+                    CREATE_TABLE_IF_NOT_EXISTS,
+                    CREATE_KEY_INDEX_IF_NOT_EXISTS
+            ),
+            // SQLite could not alter a column, so the table is rebuilt with the integer status codes
+            new SchemaMigration(true,
+                    "CREATE TABLE ENTRIES_V2(" +
+                    "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "entry_key TEXT NOT NULL, " +
+                    "asAt TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                    "path TEXT NOT NULL, " +
+                    "status INTEGER NOT NULL CHECK(status IN (" + UPDATING + ", " + COMMITTED + ", " + REMOVED + ")) " +
+                    ");",
+                    "INSERT INTO ENTRIES_V2 (id, entry_key, asAt, path, status) " +
+                    "SELECT id, entry_key, asAt, path, " +
+                    "CASE status WHEN 'COMMITTED' THEN " + COMMITTED + " WHEN 'REMOVED' THEN " + REMOVED + " ELSE " + UPDATING + " END " +
+                    "FROM ENTRIES;",
+                    "DROP TABLE ENTRIES;",
+                    "ALTER TABLE ENTRIES_V2 RENAME TO ENTRIES;"
+            ),
+            // the Get, the ListKeys, the commit and the housekeeper lookups are all answered by the key index alone,
+            // the uncommitted entries removed on start are found without a scan
+            new SchemaMigration(true,
+                    "DROP INDEX IF EXISTS ENTRIES_KEY_AS_AT;",
+                    "CREATE INDEX ENTRIES_KEY_STATUS_AS_AT_PATH ON ENTRIES(entry_key, status, asAt, path);",
+                    "CREATE INDEX ENTRIES_UNCOMMITTED ON ENTRIES(status) WHERE status <> " + COMMITTED + ";"
+            ),
+            // the journal mode is kept by a database, but it could not be changed within a transaction
+            new SchemaMigration(false,
+                    "PRAGMA journal_mode = WAL;"
+            ),
+            // a small value is kept in its entry, a NULL stands for a value kept in a file at the path
+            new SchemaMigration(true,
+                    "ALTER TABLE ENTRIES ADD COLUMN inline_value BLOB;"
+            ),
+            // the versions are kept apart from the wall clock 'asAt', the ones written before were both at once
+            new SchemaMigration(true,
+                    "ALTER TABLE ENTRIES ADD COLUMN version INTEGER NOT NULL DEFAULT 0;",
+                    "UPDATE ENTRIES SET version = asAt;",
+                    "DROP INDEX IF EXISTS ENTRIES_KEY_STATUS_AS_AT_PATH;",
+                    "CREATE INDEX ENTRIES_KEY_STATUS_VERSION_PATH ON ENTRIES(entry_key, status, version, path);"
+            )
+    );
+
+    // a window of ids is scanned per batch, so a run costs the same however big the register is
+    private static final String GET_COLLECTABLE_ENTRIES =
+            "SELECT id, path FROM ENTRIES e " +
+            "WHERE id > ? AND id <= ? AND (" +
+            "    status = " + REMOVED + " OR (" +
+            "        status = " + COMMITTED + " AND EXISTS ( " +
+            "            SELECT 1 FROM ENTRIES n " +
+            "            WHERE n.entry_key = e.entry_key AND n.status = " + COMMITTED + " " +
+            "            AND (n.version > e.version OR (n.version = e.version AND n.id > e.id)) " +
+            "        ) " +
             "    ) " +
-            ");";
+            ") " +
+            "ORDER BY id LIMIT ?;";
+
+    private static final String GET_MAX_ENTRY_ID = "SELECT COALESCE(MAX(id), 0) FROM ENTRIES;";
+
+    private static final String REMOVE_ENTRY_BY_ID = "DELETE FROM ENTRIES WHERE id = ?;";
+
+    private static final String GET_COMMITTED_ENTRIES_BY_KEYS = "SELECT id, path FROM ENTRIES WHERE entry_key IN (:keys) AND status = " + COMMITTED + ";";
 
-    private static final String REMOVE_ENTRIES_BY_ID = "DELETE FROM ENTRIES WHERE id IN (:ids);";
+    private static final String ADD_UPDATING_ENTRY = "INSERT INTO ENTRIES (entry_key, version, asAt, path, inline_value, status) VALUES (?, ?, ?, ?, ?, " + UPDATING + ");";
 
-    private static final String ADD_UPDATING_ENTRY = "INSERT INTO ENTRIES (entry_key, asAt, path, status) VALUES (?, ?, ?, 'UPDATING');";
+    private static final String GET_INLINE_VALUE = "SELECT inline_value FROM ENTRIES WHERE entry_key = ? AND path = ? AND status = " + COMMITTED + ";";
 
-    private static final String COMMIT_ENTRY = "UPDATE ENTRIES SET status = 'COMMITTED' WHERE entry_key = ? AND asAt = ? AND status = 'UPDATING';";
+    private static final String COMMIT_ENTRY = "UPDATE ENTRIES SET status = " + COMMITTED + " WHERE entry_key = ? AND version = ? AND path = ? AND status = " + UPDATING + ";";
 
-    private static final String REMOVE_ALL_UNCOMMITTED_ENTRIES = "DELETE FROM ENTRIES WHERE status != 'COMMITTED';";
+    private static final String REMOVE_ALL_UNCOMMITTED_ENTRIES = "DELETE FROM ENTRIES WHERE status <> " + COMMITTED + ";";
 
-    private static final String MARK_ENTRIES_AS_REMOVED = "UPDATE ENTRIES SET status = 'REMOVED' WHERE entry_key = ?;";
+    private static final String MARK_ENTRIES_AS_REMOVED = "UPDATE ENTRIES SET status = " + REMOVED + " WHERE entry_key = ?;";
+
+    private static final String MARK_ENTRIES_AS_REMOVED_BY_KEYS = "UPDATE ENTRIES SET status = " + REMOVED + " WHERE entry_key IN (:keys);";
+
+    // SQLite does not accept more than 999 host parameters per statement
+    private static final int MAX_KEYS_PER_STATEMENT = 500;
+
+    private static final String RELOCATE_COMMITTED_ENTRY = "UPDATE ENTRIES SET path = ? WHERE path = ? AND status = " + COMMITTED + ";";
 
     private Path shardPath;
 
+    // group commit is off unless a window is configured
+    private long groupCommitWindowMs = 0;
+    private int groupCommitMaxBatchSize = 64;
+    private long groupCommitTimeoutMs = 10_000;
+    private final BlockingQueue<PendingUpdate> pendingUpdates = new LinkedBlockingQueue<>();
+    private Thread groupCommitter;
+    private volatile boolean isClosed = false;
+    private final TransactionTemplate transactionTemplate;
+
+    // the lookups go through a pool of read only connections if one is given, in the WAL mode they never wait
+    // for the writer, while all the changes are made through the single connection of the data source
+    private JdbcTemplate readJdbcTemplate;
+
     SqliteShardDAO(Path shardPath, DataSource dataSource) {
         this.shardPath = shardPath;
         setDataSource(dataSource);
+        this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+    }
+
+    public void setReadDataSource(DataSource readDataSource) {
+        this.readJdbcTemplate = new JdbcTemplate(readDataSource);
+    }
+
+    public void setGroupCommitWindowMs(long groupCommitWindowMs) {
+        this.groupCommitWindowMs = groupCommitWindowMs;
+    }
+
+    public void setGroupCommitMaxBatchSize(int groupCommitMaxBatchSize) {
+        this.groupCommitMaxBatchSize = groupCommitMaxBatchSize;
+    }
+
+    /**
+     * How long a writer waits for its group commit, it gives up with a failure after that.
+     */
+    public void setGroupCommitTimeoutMs(long groupCommitTimeoutMs) {
+        this.groupCommitTimeoutMs = groupCommitTimeoutMs;
     }
 
     @Override
@@ -83,23 +225,90 @@ public class SqliteShardDAO extends JdbcDaoSupport implements IShardDAO {
                 throw new RuntimeException("Cannot validate a connection to the " + shardPathDir + " shard.");
             }
 
+            migrateSchema(shardConnection, shardPathDir);
+
             Statement shardInitStmt = shardConnection.createStatement();
-            shardInitStmt.execute(CREATE_TABLE_IF_NOT_EXISTS);
             shardInitStmt.execute(REMOVE_ALL_UNCOMMITTED_ENTRIES);
         }
         catch (SQLException e) {
             throw new RuntimeException(e);
         }
+
+        startGroupCommitter(shardPathDir);
+    }
+
+    private synchronized void startGroupCommitter(String shardPathDir) {
+        isClosed = false;
+        if ( !isGroupCommitEnabled() || (groupCommitter != null && groupCommitter.isAlive()) ) {
+            return;
+        }
+        groupCommitter = new Thread(this::runGroupCommits, "group-committer-" + shardPathDir);
+        groupCommitter.setDaemon(true);
+        groupCommitter.start();
+    }
+
+    /**
+     * Stops the group committer, the updates still waiting for it and any submitted later fail.
+     */
+    public synchronized void close() {
+        isClosed = true;
+        if (groupCommitter != null) {
+            groupCommitter.interrupt();
+            try {
+                groupCommitter.join(groupCommitTimeoutMs);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            groupCommitter = null;
+        }
+        failPendingUpdates();
+    }
+
+    private static void migrateSchema(Connection shardConnection, String shardPathDir) throws SQLException {
+        int schemaVersion;
+        try (Statement statement = shardConnection.createStatement();
+             ResultSet resultSet = statement.executeQuery("PRAGMA user_version;")) {
+            schemaVersion = resultSet.getInt(1);
+        }
+
+        boolean autoCommit = shardConnection.getAutoCommit();
+        try {
+            for (int version = schemaVersion + 1; version <= SCHEMA_MIGRATIONS.size(); version++) {
+                LOG.info("Migrating the register of the {} shard to the schema version {}...", shardPathDir, version);
+                SchemaMigration migration = SCHEMA_MIGRATIONS.get(version - 1);
+                shardConnection.setAutoCommit( !migration.isTransactional );
+                try (Statement statement = shardConnection.createStatement()) {
+                    for (String migrationStatement : migration.statements) {
+                        statement.execute(migrationStatement);
+                    }
+                    statement.execute("PRAGMA user_version = " + version + ";");
+                    if (migration.isTransactional) {
+                        shardConnection.commit();
+                    }
+                }
+                catch (SQLException e) {
+                    if (migration.isTransactional) {
+                        shardConnection.rollback();
+                    }
+                    throw e;
+                }
+            }
+        }
+        finally {
+            shardConnection.setAutoCommit(autoCommit);
+        }
     }
 
     SqliteShardDAO(DataSource dataSource) {
         setDataSource(dataSource);
+        this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
     }
 
 
     @Override
     public Optional<String> getCommittedPathFor(IKey key) {
-        List<String> paths = getJdbcTemplate().query(GET_LATEST_COMMITTED_FILE_PATH, new Object[]{key.get()}, (resultSet, i) -> resultSet.getString(1));
+        List<String> paths = getReadJdbcTemplate().query(GET_LATEST_COMMITTED_FILE_PATH, new Object[]{key.get()}, (resultSet, i) -> resultSet.getString(1));
         if (paths.size() == 0) {
             return Optional.empty();
         }
@@ -112,16 +321,58 @@ public class SqliteShardDAO extends JdbcDaoSupport implements IShardDAO {
 
     @Override
     public List<String> getAllLatestCommittedKeys() {
-        return getJdbcTemplate().query(GET_ALL_LATEST_COMMITTED_KEYS, (resultSet, i) -> resultSet.getString(1));
+        return getReadJdbcTemplate().query(GET_ALL_LATEST_COMMITTED_KEYS, (resultSet, i) -> resultSet.getString(1));
+    }
+
+    @Override
+    public List<String> getLatestCommittedKeys(String prefix, Optional<String> afterKey, int limit) {
+        List<String> keys = afterKey.isPresent()
+                ? getReadJdbcTemplate().query(GET_LATEST_COMMITTED_KEYS_PAGE_AFTER, (resultSet, i) -> resultSet.getString(1), prefix, afterKey.get(), limit)
+                : getReadJdbcTemplate().query(GET_LATEST_COMMITTED_KEYS_PAGE, (resultSet, i) -> resultSet.getString(1), prefix, limit);
+
+        // the keys starting with the prefix go in a row, so the page ends at the first one that does not
+        for (int i = 0; i < keys.size(); i++) {
+            if ( !keys.get(i).startsWith(prefix) ) {
+                return keys.subList(0, i);
+            }
+        }
+        return keys;
     }
 
-    public boolean addUpdatingEntry(Timestamp timestamp, IKey key, String filePath) {
-        int updatedRecords = getJdbcTemplate().update(ADD_UPDATING_ENTRY, key.get(), timestamp, filePath);
+    @Override
+    public void forEachLatestCommittedEntry(Consumer<CommittedEntry> consumer) {
+        getReadJdbcTemplate().query(GET_ALL_LATEST_COMMITTED_ENTRIES, resultSet -> {
+            consumer.accept(new CommittedEntry(resultSet.getString(1), resultSet.getLong(2), resultSet.getString(3)));
+        });
+    }
+
+    @Override
+    public void forEachCommittedEntryAfter(int afterId, Consumer<CommittedEntry> consumer) {
+        getReadJdbcTemplate().query(GET_COMMITTED_ENTRIES_AFTER_ID, resultSet -> {
+            consumer.accept(new CommittedEntry(resultSet.getString(1), resultSet.getLong(2), resultSet.getString(3)));
+        }, afterId);
+    }
+
+    @Override
+    public boolean hasEntryWithPath(IKey key, String path) {
+        return getReadJdbcTemplate().queryForObject(COUNT_ENTRIES_WITH_PATH, Integer.class, key.get(), path) > 0;
+    }
+
+    @Override
+    public boolean addUpdatingEntry(long version, IKey key, String path, Optional<byte[]> inlineValue) {
+        if (isGroupCommitEnabled()) {
+            return submitToGroupCommit(ADD_UPDATING_ENTRY, key.get(), version, System.currentTimeMillis(), path, inlineValue.orElse(null));
+        }
+        int updatedRecords = getJdbcTemplate().update(ADD_UPDATING_ENTRY, key.get(), version, System.currentTimeMillis(), path, inlineValue.orElse(null));
         return updatedRecords > 0;
     }
 
-    public boolean commitEntry(Timestamp timestamp, IKey key) {
-        int updatedRecords = getJdbcTemplate().update(COMMIT_ENTRY, key.get(), timestamp);
+    public boolean commitEntry(long version, IKey key, String filePath) {
+        // the keys of a batch share their version, an entry is matched by its key and path as well
+        if (isGroupCommitEnabled()) {
+            return submitToGroupCommit(COMMIT_ENTRY, key.get(), version, filePath);
+        }
+        int updatedRecords = getJdbcTemplate().update(COMMIT_ENTRY, key.get(), version, filePath);
         return updatedRecords > 0;
     }
 
@@ -132,37 +383,240 @@ public class SqliteShardDAO extends JdbcDaoSupport implements IShardDAO {
     }
 
     @Override
-    public boolean removeEntries(Set<Integer> ids) {
-        NamedParameterJdbcTemplate namedParamJdbcTemplate = new NamedParameterJdbcTemplate(getDataSource());
-        int updatedRecords = namedParamJdbcTemplate.update(REMOVE_ENTRIES_BY_ID, Collections.singletonMap("ids", ids));
+    public boolean addUpdatingEntries(long version, Map<IKey, String> paths, Map<IKey, byte[]> inlineValues) {
+        long asAt = System.currentTimeMillis();
+        List<Object[]> arguments = new ArrayList<>(paths.size());
+        paths.forEach((key, path) -> arguments.add(new Object[] {key.get(), version, asAt, path, inlineValues.get(key)}));
+        int[] updatedRecords = transactionTemplate.execute(status -> getJdbcTemplate().batchUpdate(ADD_UPDATING_ENTRY, arguments));
+        return allUpdated(updatedRecords);
+    }
+
+    @Override
+    public boolean commitEntries(long version, Map<IKey, String> filePaths) {
+        List<Object[]> arguments = new ArrayList<>(filePaths.size());
+        filePaths.forEach((key, filePath) -> arguments.add(new Object[] {key.get(), version, filePath}));
+        int[] updatedRecords = transactionTemplate.execute(status -> getJdbcTemplate().batchUpdate(COMMIT_ENTRY, arguments));
+        return allUpdated(updatedRecords);
+    }
+
+    @Override
+    public boolean markEntriesAsRemoved(Collection<IKey> keys) {
+        List<Object> keyValues = new ArrayList<>(keys.size());
+        keys.forEach(key -> keyValues.add(key.get()));
+        NamedParameterJdbcTemplate namedParamJdbcTemplate = new NamedParameterJdbcTemplate(getJdbcTemplate());
+        int updatedRecords = transactionTemplate.execute(status -> {
+            int updated = 0;
+            for (int from = 0; from < keyValues.size(); from += MAX_KEYS_PER_STATEMENT) {
+                List<Object> chunk = keyValues.subList(from, Math.min(from + MAX_KEYS_PER_STATEMENT, keyValues.size()));
+                updated += namedParamJdbcTemplate.update(MARK_ENTRIES_AS_REMOVED_BY_KEYS, Collections.singletonMap("keys", chunk));
+            }
+            return updated;
+        });
         return updatedRecords > 0;
     }
 
+    private static boolean allUpdated(int[] updatedRecords) {
+        for (int updatedRecord : updatedRecords) {
+            if (updatedRecord <= 0 && updatedRecord != Statement.SUCCESS_NO_INFO) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Optional<byte[]> getInlineValue(IKey key, String path) {
+        List<byte[]> values = getReadJdbcTemplate().query(GET_INLINE_VALUE, (resultSet, i) -> resultSet.getBytes(1), key.get(), path);
+        return values.isEmpty() ? Optional.empty() : Optional.ofNullable(values.get(0));
+    }
+
     @Override
-    public Map<Integer, String> getAllRemovedAndCommittedEntriesButLatest() {
-        List<Entry> entries = getJdbcTemplate().query(GET_ALL_REMOVED_AND_COMMITTED_ENTRIES_BUT_LATEST, (resultSet, i) -> {
-            return new Entry(resultSet.getInt(1), resultSet.getString(2));
+    public boolean relocateEntry(String fromPath, String toPath) {
+        int updatedRecords = getJdbcTemplate().update(RELOCATE_COMMITTED_ENTRY, toPath, fromPath);
+        return updatedRecords > 0;
+    }
+
+    @Override
+    public Map<Integer, String> getCommittedEntriesFor(Collection<IKey> keys) {
+        List<Object> keyValues = new ArrayList<>(keys.size());
+        keys.forEach(key -> keyValues.add(key.get()));
+        NamedParameterJdbcTemplate namedParamJdbcTemplate = new NamedParameterJdbcTemplate(getReadJdbcTemplate());
+        Map<Integer, String> entryMap = new LinkedHashMap<>();
+        for (int from = 0; from < keyValues.size(); from += MAX_KEYS_PER_STATEMENT) {
+            List<Object> chunk = keyValues.subList(from, Math.min(from + MAX_KEYS_PER_STATEMENT, keyValues.size()));
+            namedParamJdbcTemplate.query(GET_COMMITTED_ENTRIES_BY_KEYS, Collections.singletonMap("keys", chunk), resultSet -> {
+                entryMap.put(resultSet.getInt(1), resultSet.getString(2));
+            });
+        }
+        return entryMap;
+    }
+
+    @Override
+    public boolean removeEntries(Map<Integer, String> entries, Consumer<String> valueRemover) {
+        List<Integer> ids = new ArrayList<>(entries.keySet());
+        List<Object[]> arguments = new ArrayList<>(ids.size());
+        ids.forEach(id -> arguments.add(new Object[] {id}));
+        return transactionTemplate.execute(status -> {
+            int[] removedRecords = getJdbcTemplate().batchUpdate(REMOVE_ENTRY_BY_ID, arguments);
+            // only the entries removed by this call are released, the others are being released by someone else
+            for (int i = 0; i < removedRecords.length; i++) {
+                if (removedRecords[i] > 0) {
+                    valueRemover.accept(entries.get(ids.get(i)));
+                }
+            }
+            return true;
         });
-        Map<Integer, String> entryMap = new HashMap<>();
-        entries.stream().forEach(entry -> entryMap.put(entry.getId(), entry.getPath()));
+    }
+
+    @Override
+    public Map<Integer, String> getCollectableEntries(int afterId, int upToId, int limit) {
+        Map<Integer, String> entryMap = new LinkedHashMap<>();
+        getReadJdbcTemplate().query(GET_COLLECTABLE_ENTRIES, resultSet -> {
+            entryMap.put(resultSet.getInt(1), resultSet.getString(2));
+        }, afterId, upToId, limit);
         return entryMap;
     }
 
-    private static class Entry {
-        private int id;
-        private String path;
+    @Override
+    public int getMaxEntryId() {
+        return getReadJdbcTemplate().queryForObject(GET_MAX_ENTRY_ID, Integer.class);
+    }
+
+    private JdbcTemplate getReadJdbcTemplate() {
+        return readJdbcTemplate != null ? readJdbcTemplate : getJdbcTemplate();
+    }
+
+    private boolean isGroupCommitEnabled() {
+        return groupCommitWindowMs > 0;
+    }
+
+    private boolean submitToGroupCommit(String statement, Object... arguments) {
+        if (isClosed) {
+            LOG.error("Unable to submit an update to the closed register of the '{}' shard.", shardPath);
+            return false;
+        }
+        PendingUpdate pendingUpdate = new PendingUpdate(statement, arguments);
+        pendingUpdates.add(pendingUpdate);
+        if (isClosed) {
+            // the register has been closed meanwhile, the update might have been left behind in the queue
+            failPendingUpdates();
+        }
+
+        try {
+            return pendingUpdate.result.get(groupCommitTimeoutMs, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+            if (pendingUpdate.isTaken.compareAndSet(false, true)) {
+                LOG.error("A group commit of the '{}' shard has not been applied within {} ms.", shardPath, groupCommitTimeoutMs);
+                return false;
+            }
+            // the committer is applying the update already, its outcome is to be known shortly
+            return pendingUpdate.result.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return !pendingUpdate.isTaken.compareAndSet(false, true) && pendingUpdate.result.join();
+        }
+        catch (ExecutionException e) {
+            return false;
+        }
+    }
 
-        public Entry(int id, String path) {
-            this.id = id;
-            this.path = path;
+    private void failPendingUpdates() {
+        PendingUpdate pendingUpdate;
+        while ((pendingUpdate = pendingUpdates.poll()) != null) {
+            pendingUpdate.result.complete(false);
         }
+    }
 
-        public int getId() {
-            return id;
+    /**
+     * Gathers the updates submitted by concurrent writers during a window (or until a batch is full) and applies
+     * them in a single transaction, so a batch costs a single fsync. The writers are released only once
+     * the transaction is committed.
+     */
+    private void runGroupCommits() {
+        List<PendingUpdate> batch = new ArrayList<>(groupCommitMaxBatchSize);
+        while ( !isClosed && !Thread.currentThread().isInterrupted() ) {
+            try {
+                batch.add(pendingUpdates.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(groupCommitWindowMs);
+                while (batch.size() < groupCommitMaxBatchSize) {
+                    PendingUpdate pendingUpdate = pendingUpdates.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (pendingUpdate == null) {
+                        break;
+                    }
+                    batch.add(pendingUpdate);
+                }
+                // the writers which have given up on waiting are left out
+                batch.removeIf(pendingUpdate -> !pendingUpdate.isTaken.compareAndSet(false, true));
+                if ( !batch.isEmpty() ) {
+                    applyGroupCommit(batch);
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                batch.forEach(pendingUpdate -> pendingUpdate.result.complete(false));
+                batch.clear();
+            }
         }
+    }
+
+    private void applyGroupCommit(List<PendingUpdate> batch) {
+        int[] updatedRecords;
+        try {
+            updatedRecords = transactionTemplate.execute(status -> {
+                int[] counts = new int[batch.size()];
+                for (int i = 0; i < batch.size(); i++) {
+                    PendingUpdate pendingUpdate = batch.get(i);
+                    counts[i] = getJdbcTemplate().update(pendingUpdate.statement, pendingUpdate.arguments);
+                }
+                return counts;
+            });
+        }
+        catch (RuntimeException e) {
+            // a single failing update would fail every writer of the batch, so they are given a chance one by one
+            LOG.error("Unable to apply a group commit of {} updates for the '{}' shard, applying them one by one.", new Object[] {batch.size(), shardPath}, e);
+            batch.forEach(this::applySingleUpdate);
+            return;
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).result.complete(updatedRecords[i] > 0);
+        }
+    }
+
+    private void applySingleUpdate(PendingUpdate pendingUpdate) {
+        try {
+            pendingUpdate.result.complete(getJdbcTemplate().update(pendingUpdate.statement, pendingUpdate.arguments) > 0);
+        }
+        catch (RuntimeException e) {
+            LOG.error("Unable to apply an update for the '{}' shard.", shardPath, e);
+            pendingUpdate.result.complete(false);
+        }
+    }
+
+    private static class SchemaMigration {
+        private final boolean isTransactional;
+        private final String[] statements;
+
+        private SchemaMigration(boolean isTransactional, String... statements) {
+            this.isTransactional = isTransactional;
+            this.statements = statements;
+        }
+    }
+
+    private static class PendingUpdate {
+        private final String statement;
+        private final Object[] arguments;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        // taken either by the committer to apply it or by its writer to give up on it
+        private final AtomicBoolean isTaken = new AtomicBoolean();
 
-        public String getPath() {
-            return path;
+        private PendingUpdate(String statement, Object[] arguments) {
+            this.statement = statement;
+            this.arguments = arguments;
         }
     }
 }
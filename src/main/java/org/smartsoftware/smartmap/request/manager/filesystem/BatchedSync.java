@@ -0,0 +1,80 @@
+package org.smartsoftware.smartmap.request.manager.filesystem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Gathers the files written during a window (or until a batch is full) and forces them to the disk together,
+ * on a thread of its own, so the writers never wait for a sync. A file written several times in a window is
+ * synced once.
+ */
+class BatchedSync<T> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchedSync.class);
+
+    private final long windowMs;
+    private final int maxBatchSize;
+    private final Consumer<Set<T>> sync;
+    private final BlockingQueue<T> pendingSyncs = new LinkedBlockingQueue<>();
+    private final Thread syncer;
+
+    BatchedSync(String name, long windowMs, int maxBatchSize, Consumer<Set<T>> sync) {
+        this.windowMs = windowMs;
+        this.maxBatchSize = maxBatchSize;
+        this.sync = sync;
+        this.syncer = new Thread(this::run, name);
+        this.syncer.setDaemon(true);
+        this.syncer.start();
+    }
+
+    void add(T written) {
+        pendingSyncs.add(written);
+    }
+
+    /**
+     * Syncs whatever has been written so far on the calling thread.
+     */
+    void flush() {
+        List<T> batch = new ArrayList<>();
+        pendingSyncs.drainTo(batch);
+        if ( !batch.isEmpty() ) {
+            sync.accept(new LinkedHashSet<>(batch));
+        }
+    }
+
+    private void run() {
+        List<T> batch = new ArrayList<>(maxBatchSize);
+        while ( !Thread.currentThread().isInterrupted() ) {
+            try {
+                batch.add(pendingSyncs.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMs);
+                while (batch.size() < maxBatchSize) {
+                    T written = pendingSyncs.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (written == null) {
+                        break;
+                    }
+                    batch.add(written);
+                }
+                sync.accept(new LinkedHashSet<>(batch));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            catch (RuntimeException e) {
+                LOG.error("Unable to sync a batch of {} files.", batch.size(), e);
+            }
+            finally {
+                batch.clear();
+            }
+        }
+    }
+}
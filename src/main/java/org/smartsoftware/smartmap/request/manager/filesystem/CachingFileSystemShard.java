@@ -0,0 +1,296 @@
+package org.smartsoftware.smartmap.request.manager.filesystem;
+
+import org.smartsoftware.smartmap.domain.data.ByteBufferValue;
+import org.smartsoftware.smartmap.domain.data.IKey;
+import org.smartsoftware.smartmap.domain.data.IValue;
+import org.smartsoftware.smartmap.request.manager.metrics.ShardMetrics;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A read-through cache in front of a file system shard. Values are cached by their location: a location is never
+ * rewritten, a new version always gets a new one, so a cached value could only go stale when its location is
+ * removed, and that is where it is invalidated.
+ *
+ * The cache is bounded by the total size of the values and evicts with a segmented LRU: a value read once stays
+ * on probation and only a value read again is protected, so a scan over cold keys does not flush the hot ones.
+ *
+ * Hits do not lock: a value is looked up in a concurrent map and the hit is only recorded in a read buffer, which is
+ * replayed against the segments by whichever thread takes the lock next. A hit recorded while the buffer is full
+ * overwrites an older one, so under a heavy load the order of the segments is approximate, never the bytes they hold.
+ */
+public class CachingFileSystemShard implements IFileSystemShard {
+
+    private static final int INVALIDATION_STRIPES = 64;
+    private static final int READ_BUFFER_SIZE = 128;
+
+    private final IFileSystemShard fileSystem;
+
+    // a zero capacity leaves the cache off
+    private long maxBytes = 0;
+    private double protectedRatio = 0.8;
+
+    private final ConcurrentMap<String, ByteBuffer> values = new ConcurrentHashMap<>();
+
+    // the segments, they are changed under the lock only
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, ByteBuffer> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, ByteBuffer> protectedValues = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationBytes = 0;
+    private long protectedBytes = 0;
+
+    private final AtomicReferenceArray<String> readBuffer = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+    private final AtomicLong readBufferWrites = new AtomicLong();
+
+    // a value read from a location removed meanwhile must not get into the cache
+    private final AtomicLongArray invalidations = new AtomicLongArray(INVALIDATION_STRIPES);
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public CachingFileSystemShard(IFileSystemShard fileSystem) {
+        this.fileSystem = fileSystem;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public void setProtectedRatio(double protectedRatio) {
+        this.protectedRatio = protectedRatio;
+    }
+
+    @Override
+    public void init() {
+        fileSystem.init();
+    }
+
+    @Override
+    public Optional<String> newLocationFor(IKey key, IValue value) {
+        return fileSystem.newLocationFor(key, value);
+    }
+
+    @Override
+    public boolean createNewFileWithValue(String location, IValue value) {
+        return fileSystem.createNewFileWithValue(location, value);
+    }
+
+    @Override
+    public boolean removeFile(String location) {
+        // invalidated before the file is gone, so a hit never serves a value whose file has been removed already
+        invalidations.incrementAndGet(stripeOf(location));
+        invalidate(location);
+        return fileSystem.removeFile(location);
+    }
+
+    @Override
+    public IValue getValueFrom(String location) {
+        if (maxBytes <= 0) {
+            return fileSystem.getValueFrom(location);
+        }
+
+        Optional<ByteBuffer> cached = lookup(location);
+        if (cached.isPresent()) {
+            hitCount.incrementAndGet();
+            return new ByteBufferValue(cached.get());
+        }
+        missCount.incrementAndGet();
+
+        long invalidationsBeforeRead = invalidations.get(stripeOf(location));
+        IValue value = fileSystem.getValueFrom(location);
+        Optional<ByteBuffer> buffer = value.getBuffer();
+        if (buffer.isPresent()) {
+            admit(location, buffer.get(), invalidationsBeforeRead);
+            return new ByteBufferValue(buffer.get());
+        }
+        return value;
+    }
+
+    @Override
+    public Optional<ReadableByteChannel> openValueFrom(String location) {
+        if (maxBytes > 0) {
+            Optional<ByteBuffer> cached = lookup(location);
+            if (cached.isPresent()) {
+                hitCount.incrementAndGet();
+                return new ByteBufferValue(cached.get()).openChannel();
+            }
+        }
+        // a streamed value is a large one as a rule, it is not admitted not to flush the cache
+        return fileSystem.openValueFrom(location);
+    }
+
+    @Override
+    public void compact(ILocationRegister register) {
+        fileSystem.compact(register);
+    }
+
+    @Override
+    public void flush() {
+        fileSystem.flush();
+    }
+
+    @Override
+    public int reconcile(ILocationRegister register) {
+        return fileSystem.reconcile(register);
+    }
+
+    @Override
+    public void bindMetrics(ShardMetrics metrics) {
+        metrics.bindCacheCounters(this::getHitCount, this::getMissCount, this::getEvictionCount);
+        fileSystem.bindMetrics(metrics);
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public long getCachedBytes() {
+        lock.lock();
+        try {
+            return probationBytes + protectedBytes;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private Optional<ByteBuffer> lookup(String location) {
+        ByteBuffer buffer = values.get(location);
+        if (buffer == null) {
+            return Optional.empty();
+        }
+
+        long index = readBufferWrites.getAndIncrement();
+        readBuffer.lazySet((int) (index % READ_BUFFER_SIZE), location);
+        if (index % READ_BUFFER_SIZE == READ_BUFFER_SIZE - 1 && lock.tryLock()) {
+            try {
+                drainReadBuffer();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        return Optional.of(buffer);
+    }
+
+    private void drainReadBuffer() {
+        for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+            String location = readBuffer.getAndSet(i, null);
+            if (location != null) {
+                recordHit(location);
+            }
+        }
+    }
+
+    private void recordHit(String location) {
+        if (protectedValues.get(location) != null) {
+            return;
+        }
+
+        ByteBuffer buffer = probation.remove(location);
+        if (buffer == null) {
+            // evicted or invalidated since it has been read
+            return;
+        }
+        // a second read promotes a value, the least recent protected ones are demoted to make room for it
+        probationBytes -= buffer.remaining();
+        protectedValues.put(location, buffer);
+        protectedBytes += buffer.remaining();
+        long maxProtectedBytes = (long) (maxBytes * protectedRatio);
+        Iterator<Map.Entry<String, ByteBuffer>> eldest = protectedValues.entrySet().iterator();
+        while (protectedBytes > maxProtectedBytes && eldest.hasNext()) {
+            Map.Entry<String, ByteBuffer> demoted = eldest.next();
+            if (demoted.getKey().equals(location)) {
+                continue;
+            }
+            eldest.remove();
+            protectedBytes -= demoted.getValue().remaining();
+            probation.put(demoted.getKey(), demoted.getValue());
+            probationBytes += demoted.getValue().remaining();
+        }
+        evictOverflow();
+    }
+
+    private void admit(String location, ByteBuffer buffer, long invalidationsBeforeRead) {
+        if (buffer.remaining() > maxBytes) {
+            return;
+        }
+        lock.lock();
+        try {
+            // the hits read so far decide what is evicted to make room for the value
+            drainReadBuffer();
+            if (invalidations.get(stripeOf(location)) != invalidationsBeforeRead || values.containsKey(location)) {
+                return;
+            }
+            ByteBuffer cached = buffer.asReadOnlyBuffer();
+            probation.put(location, cached);
+            values.put(location, cached);
+            probationBytes += buffer.remaining();
+            evictOverflow();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void invalidate(String location) {
+        lock.lock();
+        try {
+            values.remove(location);
+            ByteBuffer buffer = probation.remove(location);
+            if (buffer != null) {
+                probationBytes -= buffer.remaining();
+            }
+            buffer = protectedValues.remove(location);
+            if (buffer != null) {
+                protectedBytes -= buffer.remaining();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void evictOverflow() {
+        Iterator<Map.Entry<String, ByteBuffer>> eldest = probation.entrySet().iterator();
+        while (probationBytes + protectedBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, ByteBuffer> evicted = eldest.next();
+            probationBytes -= evicted.getValue().remaining();
+            eldest.remove();
+            values.remove(evicted.getKey());
+            evictionCount.incrementAndGet();
+        }
+        eldest = protectedValues.entrySet().iterator();
+        while (probationBytes + protectedBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, ByteBuffer> evicted = eldest.next();
+            protectedBytes -= evicted.getValue().remaining();
+            eldest.remove();
+            values.remove(evicted.getKey());
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    private static int stripeOf(String location) {
+        return (location.hashCode() & Integer.MAX_VALUE) % INVALIDATION_STRIPES;
+    }
+}
@@ -0,0 +1,268 @@
+package org.smartsoftware.smartmap.request.manager.filesystem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smartsoftware.smartmap.domain.data.ByteArrayValue;
+import org.smartsoftware.smartmap.domain.data.IKey;
+import org.smartsoftware.smartmap.domain.data.IValue;
+import org.smartsoftware.smartmap.request.manager.metrics.ShardMetrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compresses the values before they get to a file system shard. Only the values of at least the minimal size are
+ * compressed, and a value larger than a sample only if its sample compresses well enough. The location of such
+ * a value is prefixed with the name of the codec, and a value is decoded by the codec its location names, so
+ * compressed and uncompressed values live side by side and the setting or the codec could be changed at any time.
+ * A value is encoded once, when it is written; if that does not pay off, the codec stores it as it is.
+ *
+ * A value that does not compress makes the shard skip a growing number of the next values before it tries again,
+ * so a shard of incompressible data spends little on compression attempts. Streamed values are stored as they are,
+ * as their length is not known up front.
+ */
+public class CompressingFileSystemShard implements IFileSystemShard {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompressingFileSystemShard.class);
+
+    private static final int SAMPLE_SIZE = 4 * 1024;
+    private static final char PREFIX_SEPARATOR = ':';
+
+    private final IFileSystemShard fileSystem;
+
+    private IValueCodec codec = new DeflateCodec();
+    private final Map<String, IValueCodec> codecs = new ConcurrentHashMap<>();
+    private boolean enabled = false;
+    private int minValueSize = 1024;
+    private double maxCompressionRatio = 0.9;
+    private int maxSkippedValues = 64;
+
+    private final AtomicInteger valuesToSkip = new AtomicInteger();
+    private volatile int skipBackoff = 0;
+
+    private final AtomicLong compressedCount = new AtomicLong();
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    public CompressingFileSystemShard(IFileSystemShard fileSystem) {
+        this.fileSystem = fileSystem;
+        this.codecs.put(codec.getName(), codec);
+    }
+
+    public void setCodec(IValueCodec codec) {
+        this.codec = codec;
+        this.codecs.put(codec.getName(), codec);
+    }
+
+    /**
+     * The codecs the values written before are decoded with, in addition to the current one and the default one.
+     */
+    public void setDecodingCodecs(List<IValueCodec> decodingCodecs) {
+        decodingCodecs.forEach(decodingCodec -> codecs.put(decodingCodec.getName(), decodingCodec));
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setMinValueSize(int minValueSize) {
+        this.minValueSize = minValueSize;
+    }
+
+    public void setMaxCompressionRatio(double maxCompressionRatio) {
+        this.maxCompressionRatio = maxCompressionRatio;
+    }
+
+    public void setMaxSkippedValues(int maxSkippedValues) {
+        this.maxSkippedValues = maxSkippedValues;
+    }
+
+    @Override
+    public void init() {
+        fileSystem.init();
+    }
+
+    @Override
+    public Optional<String> newLocationFor(IKey key, IValue value) {
+        if ( !isWorthEncoding(value) ) {
+            return fileSystem.newLocationFor(key, value);
+        }
+        return fileSystem.newLocationFor(key, value).map(location -> codec.getName() + PREFIX_SEPARATOR + location);
+    }
+
+    @Override
+    public boolean createNewFileWithValue(String location, IValue value) {
+        Optional<IValueCodec> locationCodec = codecOf(location);
+        if ( !locationCodec.isPresent() ) {
+            return fileSystem.createNewFileWithValue(location, value);
+        }
+
+        Optional<ByteBuffer> buffer = value.getBuffer();
+        if ( !buffer.isPresent() ) {
+            LOG.error("Unable to compress a value for the '{}' location.", location);
+            return false;
+        }
+        int valueSize = buffer.get().remaining();
+        Optional<byte[]> encoded = locationCodec.get().encode(buffer.get(), (int) (valueSize * maxCompressionRatio));
+        recordEncoding(encoded.isPresent());
+        if ( !encoded.isPresent() ) {
+            return fileSystem.createNewFileWithValue(toInnerLocation(location), new ByteArrayValue(locationCodec.get().store(buffer.get())));
+        }
+        compressedCount.incrementAndGet();
+        savedBytes.addAndGet(valueSize - encoded.get().length);
+        return fileSystem.createNewFileWithValue(toInnerLocation(location), new ByteArrayValue(encoded.get()));
+    }
+
+    @Override
+    public boolean removeFile(String location) {
+        return fileSystem.removeFile(toInnerLocation(location));
+    }
+
+    @Override
+    public IValue getValueFrom(String location) {
+        Optional<IValueCodec> locationCodec = codecOf(location);
+        if ( !locationCodec.isPresent() ) {
+            return fileSystem.getValueFrom(location);
+        }
+
+        Optional<ByteBuffer> encoded = fileSystem.getValueFrom(toInnerLocation(location)).getBuffer();
+        if ( !encoded.isPresent() ) {
+            return new ByteArrayValue();
+        }
+        try {
+            return new ByteArrayValue(locationCodec.get().decode(encoded.get()));
+        }
+        catch (IOException e) {
+            LOG.error("Unable to decompress the '{}' value.", location, e);
+            return new ByteArrayValue();
+        }
+    }
+
+    @Override
+    public Optional<ReadableByteChannel> openValueFrom(String location) {
+        Optional<IValueCodec> locationCodec = codecOf(location);
+        if ( !locationCodec.isPresent() ) {
+            return fileSystem.openValueFrom(location);
+        }
+
+        Optional<ReadableByteChannel> encoded = fileSystem.openValueFrom(toInnerLocation(location));
+        if ( !encoded.isPresent() ) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(locationCodec.get().decode(encoded.get()));
+        }
+        catch (IOException e) {
+            LOG.error("Unable to decompress the '{}' value.", location, e);
+            try {
+                encoded.get().close();
+            }
+            catch (IOException closeException) {
+                LOG.error("Unable to close the '{}' value.", location, closeException);
+            }
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public void compact(ILocationRegister register) {
+        fileSystem.compact(toInnerRegister(register));
+    }
+
+    @Override
+    public void flush() {
+        fileSystem.flush();
+    }
+
+    @Override
+    public int reconcile(ILocationRegister register) {
+        return fileSystem.reconcile(toInnerRegister(register));
+    }
+
+    @Override
+    public void bindMetrics(ShardMetrics metrics) {
+        fileSystem.bindMetrics(metrics);
+    }
+
+    public long getCompressedCount() {
+        return compressedCount.get();
+    }
+
+    public long getSavedBytes() {
+        return savedBytes.get();
+    }
+
+    // the file system moves values by their own locations, not knowing whether they are compressed
+    private ILocationRegister toInnerRegister(ILocationRegister register) {
+        return new ILocationRegister() {
+            @Override
+            public boolean isLatest(String key, String location) {
+                return register.isLatest(key, location)
+                        || codecs.keySet().stream().anyMatch(name -> register.isLatest(key, name + PREFIX_SEPARATOR + location));
+            }
+
+            @Override
+            public boolean relocate(String key, String fromLocation, String toLocation) {
+                return codecs.keySet().stream().anyMatch(name ->
+                        register.relocate(key, name + PREFIX_SEPARATOR + fromLocation, name + PREFIX_SEPARATOR + toLocation))
+                        || register.relocate(key, fromLocation, toLocation);
+            }
+
+            @Override
+            public boolean isReferenced(String key, String location) {
+                return register.isReferenced(key, location)
+                        || codecs.keySet().stream().anyMatch(name -> register.isReferenced(key, name + PREFIX_SEPARATOR + location));
+            }
+        };
+    }
+
+    // the location is picked before the value is written, so a large value is decided by its sample, while a value
+    // no larger than a sample is encoded only once it is written
+    private boolean isWorthEncoding(IValue value) {
+        if ( !enabled || value.isStreamed() ) {
+            return false;
+        }
+        Optional<ByteBuffer> buffer = value.getBuffer();
+        if ( !buffer.isPresent() || buffer.get().remaining() < minValueSize ) {
+            return false;
+        }
+        if (valuesToSkip.getAndUpdate(skipped -> Math.max(0, skipped - 1)) > 0) {
+            return false;
+        }
+
+        if (buffer.get().remaining() <= SAMPLE_SIZE) {
+            return true;
+        }
+
+        ByteBuffer sample = buffer.get().duplicate();
+        sample.limit(sample.position() + SAMPLE_SIZE);
+        boolean isSampleEncoded = codec.encode(sample, (int) (SAMPLE_SIZE * maxCompressionRatio)).isPresent();
+        recordEncoding(isSampleEncoded);
+        return isSampleEncoded;
+    }
+
+    private void recordEncoding(boolean hasPaidOff) {
+        if (hasPaidOff) {
+            skipBackoff = 0;
+            return;
+        }
+        skipBackoff = Math.min(Math.max(1, skipBackoff * 2), maxSkippedValues);
+        valuesToSkip.set(skipBackoff);
+    }
+
+    private Optional<IValueCodec> codecOf(String location) {
+        int separator = location.indexOf(PREFIX_SEPARATOR);
+        return separator < 0 ? Optional.empty() : Optional.ofNullable(codecs.get(location.substring(0, separator)));
+    }
+
+    private String toInnerLocation(String location) {
+        Optional<IValueCodec> locationCodec = codecOf(location);
+        return locationCodec.isPresent() ? location.substring(locationCodec.get().getName().length() + 1) : location;
+    }
+}
@@ -0,0 +1,277 @@
+package org.smartsoftware.smartmap.request.manager.filesystem;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A codec based on the JDK zlib. An encoded value is '[decoded length][zlib stream]', so it is decoded straight
+ * into an array of its final size, the only one allocated per read. A stored value is '[-1][value]'. The deflaters,
+ * the inflaters and the buffers they are fed from are kept per thread, and the ones of the streamed reads in a pool,
+ * as a native zlib stream is expensive to be allocated on every request.
+ */
+public class DeflateCodec implements IValueCodec {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int HEADER_SIZE = Integer.BYTES;
+    private static final int STORED_LENGTH = -1;
+
+    // zlib could not inflate a byte to more than that, a longer decoded length is a corrupted header
+    private static final int MAX_INFLATION_RATIO = 1032;
+    private static final int MAX_POOLED_STREAM_DECODERS = 16;
+
+    // an output buffer of a large value is not kept, not to pin that much memory per thread
+    private static final int MAX_RETAINED_OUTPUT_SIZE = 1024 * 1024;
+
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+    private final ThreadLocal<byte[]> inputChunks = ThreadLocal.withInitial(() -> new byte[CHUNK_SIZE]);
+    private final ThreadLocal<byte[]> outputBuffers = ThreadLocal.withInitial(() -> new byte[CHUNK_SIZE]);
+    private final BlockingQueue<StreamDecoder> streamDecoders = new ArrayBlockingQueue<>(MAX_POOLED_STREAM_DECODERS);
+
+    public DeflateCodec() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    public DeflateCodec(int level) {
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+    }
+
+    @Override
+    public String getName() {
+        return "deflate";
+    }
+
+    @Override
+    public Optional<byte[]> encode(ByteBuffer value, int maxEncodedLength) {
+        if (maxEncodedLength <= HEADER_SIZE) {
+            return Optional.empty();
+        }
+        ByteBuffer source = value.duplicate();
+        byte[] output = outputBuffers.get();
+        if (output.length < maxEncodedLength) {
+            output = new byte[Math.min(maxEncodedLength, Math.max(output.length * 2, source.remaining() / 2 + HEADER_SIZE))];
+        }
+        ByteBuffer.wrap(output).putInt(source.remaining());
+        int position = HEADER_SIZE;
+
+        byte[] inputChunk = inputChunks.get();
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        if ( !source.hasRemaining() ) {
+            deflater.finish();
+        }
+        while ( !deflater.finished() ) {
+            if (deflater.needsInput() && source.hasRemaining()) {
+                int length = Math.min(source.remaining(), inputChunk.length);
+                source.get(inputChunk, 0, length);
+                deflater.setInput(inputChunk, 0, length);
+                if ( !source.hasRemaining() ) {
+                    deflater.finish();
+                }
+            }
+            if (position == Math.min(output.length, maxEncodedLength)) {
+                if (position == maxEncodedLength) {
+                    // it does not pay off, the rest of the value is not even looked at
+                    return Optional.empty();
+                }
+                output = Arrays.copyOf(output, (int) Math.min(maxEncodedLength, output.length * 2L));
+            }
+            position += deflater.deflate(output, position, Math.min(output.length, maxEncodedLength) - position);
+        }
+
+        if (output.length <= MAX_RETAINED_OUTPUT_SIZE) {
+            outputBuffers.set(output);
+        }
+        return Optional.of(Arrays.copyOf(output, position));
+    }
+
+    @Override
+    public byte[] store(ByteBuffer value) {
+        ByteBuffer stored = ByteBuffer.allocate(HEADER_SIZE + value.remaining());
+        stored.putInt(STORED_LENGTH).put(value.duplicate());
+        return stored.array();
+    }
+
+    @Override
+    public byte[] decode(ByteBuffer encoded) throws IOException {
+        ByteBuffer source = encoded.duplicate();
+        if (source.remaining() < HEADER_SIZE) {
+            throw new EOFException("An encoded value is shorter than its header.");
+        }
+        int decodedLength = source.getInt();
+        if (decodedLength == STORED_LENGTH) {
+            byte[] stored = new byte[source.remaining()];
+            source.get(stored);
+            return stored;
+        }
+        checkDecodedLength(decodedLength, source.remaining());
+        byte[] decoded = new byte[decodedLength];
+        int position = 0;
+
+        byte[] inputChunk = inputChunks.get();
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        try {
+            while (position < decoded.length) {
+                if (inflater.needsInput()) {
+                    if ( !source.hasRemaining() ) {
+                        throw new EOFException("An encoded value is truncated.");
+                    }
+                    if (source.hasArray()) {
+                        // a heap value is inflated straight from its array
+                        inflater.setInput(source.array(), source.arrayOffset() + source.position(), source.remaining());
+                        source.position(source.limit());
+                    }
+                    else {
+                        int length = Math.min(source.remaining(), inputChunk.length);
+                        source.get(inputChunk, 0, length);
+                        inflater.setInput(inputChunk, 0, length);
+                    }
+                }
+                int inflated = inflater.inflate(decoded, position, decoded.length - position);
+                if (inflated == 0 && (inflater.finished() || inflater.needsDictionary())) {
+                    throw new EOFException("An encoded value is shorter than its header says.");
+                }
+                position += inflated;
+            }
+        }
+        catch (DataFormatException e) {
+            throw new IOException("An encoded value is corrupted.", e);
+        }
+        return decoded;
+    }
+
+    @Override
+    public ReadableByteChannel decode(ReadableByteChannel encoded) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (encoded.read(header) < 0) {
+                throw new EOFException("An encoded value is shorter than its header.");
+            }
+        }
+        int decodedLength = header.getInt(0);
+        if (decodedLength == STORED_LENGTH) {
+            return encoded;
+        }
+        if (decodedLength < 0) {
+            throw new IOException("An encoded value has a corrupted header.");
+        }
+        StreamDecoder decoder = streamDecoders.poll();
+        return new InflatingChannel(encoded, decoder != null ? decoder : new StreamDecoder(), decodedLength);
+    }
+
+    private static void checkDecodedLength(int decodedLength, int encodedLength) throws IOException {
+        if (decodedLength < 0 || decodedLength > (long) encodedLength * MAX_INFLATION_RATIO) {
+            throw new IOException("An encoded value has a corrupted header.");
+        }
+    }
+
+    private void release(StreamDecoder decoder) {
+        decoder.inflater.reset();
+        if ( !streamDecoders.offer(decoder) ) {
+            decoder.inflater.end();
+        }
+    }
+
+    private static class StreamDecoder {
+        private final Inflater inflater = new Inflater();
+        private final ByteBuffer input = ByteBuffer.allocate(CHUNK_SIZE);
+        private final byte[] output = new byte[CHUNK_SIZE];
+    }
+
+    /**
+     * Inflates an encoded value as it is read, with a pooled inflater and buffers given back once it is closed.
+     */
+    private class InflatingChannel implements ReadableByteChannel {
+
+        private final ReadableByteChannel encoded;
+        private final StreamDecoder decoder;
+        private long remaining;
+        private boolean isOpen = true;
+
+        private InflatingChannel(ReadableByteChannel encoded, StreamDecoder decoder, int decodedLength) {
+            this.encoded = encoded;
+            this.decoder = decoder;
+            this.remaining = decodedLength;
+        }
+
+        @Override
+        public int read(ByteBuffer target) throws IOException {
+            if ( !isOpen ) {
+                throw new ClosedChannelException();
+            }
+            if (remaining == 0) {
+                return -1;
+            }
+            if ( !target.hasRemaining() ) {
+                return 0;
+            }
+
+            Inflater inflater = decoder.inflater;
+            try {
+                while (true) {
+                    if (inflater.needsInput()) {
+                        decoder.input.clear();
+                        int read = encoded.read(decoder.input);
+                        if (read < 0) {
+                            throw new EOFException("An encoded value is truncated.");
+                        }
+                        inflater.setInput(decoder.input.array(), 0, read);
+                        continue;
+                    }
+
+                    int inflated;
+                    if (target.hasArray()) {
+                        int length = (int) Math.min(target.remaining(), remaining);
+                        inflated = inflater.inflate(target.array(), target.arrayOffset() + target.position(), length);
+                        target.position(target.position() + inflated);
+                    }
+                    else {
+                        int length = (int) Math.min(Math.min(target.remaining(), decoder.output.length), remaining);
+                        inflated = inflater.inflate(decoder.output, 0, length);
+                        target.put(decoder.output, 0, inflated);
+                    }
+                    if (inflated > 0) {
+                        remaining -= inflated;
+                        return inflated;
+                    }
+                    if (inflater.finished() || inflater.needsDictionary()) {
+                        throw new EOFException("An encoded value is shorter than its header says.");
+                    }
+                }
+            }
+            catch (DataFormatException e) {
+                throw new IOException("An encoded value is corrupted.", e);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return isOpen;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if ( !isOpen ) {
+                return;
+            }
+            isOpen = false;
+            try {
+                encoded.close();
+            }
+            finally {
+                release(decoder);
+            }
+        }
+    }
+}
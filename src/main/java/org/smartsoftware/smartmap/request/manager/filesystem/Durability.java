@@ -0,0 +1,23 @@
+package org.smartsoftware.smartmap.request.manager.filesystem;
+
+/**
+ * How far a value is persisted before a put of it is committed in the register.
+ */
+public enum Durability {
+
+    /**
+     * The value is left to the page cache, a crash of the machine could lose it.
+     */
+    NONE,
+
+    /**
+     * The values are forced to the disk in the background, a batch at a time, so a crash could lose
+     * the values of the last batch window only.
+     */
+    BATCHED,
+
+    /**
+     * The value is forced to the disk before the put is committed.
+     */
+    ALWAYS
+}
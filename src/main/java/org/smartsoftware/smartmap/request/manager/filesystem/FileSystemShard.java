@@ -3,13 +3,26 @@ package org.smartsoftware.smartmap.request.manager.filesystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.smartsoftware.smartmap.domain.data.ByteArrayValue;
+import org.smartsoftware.smartmap.domain.data.ByteBufferValue;
+import org.smartsoftware.smartmap.domain.data.IKey;
 import org.smartsoftware.smartmap.domain.data.IValue;
 
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
 
 /**
  * Created by dkober on 24.4.2017 г..
@@ -18,88 +31,156 @@ public class FileSystemShard implements IFileSystemShard {
 
     private static final Logger LOG = LoggerFactory.getLogger(FileSystemShard.class);
 
+    private static final String VALUE_FILE_SUFFIX = ".data";
+    private static final char KEY_SEPARATOR = '$';
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    // a level is a byte of the key hash
+    private static final int MAX_FAN_OUT_LEVELS = 4;
+
     private String shardLocation;
+    private volatile long initializedAt;
+    private final LocationSequence locationSequence = new LocationSequence();
+
+    // the values are spread over two hex digit buckets per level, a zero keeps them all in the shard directory
+    private int fanOutLevels = 0;
+    private int fanOutMigrationBatchSize = 1024;
+
+    private Durability durability = Durability.NONE;
+    private long syncWindowMs = 50;
+    private int syncMaxBatchSize = 1024;
+    private BatchedSync<Path> batchedSync;
+
+    // a value moved into its bucket has a name in both the layouts for a while, which the reconciliation must not take for an orphan
+    private final Object maintenanceLock = new Object();
+
+    private boolean memoryMappedReads = false;
+    private long memoryMappingThreshold = 64 * 1024;
+    private long maxMappedBytes = 256L * 1024 * 1024;
+
+    // value files are immutable until they are collected, so a mapping could be shared by all the readers;
+    // the mappings kept are bounded by their bytes, as a few large values would pin the address space otherwise
+    private final LinkedHashMap<String, ByteBuffer> mappings = new LinkedHashMap<>(16, 0.75f, true);
+    private long mappedBytes = 0;
 
     FileSystemShard(String shardLocation) {
         this.shardLocation = shardLocation;
     }
 
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    public void setSyncWindowMs(long syncWindowMs) {
+        this.syncWindowMs = syncWindowMs;
+    }
+
+    public void setSyncMaxBatchSize(int syncMaxBatchSize) {
+        this.syncMaxBatchSize = syncMaxBatchSize;
+    }
+
+    public void setFanOutLevels(int fanOutLevels) {
+        this.fanOutLevels = fanOutLevels;
+    }
+
+    public void setFanOutMigrationBatchSize(int fanOutMigrationBatchSize) {
+        this.fanOutMigrationBatchSize = fanOutMigrationBatchSize;
+    }
+
+    public void setMemoryMappedReads(boolean memoryMappedReads) {
+        this.memoryMappedReads = memoryMappedReads;
+    }
+
+    public void setMemoryMappingThreshold(long memoryMappingThreshold) {
+        this.memoryMappingThreshold = memoryMappingThreshold;
+    }
+
+    /**
+     * The total size of the mappings kept for the next reads, a larger value is mapped for its read only.
+     */
+    public void setMaxMappedBytes(long maxMappedBytes) {
+        this.maxMappedBytes = maxMappedBytes;
+    }
+
     @Override
     public void init() {
         LOG.trace("Initializing a File System for the: {} shard", shardLocation);
 
+        if (fanOutLevels < 0 || fanOutLevels > MAX_FAN_OUT_LEVELS) {
+            throw new IllegalStateException("A fan out of " + fanOutLevels + " levels is not supported, up to " + MAX_FAN_OUT_LEVELS + " levels are.");
+        }
+
+        // the leftovers of a previous run are looked for by the reconciliation, in the background
+        initializedAt = System.currentTimeMillis();
         try {
-            Path shardPath = Paths.get(shardLocation);
-            if (!Files.exists(shardPath)) {
-                Files.createDirectories(shardPath);
-            }
-            else {
-                Files
-                        .find(shardPath, Integer.MAX_VALUE, (path, basicFileAttributes) -> path.toFile().getName().matches(".*lock"))
-                        .forEach(path -> {
-                            try {
-                                Files.delete(path);
-                            } catch (IOException e) {
-                                throw new RuntimeException("Cannot remove file lock from the " + shardLocation + " shard.");
-                            }
-                        });
-            }
+            Files.createDirectories(Paths.get(shardLocation));
         }
         catch (IOException e) {
             throw new RuntimeException(e);
         }
-    }
 
-    @Override
-    public boolean createNewFileWithValue(Path path, IValue value) {
-        String absolutePath = path.toFile().getAbsolutePath();
-        try {
-            Files.createFile(path);
-            value.get().ifPresent(data -> {
-                try (OutputStream outputStream = Files.newOutputStream(path)) {
-                    outputStream.write(value.get().orElse(new byte[0]));
-                }
-                catch (IOException e) {
-                    LOG.error("Unable to enrich the '{}' file. ", absolutePath, e);
-                }
-            });
-        }
-        catch (IOException e) {
-            LOG.error("Unable to create the '{}' file. ", absolutePath, e);
-            return false;
+        if (durability == Durability.BATCHED && batchedSync == null) {
+            batchedSync = new BatchedSync<>(Paths.get(shardLocation).getFileName() + "-value-syncer", syncWindowMs, syncMaxBatchSize, this::syncFiles);
         }
+    }
 
-        return true;
+    @Override
+    public Optional<String> newLocationFor(IKey key, IValue value) {
+        String keyValue = String.valueOf(key.get());
+        StringBuilder location = new StringBuilder(shardLocation.length() + 3 * fanOutLevels + keyValue.length() + LocationSequence.nameLength() + 7);
+        location.append(shardLocation).append('/');
+        appendBuckets(location, keyValue);
+        location.append(keyValue).append(KEY_SEPARATOR);
+        return Optional.of(locationSequence.appendNext(location).append(VALUE_FILE_SUFFIX).toString());
     }
 
     @Override
-    public boolean removeAllFilesWithMask(Path shardPath, String fileNameMask) {
-        boolean[] filesAreRemoved = new boolean[1];
-        filesAreRemoved[0] = false;
+    public boolean createNewFileWithValue(String location, IValue value) {
+        Path path = Paths.get(location);
 
-        try {
-            Files
-                    .find(shardPath, Integer.MAX_VALUE, (path, basicFileAttributes) -> path.toFile().getName().matches(fileNameMask))
-                    .forEach(path -> {
-                        try {
-                            Files.deleteIfExists(path);
-                            filesAreRemoved[0] = true;
-                        }
-                        catch (IOException e) {
-                            LOG.error("Unable to remove files from the '{}' shard with the '{}' mask.", new Object[] {shardLocation, fileNameMask}, e);
-                        }
-                    });
+        // a streamed value is copied chunk by chunk, so a large one is never held in memory as a whole
+        try (FileChannel channel = openNewFile(path)) {
+            value.writeTo(channel);
+            if (durability == Durability.ALWAYS) {
+                channel.force(true);
+            }
+        }
+        catch (FileAlreadyExistsException e) {
+            LOG.error("Unable to create the '{}' file. ", path.toAbsolutePath(), e);
+            return false;
         }
         catch (IOException e) {
-            LOG.error("Unable to remove files from the '{}' shard with the '{}' mask.", new Object[] {shardLocation, fileNameMask}, e);
+            LOG.error("Unable to enrich the '{}' file. ", path.toAbsolutePath(), e);
+            removeFile(location);
             return false;
         }
 
-        return filesAreRemoved[0];
+        if (durability == Durability.ALWAYS) {
+            // a new file survives a crash only once its directory entry does
+            forceDirectory(path.toAbsolutePath().getParent());
+        }
+        else if (durability == Durability.BATCHED) {
+            batchedSync.add(path);
+        }
+        return true;
     }
 
+    /**
+     * Removes the value under its location in the other layout as well: a remove could have read the location
+     * of a value the compaction has been moving into its bucket.
+     */
     @Override
-    public boolean removeFile(Path path) {
+    public boolean removeFile(String location) {
+        boolean isRemoved = removeValueFile(location);
+        Optional<String> otherLocation = otherLayoutLocationOf(location);
+        if (otherLocation.isPresent() && removeValueFile(otherLocation.get())) {
+            isRemoved = true;
+        }
+        return isRemoved;
+    }
+
+    private boolean removeValueFile(String location) {
+        Path path = Paths.get(location);
+        removeMapping(location);
         try {
             return Files.deleteIfExists(path);
         }
@@ -110,7 +191,12 @@ public class FileSystemShard implements IFileSystemShard {
     }
 
     @Override
-    public IValue getValueFrom(Path path) {
+    public IValue getValueFrom(String location) {
+        Path path = Paths.get(location);
+        if (memoryMappedReads) {
+            return getMappedValueFrom(location, path);
+        }
+
         byte[] data;
         try {
             data = Files.readAllBytes(path);
@@ -122,4 +208,332 @@ public class FileSystemShard implements IFileSystemShard {
 
         return new ByteArrayValue(data);
     }
+
+    @Override
+    public Optional<ReadableByteChannel> openValueFrom(String location) {
+        Path path = Paths.get(location);
+        try {
+            return Optional.of(FileChannel.open(path, StandardOpenOption.READ));
+        }
+        catch (IOException e) {
+            LOG.error("Unable to open the '{}' file.", path.toFile().getAbsolutePath(), e);
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (batchedSync != null) {
+            batchedSync.flush();
+        }
+    }
+
+    /**
+     * Moves the values of a shard written before the fan out has been configured into their buckets, a batch
+     * per call, while the shard keeps serving them. A value is linked into its bucket first and the flat file
+     * is removed only once the register refers to the new location, so a value is never missing from the disk.
+     */
+    @Override
+    public void compact(ILocationRegister register) {
+        if (fanOutLevels == 0) {
+            return;
+        }
+        synchronized (maintenanceLock) {
+            moveIntoBuckets(register);
+        }
+    }
+
+    private void moveIntoBuckets(ILocationRegister register) {
+        int movedFiles = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(shardLocation), "*" + VALUE_FILE_SUFFIX)) {
+            for (Path file : files) {
+                if (movedFiles >= fanOutMigrationBatchSize) {
+                    break;
+                }
+                String fileName = file.getFileName().toString();
+                int keySeparator = fileName.lastIndexOf(KEY_SEPARATOR);
+                if (keySeparator < 0 || !Files.isRegularFile(file)) {
+                    continue;
+                }
+                if (moveIntoBucket(register, fileName.substring(0, keySeparator), file)) {
+                    movedFiles++;
+                }
+            }
+        }
+        catch (IOException | DirectoryIteratorException e) {
+            LOG.error("Unable to move the values of the '{}' shard into their buckets.", shardLocation, e);
+        }
+        if (movedFiles > 0) {
+            LOG.trace("Moved {} values of the '{}' shard into their buckets.", movedFiles, shardLocation);
+        }
+    }
+
+    /**
+     * Runs exclusively of the compaction, so a value linked into its bucket but not relocated yet is never seen
+     * as an orphan. A value referenced under its location in either layout is kept.
+     */
+    @Override
+    public int reconcile(ILocationRegister register) {
+        synchronized (maintenanceLock) {
+            return removeOrphans(register);
+        }
+    }
+
+    private int removeOrphans(ILocationRegister register) {
+        Path shardPath = Paths.get(shardLocation);
+        int[] removedFiles = new int[1];
+        try {
+            Files.walkFileTree(shardPath, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                    String fileName = file.getFileName().toString();
+                    if (fileName.endsWith("lock") && file.getParent().equals(shardPath)) {
+                        Files.deleteIfExists(file);
+                        return FileVisitResult.CONTINUE;
+                    }
+                    Path relativePath = shardPath.relativize(file);
+                    List<String> keys = keysOf(relativePath);
+                    if ( !fileName.endsWith(VALUE_FILE_SUFFIX) || keys.isEmpty() ) {
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    // a register entry is added before its value is written, so a value of this run always has one
+                    String location = shardLocation + "/" + toLocationPath(relativePath);
+                    Optional<String> otherLocation = otherLayoutLocationOf(location);
+                    if (attributes.lastModifiedTime().toMillis() < initializedAt
+                            && !locationSequence.isHandedOut(fileName)
+                            && keys.stream().noneMatch(key -> register.isReferenced(key, location)
+                                    || otherLocation.isPresent() && register.isReferenced(key, otherLocation.get()))
+                            && removeValueFile(location)) {
+                        removedFiles[0]++;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // the value has been collected in the meantime
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        catch (IOException e) {
+            LOG.error("Unable to reconcile the '{}' shard.", shardLocation, e);
+        }
+        return removedFiles[0];
+    }
+
+    private boolean moveIntoBucket(ILocationRegister register, String key, Path file) {
+        String fromLocation = shardLocation + "/" + file.getFileName();
+        StringBuilder toLocation = new StringBuilder(shardLocation).append('/');
+        appendBuckets(toLocation, key);
+        Path target = Paths.get(toLocation.append(file.getFileName()).toString());
+
+        try {
+            Files.createDirectories(target.getParent());
+            try {
+                Files.createLink(target, file);
+            }
+            catch (UnsupportedOperationException e) {
+                Files.copy(file, target);
+            }
+        }
+        catch (FileAlreadyExistsException e) {
+            if (register.isReferenced(key, target.toString())) {
+                // left by a move interrupted after the register has been updated
+                removeValueFile(fromLocation);
+                return true;
+            }
+            // left by a move interrupted before the register has been updated, the value is linked again next time
+            removeValueFile(target.toString());
+            return false;
+        }
+        catch (IOException e) {
+            LOG.error("Unable to move the '{}' file into its bucket.", file, e);
+            return false;
+        }
+
+        if ( !register.relocate(key, fromLocation, target.toString()) ) {
+            // the value has not been committed or has been removed, it is up to the housekeeper then
+            removeValueFile(target.toString());
+            return false;
+        }
+        removeValueFile(fromLocation);
+        return true;
+    }
+
+    /**
+     * The location a value file would have in the other layout: in its buckets for a flat one and in the shard
+     * directory for a bucketed one.
+     */
+    private Optional<String> otherLayoutLocationOf(String location) {
+        if (fanOutLevels == 0 || !location.startsWith(shardLocation + "/")) {
+            return Optional.empty();
+        }
+        String fileName = location.substring(location.lastIndexOf('/') + 1);
+        Optional<String> key = keyOf(fileName);
+        if ( !key.isPresent() ) {
+            return Optional.empty();
+        }
+
+        StringBuilder bucketedLocation = new StringBuilder(shardLocation).append('/');
+        appendBuckets(bucketedLocation, key.get());
+        String bucketed = bucketedLocation.append(fileName).toString();
+        String flat = shardLocation + "/" + fileName;
+        if (location.equals(bucketed)) {
+            return Optional.of(flat);
+        }
+        return location.equals(flat) ? Optional.of(bucketed) : Optional.empty();
+    }
+
+    /**
+     * The keys a value file could belong to by its path within the shard: the file is either in the buckets
+     * of its key or, when written before the fan out has been configured, in the shard directory itself.
+     * A key with slashes in a flat file could look like a bucketed one, so both are told.
+     */
+    private List<String> keysOf(Path relativePath) {
+        List<String> keys = new ArrayList<>(2);
+        if (fanOutLevels > 0 && relativePath.getNameCount() > fanOutLevels) {
+            Optional<String> bucketedKey = keyOf(toLocationPath(relativePath.subpath(fanOutLevels, relativePath.getNameCount())));
+            if (bucketedKey.isPresent()) {
+                StringBuilder buckets = new StringBuilder(3 * fanOutLevels);
+                appendBuckets(buckets, bucketedKey.get());
+                if (buckets.toString().equals(toLocationPath(relativePath.subpath(0, fanOutLevels)) + "/")) {
+                    keys.add(bucketedKey.get());
+                }
+            }
+        }
+        keyOf(toLocationPath(relativePath)).ifPresent(keys::add);
+        return keys;
+    }
+
+    private static Optional<String> keyOf(String fileName) {
+        int keySeparator = fileName.lastIndexOf(KEY_SEPARATOR);
+        return keySeparator < 0 ? Optional.empty() : Optional.of(fileName.substring(0, keySeparator));
+    }
+
+    private static String toLocationPath(Path relativePath) {
+        return relativePath.toString().replace(relativePath.getFileSystem().getSeparator(), "/");
+    }
+
+    /**
+     * The buckets are taken off the bits of a mixed hash of the key, so the similar keys are spread evenly too.
+     */
+    private void appendBuckets(StringBuilder location, String key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        for (int level = 0; level < fanOutLevels; level++) {
+            int bucket = (hash >>> (8 * level)) & 0xff;
+            location.append(HEX_DIGITS[bucket >>> 4]).append(HEX_DIGITS[bucket & 0xf]).append('/');
+        }
+    }
+
+    private FileChannel openNewFile(Path path) throws IOException {
+        try {
+            return FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+        catch (NoSuchFileException e) {
+            // the first value of its bucket
+            Path bucket = path.toAbsolutePath().getParent();
+            Files.createDirectories(bucket);
+            if (durability != Durability.NONE) {
+                for (Path directory = bucket; !directory.equals(Paths.get(shardLocation).toAbsolutePath()) && directory.getParent() != null; directory = directory.getParent()) {
+                    forceDirectory(directory.getParent());
+                }
+            }
+            return FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+    }
+
+    private void syncFiles(Set<Path> paths) {
+        Set<Path> directories = new HashSet<>();
+        for (Path path : paths) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                channel.force(true);
+                directories.add(path.toAbsolutePath().getParent());
+            }
+            catch (NoSuchFileException e) {
+                // the value has been removed in the meantime
+            }
+            catch (IOException e) {
+                LOG.error("Unable to sync the '{}' file.", path.toFile().getAbsolutePath(), e);
+            }
+        }
+        directories.forEach(FileSystemShard::forceDirectory);
+    }
+
+    static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+        catch (IOException e) {
+            // not every platform could open a directory, a new file is durable there on its own
+            LOG.trace("Unable to force the '{}' directory.", directory, e);
+        }
+    }
+
+    private IValue getMappedValueFrom(String location, Path path) {
+        ByteBuffer mapping = getMapping(location);
+        if (mapping != null) {
+            return new ByteBufferValue(mapping);
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < memoryMappingThreshold) {
+                // small files are cheaper to be read than to be mapped
+                ByteBuffer data = ByteBuffer.allocate((int) size);
+                while (data.hasRemaining()) {
+                    if (channel.read(data) < 0) {
+                        break;
+                    }
+                }
+                return new ByteArrayValue(data.array());
+            }
+
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        catch (IOException e) {
+            LOG.error("Unable to map the '{}' file.", path.toFile().getAbsolutePath(), e);
+            return new ByteArrayValue();
+        }
+
+        putMapping(location, mapping);
+        return new ByteBufferValue(mapping);
+    }
+
+    private ByteBuffer getMapping(String location) {
+        synchronized (mappings) {
+            return mappings.get(location);
+        }
+    }
+
+    private void putMapping(String location, ByteBuffer mapping) {
+        if (mapping.capacity() > maxMappedBytes) {
+            return;
+        }
+        synchronized (mappings) {
+            ByteBuffer previous = mappings.put(location, mapping);
+            mappedBytes += mapping.capacity() - (previous == null ? 0 : previous.capacity());
+
+            Iterator<ByteBuffer> eldest = mappings.values().iterator();
+            while (mappedBytes > maxMappedBytes && eldest.hasNext()) {
+                mappedBytes -= eldest.next().capacity();
+                eldest.remove();
+            }
+        }
+    }
+
+    private void removeMapping(String location) {
+        synchronized (mappings) {
+            ByteBuffer mapping = mappings.remove(location);
+            if (mapping != null) {
+                mappedBytes -= mapping.capacity();
+            }
+        }
+    }
 }
@@ -1,8 +1,11 @@
 package org.smartsoftware.smartmap.request.manager.filesystem;
 
+import org.smartsoftware.smartmap.domain.data.IKey;
 import org.smartsoftware.smartmap.domain.data.IValue;
+import org.smartsoftware.smartmap.request.manager.metrics.ShardMetrics;
 
-import java.nio.file.Path;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Optional;
 
 /**
  * Created by dkober on 24.4.2017 г..
@@ -11,9 +14,43 @@ public interface IFileSystemShard {
 
     void init();
 
-    boolean createNewFileWithValue(Path path, IValue value);
-    boolean removeFile(Path path);
-    boolean removeAllFilesWithMask(Path shardPath, String fileNameMask);
+    Optional<String> newLocationFor(IKey key, IValue value);
 
-    IValue getValueFrom(Path path);
+    boolean createNewFileWithValue(String location, IValue value);
+    boolean removeFile(String location);
+
+    IValue getValueFrom(String location);
+
+    /**
+     * Opens a channel reading the value, it is closed by the caller. Absent if the value could not be read.
+     */
+    default Optional<ReadableByteChannel> openValueFrom(String location) {
+        return getValueFrom(location).openChannel();
+    }
+
+    default void compact(ILocationRegister register) {
+    }
+
+    /**
+     * Forces the values written so far to the disk, e.g. before a shutdown.
+     */
+    default void flush() {
+    }
+
+    /**
+     * Removes the values left behind by a previous run that no register entry refers to, e.g. the ones written
+     * by a put the crash has not let commit. Only the values older than the start of the shard are looked at.
+     *
+     * @return the number of the removed values
+     */
+    default int reconcile(ILocationRegister register) {
+        return 0;
+    }
+
+    /**
+     * Exposes the counters of this file system through the metrics of its shard, a decorator passes the metrics
+     * on to the file system it wraps.
+     */
+    default void bindMetrics(ShardMetrics metrics) {
+    }
 }
@@ -0,0 +1,19 @@
+package org.smartsoftware.smartmap.request.manager.filesystem;
+
+/**
+ * The view of a shard register a file system needs in order to move values around on its own.
+ */
+public interface ILocationRegister {
+
+    boolean isLatest(String key, String location);
+    boolean relocate(String key, String fromLocation, String toLocation);
+
+    /**
+     * Tells whether an entry of the key refers to the location, whatever its status. A register that could not
+     * tell refers to every location, so nothing is taken for an orphan.
+     */
+    default boolean isReferenced(String key, String location) {
+        return true;
+    }
+
+}
@@ -0,0 +1,30 @@
+package org.smartsoftware.smartmap.request.manager.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Optional;
+
+/**
+ * A codec the values are compressed with. Its name is a part of the location of every value it has encoded.
+ */
+public interface IValueCodec {
+
+    String getName();
+
+    /**
+     * Absent if the encoded value would be longer than the given length.
+     */
+    Optional<byte[]> encode(ByteBuffer value, int maxEncodedLength);
+
+    /**
+     * The value as it is, framed so the codec decodes it back. A value is stored once its location names the codec
+     * but its encoding does not pay off.
+     */
+    byte[] store(ByteBuffer value);
+
+    byte[] decode(ByteBuffer encoded) throws IOException;
+
+    ReadableByteChannel decode(ReadableByteChannel encoded) throws IOException;
+
+}
@@ -0,0 +1,54 @@
+package org.smartsoftware.smartmap.request.manager.filesystem;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out the unique names of the values of a shard: the id of the run followed by a sequence number, both of them
+ * in fixed width hex, so the names of a run are ordered the way they have been handed out. Unlike a random UUID,
+ * a name costs an increment only, with no shared SecureRandom the writers would contend on.
+ *
+ * The run ids are taken off the wall clock, and they are never reused within a JVM, so the names do not collide
+ * with the ones of a previous run, nor with the ones of another sequence over the same directory.
+ */
+public class LocationSequence {
+
+    private static final int RUN_ID_DIGITS = 12;
+    private static final int SEQUENCE_DIGITS = 16;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final AtomicLong LAST_RUN_ID = new AtomicLong();
+
+    private final String runPrefix;
+    private final AtomicLong sequence = new AtomicLong();
+
+    public LocationSequence() {
+        long runId = LAST_RUN_ID.accumulateAndGet(System.currentTimeMillis(), (lastRunId, now) -> Math.max(lastRunId + 1, now));
+        this.runPrefix = appendHex(new StringBuilder(RUN_ID_DIGITS + 1), runId, RUN_ID_DIGITS).append('-').toString();
+    }
+
+    /**
+     * The length of a name, so a location could be built in a buffer of the exact size.
+     */
+    public static int nameLength() {
+        return RUN_ID_DIGITS + 1 + SEQUENCE_DIGITS;
+    }
+
+    public StringBuilder appendNext(StringBuilder location) {
+        return appendHex(location.append(runPrefix), sequence.incrementAndGet(), SEQUENCE_DIGITS);
+    }
+
+    /**
+     * Tells whether the name has been handed out by this sequence, unlike the modification time of a file
+     * it does not depend on the granularity of the file system clock.
+     */
+    public boolean isHandedOut(String name) {
+        return name.contains(runPrefix);
+    }
+
+    private static StringBuilder appendHex(StringBuilder target, long value, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            target.append(HEX_DIGITS[(int) (value >>> shift) & 0xf]);
+        }
+        return target;
+    }
+}
@@ -0,0 +1,456 @@
+package org.smartsoftware.smartmap.request.manager.filesystem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smartsoftware.smartmap.domain.data.ByteArrayValue;
+import org.smartsoftware.smartmap.domain.data.IKey;
+import org.smartsoftware.smartmap.domain.data.IValue;
+import org.smartsoftware.smartmap.domain.data.StringKey;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A file system shard that appends values to large rolling segment files instead of creating a file per value.
+ *
+ * Every value is stored as a record '[key length][value length][key][value]' and is addressed by a
+ * 'segment:<segment id>:<record offset>:<key length>:<value length>' location, which is what the register keeps
+ * in its path column. A record is reserved (and its header is written) when a location is requested, so the
+ * 'UPDATING -> write -> COMMITTED' protocol of the register stays the same as for the file-per-value layout.
+ *
+ * Sealed segments that are mostly dead are rewritten by the housekeeper: the records that are still the latest
+ * ones are appended to the active segment and relocated in the register, the old segment is deleted after a grace
+ * period so that in-flight readers are not affected. The dead bytes are counted in memory only, the ones of the
+ * segments a previous run has left are counted again by the reconcile on start.
+ *
+ * The layout is meant for small values: as the length of a value goes to its location, a streamed value is read
+ * into memory as a whole before it is appended.
+ */
+public class SegmentedFileSystemShard implements IFileSystemShard {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentedFileSystemShard.class);
+
+    private static final String SEGMENT_FILE_SUFFIX = ".segment";
+    private static final String LOCATION_PREFIX = "segment:";
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+
+    private final String shardLocation;
+    private final ConcurrentMap<Long, Segment> segments = new ConcurrentHashMap<>();
+    private volatile Segment activeSegment;
+
+    private long maxSegmentSize = 64L * 1024 * 1024;
+    private double compactionThreshold = 0.5;
+    private long compactionGracePeriodMs = 30_000;
+
+    private Durability durability = Durability.NONE;
+    private long syncWindowMs = 50;
+    private BatchedSync<Segment> batchedSync;
+
+    SegmentedFileSystemShard(String shardLocation) {
+        this.shardLocation = shardLocation;
+    }
+
+    public void setMaxSegmentSize(long maxSegmentSize) {
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+    public void setCompactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    public void setCompactionGracePeriodMs(long compactionGracePeriodMs) {
+        this.compactionGracePeriodMs = compactionGracePeriodMs;
+    }
+
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    public void setSyncWindowMs(long syncWindowMs) {
+        this.syncWindowMs = syncWindowMs;
+    }
+
+    @Override
+    public void init() {
+        LOG.trace("Initializing a Segmented File System for the: {} shard", shardLocation);
+
+        try {
+            Path shardPath = Paths.get(shardLocation);
+            Files.createDirectories(shardPath);
+            if (durability == Durability.BATCHED && batchedSync == null) {
+                // a batch is a handful of segments at most, however many values have been appended to them
+                batchedSync = new BatchedSync<>(shardPath.getFileName() + "-segment-syncer", syncWindowMs, Integer.MAX_VALUE, this::syncSegments);
+            }
+
+            try (DirectoryStream<Path> locks = Files.newDirectoryStream(shardPath, "*lock")) {
+                for (Path lock : locks) {
+                    Files.delete(lock);
+                }
+            }
+
+            long lastSegmentId = 0;
+            try (DirectoryStream<Path> segmentFiles = Files.newDirectoryStream(shardPath, "*" + SEGMENT_FILE_SUFFIX)) {
+                for (Path segmentFile : segmentFiles) {
+                    String fileName = segmentFile.getFileName().toString();
+                    long segmentId = Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_FILE_SUFFIX.length()));
+                    // segments of a previous run are never appended to, a crash might have left a torn tail there
+                    Segment segment = openSegment(segmentId);
+                    segment.sealedAt = 0;
+                    segment.isReconciled = false;
+                    lastSegmentId = Math.max(lastSegmentId, segmentId);
+                }
+            }
+            activeSegment = openSegment(lastSegmentId + 1);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Cannot initialize segments of the " + shardLocation + " shard.", e);
+        }
+    }
+
+    @Override
+    public Optional<String> newLocationFor(IKey key, IValue value) {
+        byte[] keyData = String.valueOf(key.get()).getBytes(StandardCharsets.UTF_8);
+        int valueLength = value.get().map(data -> data.length).orElse(0);
+
+        try {
+            Segment segment;
+            long recordOffset;
+            synchronized (this) {
+                segment = activeSegment;
+                int recordLength = RECORD_HEADER_SIZE + keyData.length + valueLength;
+                if (segment.reserved > 0 && segment.reserved + recordLength > maxSegmentSize) {
+                    segment.sealedAt = System.currentTimeMillis();
+                    segment = openSegment(segment.id + 1);
+                    activeSegment = segment;
+                }
+                recordOffset = segment.reserved;
+                segment.reserved += recordLength;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE + keyData.length);
+            header.putInt(keyData.length).putInt(valueLength).put(keyData).flip();
+            writeFully(segment.channel, header, recordOffset);
+
+            return Optional.of(LOCATION_PREFIX + segment.id + ":" + recordOffset + ":" + keyData.length + ":" + valueLength);
+        }
+        catch (IOException e) {
+            LOG.error("Unable to reserve a record for the '{}' key in the '{}' shard.", new Object[] {key.get(), shardLocation}, e);
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public boolean createNewFileWithValue(String location, IValue value) {
+        RecordLocation recordLocation = RecordLocation.parse(location);
+        Segment segment = segments.get(recordLocation.segmentId);
+        if (segment == null) {
+            LOG.error("Unable to find a segment for the '{}' location.", location);
+            return false;
+        }
+
+        try {
+            writeFully(segment.channel, ByteBuffer.wrap(value.get().orElse(new byte[0])), recordLocation.getValueOffset());
+            if (durability == Durability.ALWAYS) {
+                segment.channel.force(false);
+            }
+        }
+        catch (IOException e) {
+            LOG.error("Unable to write a value to the '{}' location.", location, e);
+            return false;
+        }
+
+        if (durability == Durability.BATCHED) {
+            batchedSync.add(segment);
+        }
+        return true;
+    }
+
+    @Override
+    public void flush() {
+        if (batchedSync != null) {
+            batchedSync.flush();
+        }
+    }
+
+    @Override
+    public boolean removeFile(String location) {
+        RecordLocation recordLocation = RecordLocation.parse(location);
+        Segment segment = segments.get(recordLocation.segmentId);
+        if (segment == null) {
+            return false;
+        }
+        segment.deadBytes.addAndGet(recordLocation.getRecordLength());
+        return true;
+    }
+
+    @Override
+    public IValue getValueFrom(String location) {
+        RecordLocation recordLocation = RecordLocation.parse(location);
+        Segment segment = segments.get(recordLocation.segmentId);
+        if (segment == null) {
+            LOG.error("Unable to find a segment for the '{}' location.", location);
+            return new ByteArrayValue();
+        }
+
+        byte[] data = new byte[recordLocation.valueLength];
+        try {
+            readFully(segment.channel, ByteBuffer.wrap(data), recordLocation.getValueOffset());
+        }
+        catch (IOException e) {
+            LOG.error("Unable to read the '{}' location.", location, e);
+            return new ByteArrayValue();
+        }
+        return new ByteArrayValue(data);
+    }
+
+    /**
+     * Counts the dead bytes of the segments a previous run has left: the records no register entry refers to,
+     * such as the uncommitted ones the register has dropped on start, and a torn tail. The records removed while
+     * a segment is read might be counted twice, which only brings its compaction forward.
+     *
+     * @return always 0, the dead records are left to the compaction
+     */
+    @Override
+    public int reconcile(ILocationRegister register) {
+        for (Segment segment : segments.values()) {
+            if (segment.isReconciled || segment.retiredAt > 0) {
+                continue;
+            }
+
+            long[] deadBytes = new long[1];
+            try {
+                long recordsEnd = forEachRecord(segment, (key, location, recordLength) -> {
+                    if ( !register.isReferenced(key, location) ) {
+                        deadBytes[0] += recordLength;
+                    }
+                    return true;
+                });
+                deadBytes[0] += segment.reserved - recordsEnd;
+            }
+            catch (IOException e) {
+                LOG.error("Unable to reconcile the '{}' segment of the '{}' shard.", new Object[] {segment.id, shardLocation}, e);
+                continue;
+            }
+            segment.deadBytes.addAndGet(deadBytes[0]);
+            segment.isReconciled = true;
+        }
+        return 0;
+    }
+
+    @Override
+    public void compact(ILocationRegister register) {
+        long now = System.currentTimeMillis();
+        for (Segment segment : segments.values()) {
+            if (segment.retiredAt > 0) {
+                if (now - segment.retiredAt >= compactionGracePeriodMs) {
+                    deleteSegment(segment);
+                }
+            }
+            else if (isCompactable(segment, now)) {
+                compactSegment(segment, register, now);
+            }
+        }
+    }
+
+    private boolean isCompactable(Segment segment, long now) {
+        return segment != activeSegment
+                && now - segment.sealedAt >= compactionGracePeriodMs
+                && segment.deadBytes.get() >= compactionThreshold * segment.reserved;
+    }
+
+    private void compactSegment(Segment segment, ILocationRegister register, long now) {
+        LOG.trace("Compacting the '{}' segment of the '{}' shard...", segment.id, shardLocation);
+
+        try {
+            boolean[] isMoved = {true};
+            forEachRecord(segment, (key, location, recordLength) -> {
+                if (register.isLatest(key, location) && !moveRecord(key, location, register)) {
+                    LOG.error("Unable to move the '{}' record, the '{}' segment is left as it is.", location, segment.id);
+                    isMoved[0] = false;
+                }
+                return isMoved[0];
+            });
+            if ( !isMoved[0] ) {
+                return;
+            }
+        }
+        catch (IOException e) {
+            LOG.error("Unable to compact the '{}' segment of the '{}' shard.", new Object[] {segment.id, shardLocation}, e);
+            return;
+        }
+
+        segment.retiredAt = now;
+    }
+
+    /**
+     * Reads the records of the segment one by one, until the visitor stops or a torn tail is found.
+     *
+     * @return the offset the complete records end at
+     */
+    private long forEachRecord(Segment segment, RecordVisitor visitor) throws IOException {
+        long segmentSize = segment.channel.size();
+        long recordOffset = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (recordOffset + RECORD_HEADER_SIZE <= segmentSize) {
+            header.clear();
+            readFully(segment.channel, header, recordOffset);
+            header.flip();
+            int keyLength = header.getInt();
+            int valueLength = header.getInt();
+            long recordLength = (long) RECORD_HEADER_SIZE + keyLength + valueLength;
+            if (keyLength < 0 || valueLength < 0 || recordOffset + recordLength > segmentSize) {
+                // a torn tail, such a record has never been written completely and so never committed
+                break;
+            }
+
+            byte[] keyData = new byte[keyLength];
+            readFully(segment.channel, ByteBuffer.wrap(keyData), recordOffset + RECORD_HEADER_SIZE);
+            String key = new String(keyData, StandardCharsets.UTF_8);
+            String location = LOCATION_PREFIX + segment.id + ":" + recordOffset + ":" + keyLength + ":" + valueLength;
+            if ( !visitor.visit(key, location, recordLength) ) {
+                break;
+            }
+            recordOffset += recordLength;
+        }
+        return recordOffset;
+    }
+
+    private boolean moveRecord(String key, String location, ILocationRegister register) {
+        IValue value = getValueFrom(location);
+        if ( !value.get().isPresent() ) {
+            return false;
+        }
+
+        Optional<String> newLocation = newLocationFor(new StringKey(key), value);
+        if ( !newLocation.isPresent() || !createNewFileWithValue(newLocation.get(), value) ) {
+            newLocation.ifPresent(this::removeFile);
+            return false;
+        }
+
+        if ( !register.relocate(key, location, newLocation.get()) ) {
+            // the record has been superseded or removed in the meantime
+            removeFile(newLocation.get());
+        }
+        return true;
+    }
+
+    private void syncSegments(Set<Segment> dirtySegments) {
+        for (Segment segment : dirtySegments) {
+            try {
+                segment.channel.force(false);
+            }
+            catch (ClosedChannelException e) {
+                // the segment has been compacted and deleted in the meantime
+            }
+            catch (IOException e) {
+                LOG.error("Unable to sync the '{}' segment of the '{}' shard.", new Object[] {segment.id, shardLocation}, e);
+            }
+        }
+    }
+
+    private void deleteSegment(Segment segment) {
+        segments.remove(segment.id);
+        try {
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        }
+        catch (IOException e) {
+            LOG.error("Unable to delete the '{}' segment of the '{}' shard.", new Object[] {segment.id, shardLocation}, e);
+        }
+    }
+
+    private Segment openSegment(long segmentId) throws IOException {
+        Path segmentPath = Paths.get(shardLocation, String.format("%020d", segmentId) + SEGMENT_FILE_SUFFIX);
+        FileChannel channel = FileChannel.open(segmentPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (durability != Durability.NONE) {
+            FileSystemShard.forceDirectory(segmentPath.toAbsolutePath().getParent());
+        }
+        Segment segment = new Segment(segmentId, segmentPath, channel);
+        segments.put(segmentId, segment);
+        return segment;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of a segment at the " + position + " position.");
+            }
+            position += read;
+        }
+    }
+
+    private static class Segment {
+        private final long id;
+        private final Path path;
+        private final FileChannel channel;
+        private final AtomicLong deadBytes = new AtomicLong();
+
+        private volatile long reserved;
+        private volatile long sealedAt = Long.MAX_VALUE;
+        private volatile long retiredAt;
+        // the dead bytes of a segment of a previous run are not known until it is reconciled
+        private volatile boolean isReconciled = true;
+
+        private Segment(long id, Path path, FileChannel channel) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.reserved = channel.size();
+        }
+    }
+
+    private interface RecordVisitor {
+        /**
+         * @return false to stop reading the records
+         */
+        boolean visit(String key, String location, long recordLength);
+    }
+
+    private static class RecordLocation {
+        private final long segmentId;
+        private final long recordOffset;
+        private final int keyLength;
+        private final int valueLength;
+
+        private RecordLocation(long segmentId, long recordOffset, int keyLength, int valueLength) {
+            this.segmentId = segmentId;
+            this.recordOffset = recordOffset;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+        }
+
+        private static RecordLocation parse(String location) {
+            String[] parts = location.substring(LOCATION_PREFIX.length()).split(":");
+            return new RecordLocation(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+        }
+
+        private long getValueOffset() {
+            return recordOffset + RECORD_HEADER_SIZE + keyLength;
+        }
+
+        private long getRecordLength() {
+            return (long) RECORD_HEADER_SIZE + keyLength + valueLength;
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package org.smartsoftware.smartmap.request.manager.filesystem;
+
+import org.smartsoftware.smartmap.domain.data.ByteArrayValue;
+import org.smartsoftware.smartmap.domain.data.IKey;
+import org.smartsoftware.smartmap.domain.data.IValue;
+import org.smartsoftware.smartmap.request.manager.metrics.ShardMetrics;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * An off-heap tier in front of a file system shard for the small values. The values are kept in slabs of direct
+ * memory, each slab is cut into the slots of a single size class, so a value takes the slot of the smallest class
+ * it fits in and the memory is never fragmented. The file system stays the durable copy, a value gets into
+ * the tier once it is read and leaves it when its location is removed or when it is evicted.
+ *
+ * The tier is bounded by its memory budget: slabs are allocated on demand until the budget is used up, then a value
+ * takes the slot of a value of the same class that has not been read recently (a CLOCK sweep). The hot values
+ * live outside of the heap, so however many of them there are, the GC never scans nor moves them; a read hands out
+ * a short-lived copy only.
+ *
+ * Reads do not lock: a value is copied out of its slot optimistically and the copy is dropped if the slot has been
+ * reused meanwhile, the read is retried under the lock then.
+ */
+public class SlabFileSystemShard implements IFileSystemShard {
+
+    private static final int INVALIDATION_STRIPES = 64;
+    private static final int MIN_SLOT_SIZE = 64;
+
+    private final IFileSystemShard fileSystem;
+
+    // a zero budget leaves the tier off
+    private long maxBytes = 0;
+    private int maxValueSize = 4096;
+    private int slabSize = 1024 * 1024;
+    private double sizeClassFactor = 1.25;
+
+    private SizeClass[] sizeClasses;
+    private int maxSlabs;
+    private int allocatedSlabs = 0;
+
+    private final ConcurrentMap<String, Slot> slots = new ConcurrentHashMap<>();
+    private final StampedLock lock = new StampedLock();
+
+    // a value read from a location removed meanwhile must not get into the tier
+    private final AtomicLongArray invalidations = new AtomicLongArray(INVALIDATION_STRIPES);
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public SlabFileSystemShard(IFileSystemShard fileSystem) {
+        this.fileSystem = fileSystem;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public void setMaxValueSize(int maxValueSize) {
+        this.maxValueSize = maxValueSize;
+    }
+
+    public void setSlabSize(int slabSize) {
+        this.slabSize = slabSize;
+    }
+
+    public void setSizeClassFactor(double sizeClassFactor) {
+        this.sizeClassFactor = sizeClassFactor;
+    }
+
+    @Override
+    public void init() {
+        fileSystem.init();
+        if (slabSize < maxValueSize) {
+            throw new IllegalStateException("A slab of " + slabSize + " bytes could not hold a value of " + maxValueSize + " bytes.");
+        }
+
+        List<SizeClass> classes = new ArrayList<>();
+        int slotSize = Math.min(MIN_SLOT_SIZE, maxValueSize);
+        while (true) {
+            classes.add(new SizeClass(slotSize, slabSize / slotSize));
+            if (slotSize >= maxValueSize) {
+                break;
+            }
+            // slots are aligned to 8 bytes, every class is larger than the previous one
+            int nextSlotSize = (int) Math.ceil(slotSize * sizeClassFactor / 8) * 8;
+            slotSize = Math.min(maxValueSize, Math.max(slotSize + 8, nextSlotSize));
+        }
+        sizeClasses = classes.toArray(new SizeClass[0]);
+        maxSlabs = (int) Math.min(Integer.MAX_VALUE, maxBytes / slabSize);
+    }
+
+    @Override
+    public Optional<String> newLocationFor(IKey key, IValue value) {
+        return fileSystem.newLocationFor(key, value);
+    }
+
+    @Override
+    public boolean createNewFileWithValue(String location, IValue value) {
+        return fileSystem.createNewFileWithValue(location, value);
+    }
+
+    @Override
+    public boolean removeFile(String location) {
+        // freed before the file is gone, so a hit never serves a value whose file has been removed already
+        invalidations.incrementAndGet(stripeOf(location));
+        free(location);
+        return fileSystem.removeFile(location);
+    }
+
+    @Override
+    public IValue getValueFrom(String location) {
+        if (maxSlabs <= 0) {
+            return fileSystem.getValueFrom(location);
+        }
+
+        Optional<byte[]> cached = lookup(location);
+        if (cached.isPresent()) {
+            hitCount.incrementAndGet();
+            return new ByteArrayValue(cached.get());
+        }
+        missCount.incrementAndGet();
+
+        long invalidationsBeforeRead = invalidations.get(stripeOf(location));
+        IValue value = fileSystem.getValueFrom(location);
+        Optional<ByteBuffer> buffer = value.getBuffer();
+        if (buffer.isPresent() && buffer.get().remaining() <= maxValueSize) {
+            admit(location, buffer.get(), invalidationsBeforeRead);
+        }
+        return value;
+    }
+
+    @Override
+    public Optional<ReadableByteChannel> openValueFrom(String location) {
+        if (maxSlabs > 0) {
+            Optional<byte[]> cached = lookup(location);
+            if (cached.isPresent()) {
+                hitCount.incrementAndGet();
+                return new ByteArrayValue(cached.get()).openChannel();
+            }
+        }
+        return fileSystem.openValueFrom(location);
+    }
+
+    @Override
+    public void compact(ILocationRegister register) {
+        fileSystem.compact(register);
+    }
+
+    @Override
+    public void flush() {
+        fileSystem.flush();
+    }
+
+    @Override
+    public int reconcile(ILocationRegister register) {
+        return fileSystem.reconcile(register);
+    }
+
+    @Override
+    public void bindMetrics(ShardMetrics metrics) {
+        metrics.bindSlabCounters(this::getHitCount, this::getMissCount, this::getEvictionCount);
+        fileSystem.bindMetrics(metrics);
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public long getAllocatedBytes() {
+        long stamp = lock.readLock();
+        try {
+            return (long) allocatedSlabs * slabSize;
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private Optional<byte[]> lookup(String location) {
+        long stamp = lock.tryOptimisticRead();
+        try {
+            Slot slot = slots.get(location);
+            if (slot == null) {
+                return Optional.empty();
+            }
+            byte[] data = new byte[slot.length];
+            copyOut(slot, data);
+            if (lock.validate(stamp)) {
+                slot.isReferenced = true;
+                return Optional.of(data);
+            }
+        }
+        catch (RuntimeException e) {
+            // the slot has been changed under the copy, it is read under the lock below
+        }
+
+        stamp = lock.readLock();
+        try {
+            Slot slot = slots.get(location);
+            if (slot == null) {
+                return Optional.empty();
+            }
+            byte[] data = new byte[slot.length];
+            copyOut(slot, data);
+            slot.isReferenced = true;
+            return Optional.of(data);
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private void admit(String location, ByteBuffer buffer, long invalidationsBeforeRead) {
+        SizeClass sizeClass = classFor(buffer.remaining());
+        long stamp = lock.writeLock();
+        try {
+            if (invalidations.get(stripeOf(location)) != invalidationsBeforeRead || slots.containsKey(location)) {
+                return;
+            }
+            int slotIndex = allocateSlot(sizeClass);
+            if (slotIndex < 0) {
+                return;
+            }
+
+            Slot slot = new Slot(location, sizeClass, slotIndex, buffer.remaining());
+            ByteBuffer target = sizeClass.slabs.get(slotIndex / sizeClass.slotsPerSlab).duplicate();
+            target.position(slotOffset(slot));
+            target.put(buffer.duplicate());
+            sizeClass.slots[slotIndex] = slot;
+            slots.put(location, slot);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void free(String location) {
+        if ( !slots.containsKey(location) ) {
+            return;
+        }
+        long stamp = lock.writeLock();
+        try {
+            Slot slot = slots.remove(location);
+            if (slot != null) {
+                slot.sizeClass.release(slot.index);
+            }
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private int allocateSlot(SizeClass sizeClass) {
+        if (sizeClass.freeCount > 0) {
+            return sizeClass.freeSlots[--sizeClass.freeCount];
+        }
+        if (allocatedSlabs < maxSlabs) {
+            allocatedSlabs++;
+            sizeClass.addSlab(ByteBuffer.allocateDirect(slabSize));
+            return sizeClass.freeSlots[--sizeClass.freeCount];
+        }
+        if (sizeClass.slabs.isEmpty()) {
+            // the budget has been taken by the other classes
+            return -1;
+        }
+
+        // a CLOCK sweep: a slot read since the previous pass gets another chance
+        int slotCount = sizeClass.slots.length;
+        for (int i = 0; i < 2 * slotCount; i++) {
+            int slotIndex = sizeClass.clockHand;
+            sizeClass.clockHand = (sizeClass.clockHand + 1) % slotCount;
+            Slot slot = sizeClass.slots[slotIndex];
+            if (slot.isReferenced) {
+                slot.isReferenced = false;
+                continue;
+            }
+            slots.remove(slot.location);
+            sizeClass.slots[slotIndex] = null;
+            evictionCount.incrementAndGet();
+            return slotIndex;
+        }
+        return -1;
+    }
+
+    private void copyOut(Slot slot, byte[] data) {
+        ByteBuffer source = slot.sizeClass.slabs.get(slot.index / slot.sizeClass.slotsPerSlab).duplicate();
+        source.position(slotOffset(slot));
+        source.get(data);
+    }
+
+    private static int slotOffset(Slot slot) {
+        return (slot.index % slot.sizeClass.slotsPerSlab) * slot.sizeClass.slotSize;
+    }
+
+    private SizeClass classFor(int length) {
+        for (SizeClass sizeClass : sizeClasses) {
+            if (length <= sizeClass.slotSize) {
+                return sizeClass;
+            }
+        }
+        return sizeClasses[sizeClasses.length - 1];
+    }
+
+    private static int stripeOf(String location) {
+        return (location.hashCode() & Integer.MAX_VALUE) % INVALIDATION_STRIPES;
+    }
+
+    private static class SizeClass {
+        private final int slotSize;
+        private final int slotsPerSlab;
+        private final List<ByteBuffer> slabs = new ArrayList<>();
+        private Slot[] slots = new Slot[0];
+        private int[] freeSlots = new int[0];
+        private int freeCount = 0;
+        private int clockHand = 0;
+
+        private SizeClass(int slotSize, int slotsPerSlab) {
+            this.slotSize = slotSize;
+            this.slotsPerSlab = slotsPerSlab;
+        }
+
+        private void addSlab(ByteBuffer slab) {
+            int firstSlot = slots.length;
+            slots = Arrays.copyOf(slots, firstSlot + slotsPerSlab);
+            freeSlots = Arrays.copyOf(freeSlots, slots.length);
+            // the slots are handed out from the start of the slab
+            for (int slotIndex = slots.length - 1; slotIndex >= firstSlot; slotIndex--) {
+                freeSlots[freeCount++] = slotIndex;
+            }
+            slabs.add(slab);
+        }
+
+        private void release(int slotIndex) {
+            slots[slotIndex] = null;
+            freeSlots[freeCount++] = slotIndex;
+        }
+    }
+
+    private static class Slot {
+        private final String location;
+        private final SizeClass sizeClass;
+        private final int index;
+        private final int length;
+        private volatile boolean isReferenced = false;
+
+        private Slot(String location, SizeClass sizeClass, int index, int length) {
+            this.location = location;
+            this.sizeClass = sizeClass;
+            this.index = index;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.smartsoftware.smartmap.request.manager.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of latencies in nanoseconds. Every power of two is split into 8 buckets, so a percentile is
+ * reported with an error of 12.5% at most. Recording neither allocates nor locks, it increments a bucket counter only.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        long latency = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(latency));
+        totalNanos.addAndGet(latency);
+
+        long max = maxNanos.get();
+        while (latency > max && !maxNanos.compareAndSet(max, latency)) {
+            max = maxNanos.get();
+        }
+    }
+
+    /**
+     * A snapshot is not atomic: the values recorded while it is taken could be counted partially.
+     */
+    public LatencySnapshot snapshot() {
+        long[] bucketCounts = new long[BUCKETS];
+        long count = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            bucketCounts[bucket] = counts.get(bucket);
+            count += bucketCounts[bucket];
+        }
+        if (count == 0) {
+            return new LatencySnapshot(0, 0, 0, 0, 0, 0, 0);
+        }
+
+        return new LatencySnapshot(
+                count,
+                totalNanos.get() / count,
+                percentile(bucketCounts, count, 0.5),
+                percentile(bucketCounts, count, 0.9),
+                percentile(bucketCounts, count, 0.99),
+                percentile(bucketCounts, count, 0.999),
+                maxNanos.get()
+        );
+    }
+
+    private static long percentile(long[] bucketCounts, long count, double quantile) {
+        long rank = (long) Math.ceil(count * quantile);
+        long seen = 0;
+        for (int bucket = 0; bucket < bucketCounts.length; bucket++) {
+            seen += bucketCounts[bucket];
+            if (seen >= rank) {
+                return upperBoundOf(bucket);
+            }
+        }
+        return upperBoundOf(bucketCounts.length - 1);
+    }
+
+    static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(nanos)) - SUB_BUCKET_BITS;
+        int subBucket = (int) (nanos >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,164 @@
+package org.smartsoftware.smartmap.request.manager.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The metrics of a shard. They could be pulled through the getters or through JMX, once the shard is registered
+ * as an 'org.smartsoftware.smartmap:type=Shard,name=<shard path>' MBean.
+ */
+public class ShardMetrics implements ShardMetricsMXBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ShardMetrics.class);
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final String shardPath;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[STAGES.length];
+    private final LongAdder gcRowsReclaimed = new LongAdder();
+    private final LongAdder gcFilesReclaimed = new LongAdder();
+    private final AtomicLong gcBacklog = new AtomicLong();
+
+    // the counters are kept by the file system of the shard, they are read off it
+    private volatile LongSupplier cacheHitCount = () -> 0;
+    private volatile LongSupplier cacheMissCount = () -> 0;
+    private volatile LongSupplier cacheEvictionCount = () -> 0;
+    private volatile LongSupplier slabHitCount = () -> 0;
+    private volatile LongSupplier slabMissCount = () -> 0;
+    private volatile LongSupplier slabEvictionCount = () -> 0;
+
+    public ShardMetrics(String shardPath) {
+        this.shardPath = shardPath;
+        for (Stage stage : STAGES) {
+            latencies[stage.ordinal()] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records the time passed since the stage has started, as given by System.nanoTime().
+     */
+    public void record(Stage stage, long startedAtNanos) {
+        latencies[stage.ordinal()].record(System.nanoTime() - startedAtNanos);
+    }
+
+    public void onGcReclaimed(long rows, long files) {
+        gcRowsReclaimed.add(rows);
+        gcFilesReclaimed.add(files);
+    }
+
+    public void setGcBacklog(long backlog) {
+        gcBacklog.set(backlog);
+    }
+
+    public void bindCacheCounters(LongSupplier hitCount, LongSupplier missCount, LongSupplier evictionCount) {
+        this.cacheHitCount = hitCount;
+        this.cacheMissCount = missCount;
+        this.cacheEvictionCount = evictionCount;
+    }
+
+    public void bindSlabCounters(LongSupplier hitCount, LongSupplier missCount, LongSupplier evictionCount) {
+        this.slabHitCount = hitCount;
+        this.slabMissCount = missCount;
+        this.slabEvictionCount = evictionCount;
+    }
+
+    public LatencySnapshot getLatency(Stage stage) {
+        return latencies[stage.ordinal()].snapshot();
+    }
+
+    @Override
+    public Map<String, LatencySnapshot> getLatencies() {
+        Map<String, LatencySnapshot> snapshots = new LinkedHashMap<>();
+        for (Stage stage : STAGES) {
+            snapshots.put(stage.name(), getLatency(stage));
+        }
+        return snapshots;
+    }
+
+    @Override
+    public long getGcRowsReclaimed() {
+        return gcRowsReclaimed.sum();
+    }
+
+    @Override
+    public long getGcFilesReclaimed() {
+        return gcFilesReclaimed.sum();
+    }
+
+    @Override
+    public long getGcBacklog() {
+        return gcBacklog.get();
+    }
+
+    @Override
+    public long getCacheHitCount() {
+        return cacheHitCount.getAsLong();
+    }
+
+    @Override
+    public long getCacheMissCount() {
+        return cacheMissCount.getAsLong();
+    }
+
+    @Override
+    public long getCacheEvictionCount() {
+        return cacheEvictionCount.getAsLong();
+    }
+
+    @Override
+    public long getSlabHitCount() {
+        return slabHitCount.getAsLong();
+    }
+
+    @Override
+    public long getSlabMissCount() {
+        return slabMissCount.getAsLong();
+    }
+
+    @Override
+    public long getSlabEvictionCount() {
+        return slabEvictionCount.getAsLong();
+    }
+
+    public void registerMBean() {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = objectName();
+            // a shard reopened in the same JVM replaces its previous instance
+            if (mBeanServer.isRegistered(name)) {
+                mBeanServer.unregisterMBean(name);
+            }
+            mBeanServer.registerMBean(this, name);
+        }
+        catch (JMException e) {
+            LOG.error("Unable to register the metrics of the '{}' shard.", shardPath, e);
+        }
+    }
+
+    public void unregisterMBean() {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = objectName();
+            if (mBeanServer.isRegistered(name)) {
+                mBeanServer.unregisterMBean(name);
+            }
+        }
+        catch (JMException e) {
+            LOG.error("Unable to unregister the metrics of the '{}' shard.", shardPath, e);
+        }
+    }
+
+    private ObjectName objectName() throws JMException {
+        return new ObjectName("org.smartsoftware.smartmap:type=Shard,name=" + ObjectName.quote(shardPath));
+    }
+}
@@ -0,0 +1,33 @@
+package org.smartsoftware.smartmap.request.manager.metrics;
+
+import java.util.Map;
+
+public interface ShardMetricsMXBean {
+
+    /**
+     * The latencies of the operations and their stages, by the stage name.
+     */
+    Map<String, LatencySnapshot> getLatencies();
+
+    long getGcRowsReclaimed();
+    long getGcFilesReclaimed();
+
+    /**
+     * The number of the register ids the housekeeper has not looked through in its current sweep yet.
+     */
+    long getGcBacklog();
+
+    /**
+     * The counters of the value cache of the shard, zeros if it has none.
+     */
+    long getCacheHitCount();
+    long getCacheMissCount();
+    long getCacheEvictionCount();
+
+    /**
+     * The counters of the off heap slabs of the shard, zeros if it has none.
+     */
+    long getSlabHitCount();
+    long getSlabMissCount();
+    long getSlabEvictionCount();
+}
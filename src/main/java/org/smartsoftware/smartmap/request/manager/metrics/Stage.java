@@ -0,0 +1,20 @@
+package org.smartsoftware.smartmap.request.manager.metrics;
+
+/**
+ * The operations of a shard and the stages they consist of, each of them has a latency histogram of its own.
+ */
+public enum Stage {
+    PUT,
+    PUT_REGISTER_INSERT,
+    PUT_FILE_WRITE,
+    PUT_REGISTER_COMMIT,
+    GET,
+    GET_INDEX_LOOKUP,
+    GET_FILE_READ,
+    REMOVE,
+    LIST_KEYS,
+    BATCH_PUT,
+    BATCH_GET,
+    BATCH_REMOVE,
+    GC_CYCLE
+}
@@ -0,0 +1,98 @@
+package org.smartsoftware.smartmap.request.manager;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.smartsoftware.smartmap.domain.data.ByteArrayValue;
+import org.smartsoftware.smartmap.domain.data.IKey;
+import org.smartsoftware.smartmap.domain.data.IValue;
+import org.smartsoftware.smartmap.domain.data.StringKey;
+import org.smartsoftware.smartmap.request.manager.datasource.LogStructuredShardDAO;
+import org.smartsoftware.smartmap.request.manager.filesystem.FileSystemShard;
+import org.smartsoftware.smartmap.request.manager.filesystem.IFileSystemShard;
+import org.springframework.beans.BeanUtils;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class HashBasedRequestManagerRebalanceTest {
+
+    private static final int KEYS = 200;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final List<LogStructuredShardDAO> daos = new ArrayList<>();
+
+    @After
+    public void tearDown() throws IOException {
+        for (LogStructuredShardDAO dao : daos) {
+            dao.close();
+        }
+    }
+
+    @Test
+    public void shouldMoveMisplacedKeysInBackgroundWhileServingThem() {
+        HashBasedRequestManager singleShardManager = new HashBasedRequestManager(Collections.singletonList(shard("shard1")));
+        singleShardManager.init();
+        for (int i = 0; i < KEYS; i++) {
+            assertThat(singleShardManager.put(new StringKey("key_" + i), new ByteArrayValue(("value_" + i).getBytes())), is(true));
+        }
+        singleShardManager.shutdown();
+
+        Shard firstShard = shard("shard1");
+        Shard secondShard = shard("shard2");
+        HashBasedRequestManager requestManager = new HashBasedRequestManager(Arrays.asList(firstShard, secondShard));
+        requestManager.init();
+        try {
+            // the keys are read from the shard they have been found in until they are moved
+            for (int i = 0; i < KEYS; i++) {
+                assertThat(valueOf(requestManager, "key_" + i), is("value_" + i));
+            }
+            requestManager.getRebalancing().join();
+
+            ShardRing ring = new ShardRing(Arrays.asList(firstShard, secondShard), 128);
+            for (int i = 0; i < KEYS; i++) {
+                IKey key = new StringKey("key_" + i);
+                Shard otherShard = ring.shardFor(key) == firstShard ? secondShard : firstShard;
+                assertThat(ring.shardFor(key).getIndex().getLatestPath(key).isPresent(), is(true));
+                assertThat(otherShard.getIndex().getLatestPath(key).isPresent(), is(false));
+                assertThat(valueOf(requestManager, "key_" + i), is("value_" + i));
+            }
+            assertThat(secondShard.getIndex().keys(), not(empty()));
+        }
+        finally {
+            requestManager.shutdown();
+        }
+    }
+
+    private static String valueOf(HashBasedRequestManager requestManager, String key) {
+        return requestManager.get(new StringKey(key)).flatMap(IValue::get).map(String::new).orElse(null);
+    }
+
+    private Shard shard(String name) {
+        Path shardPath = temporaryFolder.getRoot().toPath().resolve(name);
+        LogStructuredShardDAO dao = instantiate(LogStructuredShardDAO.class, Path.class, shardPath);
+        daos.add(dao);
+        IFileSystemShard fileSystem = instantiate(FileSystemShard.class, String.class, shardPath.toString());
+        return new Shard(shardPath.toString(), dao, fileSystem);
+    }
+
+    private static <T> T instantiate(Class<T> type, Class<?> argumentType, Object argument) {
+        // the shard parts are created by Spring, their constructors are not public
+        try {
+            return BeanUtils.instantiateClass(type.getDeclaredConstructor(argumentType), argument);
+        }
+        catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
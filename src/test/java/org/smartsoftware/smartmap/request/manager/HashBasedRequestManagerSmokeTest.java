@@ -5,21 +5,45 @@ import org.junit.runner.RunWith;
 import org.smartsoftware.smartmap.domain.communication.CommunicationChain;
 import org.smartsoftware.smartmap.domain.communication.request.*;
 import org.smartsoftware.smartmap.domain.communication.response.EmptyResponse;
+import org.smartsoftware.smartmap.domain.communication.response.KeysPageResponse;
 import org.smartsoftware.smartmap.domain.communication.response.ListResponse;
 import org.smartsoftware.smartmap.domain.communication.response.SuccessResponse;
 import org.smartsoftware.smartmap.domain.communication.response.ValueResponse;
+import org.smartsoftware.smartmap.domain.communication.response.ValuesResponse;
 import org.smartsoftware.smartmap.domain.data.ByteArrayValue;
+import org.smartsoftware.smartmap.domain.data.ChannelValue;
+import org.smartsoftware.smartmap.domain.data.IKey;
+import org.smartsoftware.smartmap.domain.data.IValue;
 import org.smartsoftware.smartmap.domain.data.StringKey;
 import org.smartsoftware.smartmap.request.manager.datasource.SqliteShardDAO;
+import org.smartsoftware.smartmap.request.manager.metrics.ShardMetrics;
+import org.smartsoftware.smartmap.request.manager.metrics.Stage;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.Matchers.*;
 import static org.hamcrest.core.IsNull.notNullValue;
@@ -38,7 +62,7 @@ public class HashBasedRequestManagerSmokeTest {
     @Test
     public void testFreshInitializationProcess() throws IllegalAccessException, NoSuchFieldException, SQLException {
         List<Integer> result = queryFromDb(
-                "SELECT COUNT(*) FROM ENTRIES where status != 'COMMITTED';",
+                "SELECT COUNT(*) FROM ENTRIES where status != 1;",
                 (resultSet, i) -> resultSet.getInt(1)
         );
         assertThat(result, contains(0));
@@ -112,17 +136,55 @@ public class HashBasedRequestManagerSmokeTest {
         assertThat(numberOfEntriesInDbKeyRemove, hasItem(greaterThanOrEqualTo(0)));
 
         List<Integer> numberOfEntriesInDbKeyRemoveOther = queryFromDb(
-                "SELECT COUNT(*) FROM ENTRIES WHERE entry_key = 'test_key_remove';",
+                "SELECT COUNT(*) FROM ENTRIES WHERE entry_key = 'test_key_remove_other';",
                 (resultSet, i) -> resultSet.getInt(1)
         );
         assertThat(numberOfEntriesInDbKeyRemoveOther, hasItem(greaterThanOrEqualTo(1)));
     }
 
+    @Test
+    public void shouldKeepPutFollowingRemove() {
+        // the remove and the put mostly fall within the same millisecond
+        IKey key = new StringKey("test_key_remove_then_put");
+        for (int i = 0; i < 200; i++) {
+            requestManager.put(key, new ByteArrayValue(("old_value_" + i).getBytes()));
+            requestManager.remove(key);
+            requestManager.put(key, new ByteArrayValue(("new_value_" + i).getBytes()));
+            assertThat(new String(requestManager.get(key).get().get().get()), is("new_value_" + i));
+        }
+        requestManager.remove(key);
+    }
+
+    @Test
+    public void shouldKeepRegisterInLineWithIndexUnderConcurrentPutsAndRemoves() throws Exception {
+        IKey key = new StringKey("test_key_concurrent_put_remove");
+        ExecutorService writers = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 400; i++) {
+                byte[] value = ("value_" + i).getBytes();
+                boolean isPut = i % 2 == 0;
+                results.add(writers.submit(() -> isPut ? requestManager.put(key, new ByteArrayValue(value)) : requestManager.remove(key)));
+            }
+            for (Future<Boolean> result : results) {
+                assertThat(result.get(10, TimeUnit.SECONDS), is(true));
+            }
+        }
+        finally {
+            writers.shutdown();
+        }
+
+        // a remove never hides a value the register still keeps, nor the other way round
+        Shard shard = singleShard();
+        assertThat(shard.getDao().getCommittedPathFor(key), equalTo(shard.getIndex().getLatestPath(key)));
+        requestManager.remove(key);
+    }
+
     @Test
     public void shouldListAllLatestCommittedKeys() {
         requestManager.onRequest(new CommunicationChain(new PutRequest(new StringKey("list_key_1"), new ByteArrayValue("list_value_1".getBytes()))));
         requestManager.onRequest(new CommunicationChain(new PutRequest(new StringKey("list_key_2"), new ByteArrayValue("list_value_2".getBytes()))));
-        executeOnDb("UPDATE ENTRIES SET status = 'UPDATING' WHERE entry_key = 'list_key_1';");
+        executeOnDb("UPDATE ENTRIES SET status = 0 WHERE entry_key = 'list_key_1';");
 
         IRequest listRequest = new ListKeysRequest();
         CommunicationChain communicationChain = requestManager.onRequest(new CommunicationChain(listRequest));
@@ -133,6 +195,171 @@ public class HashBasedRequestManagerSmokeTest {
         assertThat(((ListResponse)communicationChain.getResponse()).get(), allOf(hasItem("list_key_2"), not(hasItem("list_key_1"))));
     }
 
+    @Test
+    public void shouldPutGetAndRemoveBatches() {
+        CommunicationChain putChain = requestManager.onRequest(new CommunicationChain(new BatchPutRequest(Arrays.asList(
+                new PutRequest(new StringKey("batch_key_1"), new ByteArrayValue("batch_value_1".getBytes())),
+                new PutRequest(new StringKey("batch_key_2"), new ByteArrayValue("batch_value_2".getBytes())),
+                new PutRequest(new StringKey("batch_key_3"), new ByteArrayValue("batch_value_3".getBytes()))
+        ))));
+        assertThat(putChain.getResponse(), allOf(notNullValue(), instanceOf(SuccessResponse.class)));
+
+        CommunicationChain removeChain = requestManager.onRequest(new CommunicationChain(new BatchRemoveRequest(Arrays.<IKey>asList(
+                new StringKey("batch_key_2"), new StringKey("batch_key_absent")
+        ))));
+        assertThat(removeChain.getResponse(), allOf(notNullValue(), instanceOf(SuccessResponse.class)));
+
+        CommunicationChain getChain = requestManager.onRequest(new CommunicationChain(new BatchGetRequest(Arrays.<IKey>asList(
+                new StringKey("batch_key_1"), new StringKey("batch_key_2"), new StringKey("batch_key_3")
+        ))));
+        assertThat(getChain.getResponse(), allOf(notNullValue(), instanceOf(ValuesResponse.class)));
+
+        Map<String, IValue> values = ((ValuesResponse) getChain.getResponse()).get();
+        assertThat(values.keySet(), contains("batch_key_1", "batch_key_3"));
+        assertThat(new String(values.get("batch_key_3").get().orElse("Nan".getBytes())), equalTo("batch_value_3"));
+    }
+
+    @Test
+    public void shouldProcessRequestsAsynchronously() {
+        CommunicationChain putChain = requestManager.onRequestAsync(new CommunicationChain(
+                new PutRequest(new StringKey("async_key"), new ByteArrayValue("async_value".getBytes()))
+        )).join();
+        assertThat(putChain.getResponse(), allOf(notNullValue(), instanceOf(SuccessResponse.class)));
+
+        CommunicationChain getChain = requestManager.onRequestAsync(new CommunicationChain(new GetRequest(new StringKey("async_key")))).join();
+        assertThat(getChain.getResponse(), allOf(notNullValue(), instanceOf(ValueResponse.class)));
+        assertThat(
+                new String(((ValueResponse) getChain.getResponse()).getValue().get().orElse("Nan".getBytes())),
+                equalTo("async_value")
+        );
+
+        CommunicationChain listChain = requestManager.onRequestAsync(new CommunicationChain(new ListKeysRequest())).join();
+        assertThat(((ListResponse) listChain.getResponse()).get(), hasItem("async_key"));
+    }
+
+    @Test
+    public void shouldStreamValues() throws IOException {
+        byte[] data = new byte[3 * 1024 * 1024 + 17];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        ReadableByteChannel source = Channels.newChannel(new ByteArrayInputStream(data));
+        CommunicationChain putChain = requestManager.onRequest(new CommunicationChain(new PutRequest(new StringKey("stream_key"), new ChannelValue(source))));
+        assertThat(putChain.getResponse(), allOf(notNullValue(), instanceOf(SuccessResponse.class)));
+
+        CommunicationChain openChain = requestManager.onRequest(new CommunicationChain(new OpenValueRequest(new StringKey("stream_key"))));
+        assertThat(openChain.getResponse(), allOf(notNullValue(), instanceOf(ValueResponse.class)));
+
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        ByteBuffer chunk = ByteBuffer.allocate(8192);
+        try (ReadableByteChannel channel = ((ValueResponse) openChain.getResponse()).getValue().openChannel().get()) {
+            while (channel.read(chunk) >= 0) {
+                streamed.write(chunk.array(), 0, chunk.position());
+                chunk.clear();
+            }
+        }
+        assertThat(Arrays.equals(streamed.toByteArray(), data), is(true));
+
+        CommunicationChain absentChain = requestManager.onRequest(new CommunicationChain(new OpenValueRequest(new StringKey("stream_key_absent"))));
+        assertThat(absentChain.getResponse(), instanceOf(EmptyResponse.class));
+    }
+
+    @Test
+    public void shouldPageThroughKeysStartingWithPrefix() {
+        for (int i = 0; i < 25; i++) {
+            requestManager.onRequest(new CommunicationChain(new PutRequest(new StringKey(String.format("page_key_%02d", i)), new ByteArrayValue("page_value".getBytes()))));
+        }
+        requestManager.onRequest(new CommunicationChain(new PutRequest(new StringKey("page_other_key"), new ByteArrayValue("page_value".getBytes()))));
+
+        List<String> pagedKeys = new ArrayList<>();
+        String pageToken = null;
+        int pages = 0;
+        do {
+            CommunicationChain pageChain = requestManager.onRequest(new CommunicationChain(new ListKeysPageRequest("page_key_", pageToken, 10)));
+            KeysPageResponse page = (KeysPageResponse) pageChain.getResponse();
+            pagedKeys.addAll(page.get());
+            pageToken = page.getNextPageToken().orElse(null);
+            pages++;
+        } while (pageToken != null);
+
+        assertThat(pages, is(3));
+        assertThat(pagedKeys.size(), is(25));
+        assertThat(pagedKeys.get(0), equalTo("page_key_00"));
+        assertThat(pagedKeys.get(24), equalTo("page_key_24"));
+        assertThat(pagedKeys, not(hasItem("page_other_key")));
+    }
+
+    @Test
+    public void shouldKeepSmallValuesInRegister() {
+        requestManager.setInlineValueThreshold(64);
+        try {
+            requestManager.onRequest(new CommunicationChain(new PutRequest(new StringKey("inline_key"), new ByteArrayValue("42".getBytes()))));
+            requestManager.onRequest(new CommunicationChain(new BatchPutRequest(Arrays.asList(
+                    new PutRequest(new StringKey("inline_batch_key"), new ByteArrayValue("43".getBytes())),
+                    new PutRequest(new StringKey("file_batch_key"), new ByteArrayValue(new byte[128]))
+            ))));
+
+            List<String> paths = queryFromDb(
+                    "SELECT path FROM ENTRIES WHERE inline_value IS NOT NULL AND status = 1 ORDER BY entry_key;",
+                    (resultSet, i) -> resultSet.getString(1)
+            );
+            assertThat(paths, contains(startsWith("inline:"), startsWith("inline:")));
+
+            CommunicationChain getChain = requestManager.onRequest(new CommunicationChain(new GetRequest(new StringKey("inline_key"))));
+            assertThat(new String(((ValueResponse) getChain.getResponse()).getValue().get().get()), equalTo("42"));
+            CommunicationChain fileGetChain = requestManager.onRequest(new CommunicationChain(new GetRequest(new StringKey("file_batch_key"))));
+            assertThat(((ValueResponse) fileGetChain.getResponse()).getValue().get().get().length, is(128));
+
+            requestManager.onRequest(new CommunicationChain(new RemoveRequest(new StringKey("inline_key"))));
+            assertThat(requestManager.onRequest(new CommunicationChain(new GetRequest(new StringKey("inline_key")))).getResponse(), instanceOf(EmptyResponse.class));
+        }
+        finally {
+            requestManager.setInlineValueThreshold(0);
+        }
+    }
+
+    @Test
+    public void shouldReadLatestOfAlternatingSmallAndLargeValues() {
+        requestManager.setInlineValueThreshold(64);
+        try {
+            // an inline and a file location of the same millisecond, the latest put wins whatever keeps its value
+            IKey key = new StringKey("test_key_small_and_large");
+            for (int i = 0; i < 100; i++) {
+                byte[] value = new byte[i % 2 == 0 ? 128 : 8];
+                value[0] = (byte) i;
+                requestManager.put(key, new ByteArrayValue(value));
+                assertThat(requestManager.get(key).get().get().get(), equalTo(value));
+            }
+
+            // the register orders the versions the same way
+            Shard shard = singleShard();
+            shard.getIndex().load(shard.getDao());
+            byte[] latest = requestManager.get(key).get().get().get();
+            assertThat(latest.length, is(8));
+            assertThat(latest[0], is((byte) 99));
+            requestManager.remove(key);
+        }
+        finally {
+            requestManager.setInlineValueThreshold(0);
+        }
+    }
+
+    @Test
+    public void shouldRecordStageLatencies() throws Exception {
+        requestManager.onRequest(new CommunicationChain(new PutRequest(new StringKey("metrics_key"), new ByteArrayValue("metrics_value".getBytes()))));
+        requestManager.onRequest(new CommunicationChain(new GetRequest(new StringKey("metrics_key"))));
+
+        ShardMetrics metrics = requestManager.getMetrics().values().iterator().next();
+        assertThat(metrics.getLatency(Stage.PUT_FILE_WRITE).getCount(), greaterThan(0L));
+        assertThat(metrics.getLatency(Stage.GET).getP99Nanos(), greaterThan(0L));
+
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        Set<ObjectName> shardMBeans = mBeanServer.queryNames(new ObjectName("org.smartsoftware.smartmap:type=Shard,*"), null);
+        assertThat(shardMBeans, not(empty()));
+        assertThat(mBeanServer.getAttribute(shardMBeans.iterator().next(), "Latencies"), notNullValue());
+        assertThat(mBeanServer.getAttribute(shardMBeans.iterator().next(), "CacheHitCount"), notNullValue());
+    }
+
     @Test
     public void shouldCorrectlyResolveConcurrentModificationEventualConsistency() {
         Thread thread1 = new Thread(() -> {
@@ -215,6 +442,22 @@ public class HashBasedRequestManagerSmokeTest {
         );
     }
 
+    private Shard singleShard() {
+        try {
+            Field shardsField = HashBasedRequestManager.class.getDeclaredField("shards");
+            shardsField.setAccessible(true);
+
+            List<Shard> shards = (List<Shard>) shardsField.get(requestManager);
+            if (shards.size() != 1) {
+                throw new IllegalStateException("Unexpected shards' configuration.");
+            }
+            return shards.get(0);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private <T> List<T> queryFromDb(String query, RowMapper<T> rowMapper) {
         try {
             Field shardsField = HashBasedRequestManager.class.getDeclaredField("shards");
@@ -0,0 +1,81 @@
+package org.smartsoftware.smartmap.request.manager;
+
+import org.junit.Test;
+import org.smartsoftware.smartmap.domain.data.IKey;
+import org.smartsoftware.smartmap.domain.data.StringKey;
+
+import java.util.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ShardRingTest {
+
+    private static final int KEYS = 100_000;
+
+    @Test
+    public void shouldSpreadKeysEvenly() {
+        List<Shard> shards = shards(4);
+        ShardRing ring = new ShardRing(shards, 128);
+
+        Map<Shard, Integer> keysPerShard = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            keysPerShard.merge(ring.shardFor(new StringKey("key_" + i)), 1, Integer::sum);
+        }
+
+        for (Shard shard : shards) {
+            assertThat(keysPerShard.get(shard), allOf(greaterThan(KEYS / 4 * 80 / 100), lessThan(KEYS / 4 * 120 / 100)));
+        }
+    }
+
+    @Test
+    public void shouldMoveOnlyKeysOfAddedShard() {
+        List<Shard> shards = shards(5);
+        ShardRing ring = new ShardRing(shards.subList(0, 4), 128);
+        ShardRing extendedRing = new ShardRing(shards, 128);
+
+        int movedKeys = 0;
+        for (int i = 0; i < KEYS; i++) {
+            IKey key = new StringKey("key_" + i);
+            Shard owner = ring.shardFor(key);
+            Shard newOwner = extendedRing.shardFor(key);
+            if (owner != newOwner) {
+                assertThat(newOwner, sameInstance(shards.get(4)));
+                movedKeys++;
+            }
+        }
+
+        assertThat(movedKeys, allOf(greaterThan(KEYS / 5 * 80 / 100), lessThan(KEYS / 5 * 120 / 100)));
+    }
+
+    @Test
+    public void shouldNotDependOnShardsOrder() {
+        List<Shard> shards = shards(3);
+        List<Shard> reversedShards = new ArrayList<>(shards);
+        Collections.reverse(reversedShards);
+
+        ShardRing ring = new ShardRing(shards, 16);
+        ShardRing reversedRing = new ShardRing(reversedShards, 16);
+        for (int i = 0; i < 1000; i++) {
+            IKey key = new StringKey("key_" + i);
+            assertThat(reversedRing.shardFor(key), sameInstance(ring.shardFor(key)));
+        }
+    }
+
+    @Test
+    public void shouldPersistRingMembers() {
+        Shard shard = new Shard("target/ring-members/shard1", null, null);
+        assertThat(shard.writeRingMembers(Arrays.asList("shard1", "shard2")), is(true));
+
+        assertThat(new Shard("target/ring-members/shard1", null, null).readRingMembers(), contains("shard1", "shard2"));
+        assertThat(new Shard("target/ring-members/shard2", null, null).readRingMembers(), empty());
+    }
+
+    private static List<Shard> shards(int count) {
+        List<Shard> shards = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            shards.add(new Shard("smartmap/shard" + i, null, null));
+        }
+        return shards;
+    }
+}
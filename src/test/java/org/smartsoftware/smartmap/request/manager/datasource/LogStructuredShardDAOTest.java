@@ -0,0 +1,111 @@
+package org.smartsoftware.smartmap.request.manager.datasource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.smartsoftware.smartmap.domain.data.StringKey;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class LogStructuredShardDAOTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path shardPath;
+    private LogStructuredShardDAO dao;
+
+    @Before
+    public void setUp() {
+        shardPath = temporaryFolder.getRoot().toPath();
+        dao = open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        dao.close();
+    }
+
+    @Test
+    public void shouldRecoverCommittedEntriesAndDropTornOnes() throws IOException {
+        put("kept_key", 1, "kept_1.data");
+        put("kept_key", 2, "kept_2.data");
+        put("removed_key", 1, "removed_1.data");
+        dao.markEntriesAsRemoved(new StringKey("removed_key"));
+        dao.addUpdatingEntry(3, new StringKey("kept_key"), "kept_3.data");
+        dao.close();
+
+        // a record torn by a crash in the middle of an append
+        Files.write(shardPath.resolve("register.log"), new byte[] {0, 0, 0, 42, 1, 2}, StandardOpenOption.APPEND);
+
+        dao = open();
+        assertThat(dao.getCommittedPathFor(new StringKey("kept_key")), equalTo(Optional.of("kept_2.data")));
+        assertThat(dao.getCommittedPathFor(new StringKey("removed_key")), equalTo(Optional.empty()));
+        assertThat(dao.getAllLatestCommittedKeys(), contains("kept_key"));
+        assertThat(Files.size(shardPath.resolve("register.log")), is(0L));
+
+        // the ids are never reused, so the housekeeper cursors stay valid
+        put("new_key", 4, "new_4.data");
+        assertThat(dao.getMaxEntryId(), is(5));
+    }
+
+    @Test
+    public void shouldCollectOutdatedEntriesAcrossCheckpoints() throws IOException {
+        dao.setCheckpointLogSize(256);
+        for (int version = 1; version <= 20; version++) {
+            put("key", version, "key_" + version + ".data");
+        }
+        dao.relocateEntry("key_20.data", "moved_20.data");
+        dao.close();
+
+        dao = open();
+        Map<Integer, String> collectable = dao.getCollectableEntries(0, dao.getMaxEntryId(), 100);
+        assertThat(collectable.size(), is(19));
+        assertThat(collectable.values(), not(hasItem("moved_20.data")));
+        assertThat(dao.getCommittedPathFor(new StringKey("key")), equalTo(Optional.of("moved_20.data")));
+
+        StringBuilder removed = new StringBuilder();
+        dao.removeEntries(collectable, removed::append);
+        assertThat(dao.getCollectableEntries(0, dao.getMaxEntryId(), 100).isEmpty(), is(true));
+        assertThat(removed.toString(), containsString("key_1.data"));
+    }
+
+    @Test
+    public void shouldRecoverInlineValuesFromLogAndCheckpoint() throws IOException {
+        long version = 1;
+        dao.addUpdatingEntry(version, new StringKey("counter_key"), "inline:1", Optional.of(new byte[] {4, 2}));
+        dao.commitEntry(version, new StringKey("counter_key"), "inline:1");
+        put("file_key", 1, "file_1.data");
+        dao.close();
+
+        // replayed off the log, then loaded from the checkpoint written on start
+        for (int run = 0; run < 2; run++) {
+            dao = open();
+            assertThat(dao.getInlineValue(new StringKey("counter_key"), "inline:1").map(value -> value[1]), equalTo(Optional.of((byte) 2)));
+            assertThat(dao.getInlineValue(new StringKey("file_key"), "file_1.data"), equalTo(Optional.empty()));
+            dao.close();
+        }
+        dao = open();
+    }
+
+    private LogStructuredShardDAO open() {
+        LogStructuredShardDAO shardDAO = new LogStructuredShardDAO(shardPath);
+        shardDAO.init();
+        return shardDAO;
+    }
+
+    private void put(String key, long version, String path) {
+        dao.addUpdatingEntry(version, new StringKey(key), path);
+        dao.commitEntry(version, new StringKey(key), path);
+    }
+}
@@ -0,0 +1,65 @@
+package org.smartsoftware.smartmap.request.manager.datasource;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.smartsoftware.smartmap.domain.data.StringKey;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class SqliteShardDAOCollectableEntriesTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private BasicDataSource dataSource;
+    private SqliteShardDAO dao;
+
+    @Before
+    public void setUp() {
+        dataSource = new BasicDataSource();
+        dataSource.setDriverClassName("org.sqlite.JDBC");
+        dataSource.setUrl("jdbc:sqlite:" + temporaryFolder.getRoot().getAbsolutePath() + "/collectable_db");
+        dataSource.setMaxActive(1);
+
+        dao = new SqliteShardDAO(temporaryFolder.getRoot().toPath(), dataSource);
+        dao.init();
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        dataSource.close();
+    }
+
+    @Test
+    public void shouldCollectOutdatedAndRemovedEntriesBatchByBatch() {
+        for (int version = 1; version <= 3; version++) {
+            put("kept_key", version, "kept_" + version + ".data");
+            put("removed_key", version, "removed_" + version + ".data");
+        }
+        dao.markEntriesAsRemoved(new StringKey("removed_key"));
+
+        Map<Integer, String> firstBatch = dao.getCollectableEntries(0, dao.getMaxEntryId(), 3);
+        assertThat(firstBatch.size(), is(3));
+
+        int cursor = firstBatch.keySet().stream().mapToInt(Integer::intValue).max().getAsInt();
+        Map<Integer, String> secondBatch = dao.getCollectableEntries(cursor, dao.getMaxEntryId(), 3);
+        assertThat(secondBatch.size(), is(2));
+
+        assertThat(firstBatch.values(), not(hasItem("kept_3.data")));
+        assertThat(secondBatch.values(), not(hasItem("kept_3.data")));
+        assertThat(dao.getCollectableEntries(0, 0, 3).isEmpty(), is(true));
+    }
+
+    private void put(String key, long version, String path) {
+        dao.addUpdatingEntry(version, new StringKey(key), path);
+        dao.commitEntry(version, new StringKey(key), path);
+    }
+}
@@ -0,0 +1,98 @@
+package org.smartsoftware.smartmap.request.manager.datasource;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.smartsoftware.smartmap.domain.data.StringKey;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class SqliteShardDAOGroupCommitTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private BasicDataSource dataSource;
+    private SqliteShardDAO dao;
+
+    @Before
+    public void setUp() {
+        dataSource = new BasicDataSource();
+        dataSource.setDriverClassName("org.sqlite.JDBC");
+        dataSource.setUrl("jdbc:sqlite:" + temporaryFolder.getRoot().getAbsolutePath() + "/group_commit_db");
+        dataSource.setMaxActive(1);
+
+        dao = new SqliteShardDAO(temporaryFolder.getRoot().toPath(), dataSource);
+        dao.setGroupCommitWindowMs(5);
+        dao.setGroupCommitMaxBatchSize(16);
+        dao.init();
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        dao.close();
+        dataSource.close();
+    }
+
+    @Test
+    public void shouldCommitEntriesOfConcurrentWriters() throws Exception {
+        ExecutorService writers = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            String key = "group_key_" + i;
+            results.add(writers.submit(() -> {
+                long version = System.currentTimeMillis();
+                return dao.addUpdatingEntry(version, new StringKey(key), key + ".data")
+                        && dao.commitEntry(version, new StringKey(key), key + ".data");
+            }));
+        }
+
+        for (Future<Boolean> result : results) {
+            assertThat(result.get(10, TimeUnit.SECONDS), is(true));
+        }
+        writers.shutdown();
+
+        assertThat(dao.getAllLatestCommittedKeys(), hasSize(64));
+        assertThat(dao.getCommittedPathFor(new StringKey("group_key_7")).orElse(""), equalTo("group_key_7.data"));
+    }
+
+    @Test
+    public void shouldApplyOtherUpdatesOfBatchWithFailingOne() throws Exception {
+        ExecutorService writers = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            String key = "batch_key_" + i;
+            // a path is required, so the entry of the first key fails the whole transaction
+            String path = i == 0 ? null : key + ".data";
+            results.add(writers.submit(() -> dao.addUpdatingEntry(1, new StringKey(key), path)));
+        }
+
+        assertThat(results.get(0).get(10, TimeUnit.SECONDS), is(false));
+        for (Future<Boolean> result : results.subList(1, results.size())) {
+            assertThat(result.get(10, TimeUnit.SECONDS), is(true));
+        }
+        writers.shutdown();
+    }
+
+    @Test
+    public void shouldFailUpdatesOnceClosed() {
+        // a repeated init keeps the single committer
+        dao.init();
+        long committers = Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().equals("group-committer-" + temporaryFolder.getRoot().getName()))
+                .count();
+        assertThat(committers, is(1L));
+
+        dao.close();
+        assertThat(dao.addUpdatingEntry(1, new StringKey("closed_key"), "closed_key.data"), is(false));
+    }
+}
@@ -0,0 +1,80 @@
+package org.smartsoftware.smartmap.request.manager.datasource;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.smartsoftware.smartmap.domain.data.StringKey;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Optional;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class SqliteShardDAOReadPoolTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private BasicDataSource writeDataSource;
+    private BasicDataSource readDataSource;
+    private SqliteShardDAO dao;
+
+    @Before
+    public void setUp() {
+        String url = "jdbc:sqlite:" + temporaryFolder.getRoot().getAbsolutePath() + "/read_pool_db";
+        writeDataSource = new BasicDataSource();
+        writeDataSource.setDriverClassName("org.sqlite.JDBC");
+        writeDataSource.setUrl(url);
+        writeDataSource.setMaxActive(1);
+
+        readDataSource = new BasicDataSource();
+        readDataSource.setDriverClassName("org.sqlite.JDBC");
+        readDataSource.setUrl(url);
+        readDataSource.setConnectionProperties("open_mode=1");
+        readDataSource.setMaxActive(4);
+
+        dao = new SqliteShardDAO(temporaryFolder.getRoot().toPath(), writeDataSource);
+        dao.setReadDataSource(readDataSource);
+        dao.init();
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        readDataSource.close();
+        writeDataSource.close();
+    }
+
+    @Test
+    public void shouldReadWhileWriteTransactionIsOpen() throws SQLException {
+        long version = 1;
+        dao.addUpdatingEntry(version, new StringKey("key"), "key_1.data");
+        dao.commitEntry(version, new StringKey("key"), "key_1.data");
+
+        try (Connection writer = writeDataSource.getConnection(); Statement statement = writer.createStatement()) {
+            writer.setAutoCommit(false);
+            statement.executeUpdate("UPDATE ENTRIES SET path = 'key_2.data';");
+
+            // the readers see the last committed state rather than wait for the writer
+            assertThat(dao.getCommittedPathFor(new StringKey("key")), equalTo(Optional.of("key_1.data")));
+            assertThat(dao.getAllLatestCommittedKeys(), contains("key"));
+            writer.rollback();
+        }
+
+        boolean isWriteRejected = false;
+        try {
+            new JdbcTemplate(readDataSource).execute("DELETE FROM ENTRIES;");
+        }
+        catch (RuntimeException e) {
+            isWriteRejected = true;
+        }
+        assertThat(isWriteRejected, is(true));
+        assertThat(dao.getCommittedPathFor(new StringKey("key")), equalTo(Optional.of("key_1.data")));
+    }
+}
@@ -0,0 +1,73 @@
+package org.smartsoftware.smartmap.request.manager.datasource;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.smartsoftware.smartmap.domain.data.StringKey;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Optional;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class SqliteShardDAOSchemaMigrationTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private BasicDataSource dataSource;
+    private JdbcTemplate jdbcTemplate;
+
+    @Before
+    public void setUp() {
+        dataSource = new BasicDataSource();
+        dataSource.setDriverClassName("org.sqlite.JDBC");
+        dataSource.setUrl("jdbc:sqlite:" + temporaryFolder.getRoot().getAbsolutePath() + "/migrated_db");
+        dataSource.setMaxActive(1);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        dataSource.close();
+    }
+
+    @Test
+    public void shouldUpgradeRegisterOfPreviousLayoutInPlace() {
+        jdbcTemplate.execute("CREATE TABLE ENTRIES(" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "entry_key TEXT NOT NULL, " +
+                "asAt TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                "path TEXT NOT NULL, " +
+                "status TEXT CHECK(status IN ('UPDATING', 'COMMITTED', 'REMOVED')));");
+        jdbcTemplate.update("INSERT INTO ENTRIES (entry_key, asAt, path, status) VALUES ('old_key', ?, 'old_key_1.data', 'COMMITTED');", new Timestamp(1));
+        jdbcTemplate.update("INSERT INTO ENTRIES (entry_key, asAt, path, status) VALUES ('old_key', ?, 'old_key_2.data', 'COMMITTED');", new Timestamp(2));
+        jdbcTemplate.update("INSERT INTO ENTRIES (entry_key, asAt, path, status) VALUES ('removed_key', ?, 'removed_key.data', 'REMOVED');", new Timestamp(1));
+        jdbcTemplate.update("INSERT INTO ENTRIES (entry_key, asAt, path, status) VALUES ('torn_key', ?, 'torn_key.data', 'UPDATING');", new Timestamp(1));
+
+        SqliteShardDAO dao = new SqliteShardDAO(temporaryFolder.getRoot().toPath(), dataSource);
+        dao.init();
+
+        assertThat(jdbcTemplate.queryForObject("PRAGMA user_version;", Integer.class), greaterThanOrEqualTo(4));
+        assertThat(jdbcTemplate.queryForObject("PRAGMA journal_mode;", String.class), equalToIgnoringCase("wal"));
+        assertThat(jdbcTemplate.queryForList("SELECT status FROM ENTRIES ORDER BY id;", Integer.class), contains(1, 1));
+        // the versions written before were the 'asAt' times of the entries
+        assertThat(jdbcTemplate.queryForList("SELECT version FROM ENTRIES ORDER BY id;", Long.class), contains(1L, 2L));
+        assertThat(dao.getCommittedPathFor(new StringKey("old_key")), equalTo(Optional.of("old_key_2.data")));
+
+        // the ids go on from the previous ones, so the housekeeper cursors stay valid
+        long version = 3;
+        dao.addUpdatingEntry(version, new StringKey("new_key"), "new_key.data");
+        assertThat(dao.getMaxEntryId(), is(5));
+
+        // a database of the latest layout is left as it is
+        new SqliteShardDAO(temporaryFolder.getRoot().toPath(), dataSource).init();
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM ENTRIES WHERE status = 1;", Integer.class), is(2));
+    }
+}
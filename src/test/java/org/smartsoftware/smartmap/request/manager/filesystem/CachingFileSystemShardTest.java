@@ -0,0 +1,111 @@
+package org.smartsoftware.smartmap.request.manager.filesystem;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.smartsoftware.smartmap.domain.data.ByteArrayValue;
+import org.smartsoftware.smartmap.domain.data.StringKey;
+import org.smartsoftware.smartmap.request.manager.metrics.ShardMetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class CachingFileSystemShardTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private CachingFileSystemShard cache;
+
+    @Before
+    public void setUp() {
+        cache = new CachingFileSystemShard(new FileSystemShard(temporaryFolder.getRoot().getAbsolutePath()));
+        cache.setMaxBytes(100);
+        cache.init();
+    }
+
+    @Test
+    public void shouldKeepHotValuesWhileColdOnesAreScanned() {
+        String hot = write("hot_key", 20);
+        cache.getValueFrom(hot);
+        cache.getValueFrom(hot);
+
+        for (int i = 0; i < 10; i++) {
+            cache.getValueFrom(write("cold_key_" + i, 20));
+        }
+
+        long hitsBefore = cache.getHitCount();
+        assertThat(cache.getValueFrom(hot).get().get().length, is(20));
+        assertThat(cache.getHitCount(), is(hitsBefore + 1));
+        assertThat(cache.getEvictionCount(), greaterThan(0L));
+        assertThat(cache.getCachedBytes(), lessThanOrEqualTo(100L));
+    }
+
+    @Test
+    public void shouldExposeCountersThroughShardMetrics() {
+        ShardMetrics metrics = new ShardMetrics("cache_shard");
+        cache.bindMetrics(metrics);
+
+        String location = write("counted_key", 10);
+        cache.getValueFrom(location);
+        cache.getValueFrom(location);
+
+        assertThat(metrics.getCacheMissCount(), is(1L));
+        assertThat(metrics.getCacheHitCount(), is(1L));
+        assertThat(metrics.getCacheEvictionCount(), is(0L));
+    }
+
+    @Test
+    public void shouldNotServeRemovedValues() {
+        String location = write("removed_key", 10);
+        cache.getValueFrom(location);
+        cache.removeFile(location);
+
+        long missesBefore = cache.getMissCount();
+        assertThat(cache.getValueFrom(location).get().isPresent(), is(false));
+        assertThat(cache.getMissCount(), is(missesBefore + 1));
+    }
+
+    @Test
+    public void shouldServeConcurrentHitsWithinItsBudget() throws Exception {
+        List<String> locations = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            locations.add(write("concurrent_key_" + i, 20));
+        }
+
+        ExecutorService readers = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> reads = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                reads.add(readers.submit(() -> {
+                    for (int i = 0; i < 10_000; i++) {
+                        assertThat(cache.getValueFrom(locations.get(i % locations.size())).get().get().length, is(20));
+                    }
+                }));
+            }
+            for (Future<?> read : reads) {
+                read.get();
+            }
+        }
+        finally {
+            readers.shutdown();
+        }
+
+        assertThat(cache.getHitCount(), greaterThan(0L));
+        assertThat(cache.getCachedBytes(), lessThanOrEqualTo(100L));
+    }
+
+    private String write(String key, int size) {
+        ByteArrayValue value = new ByteArrayValue(new byte[size]);
+        String location = cache.newLocationFor(new StringKey(key), value).get();
+        cache.createNewFileWithValue(location, value);
+        return location;
+    }
+}
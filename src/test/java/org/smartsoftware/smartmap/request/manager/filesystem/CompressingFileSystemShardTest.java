@@ -0,0 +1,135 @@
+package org.smartsoftware.smartmap.request.manager.filesystem;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.smartsoftware.smartmap.domain.data.ByteArrayValue;
+import org.smartsoftware.smartmap.domain.data.StringKey;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class CompressingFileSystemShardTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private CompressingFileSystemShard fileSystem;
+
+    @Before
+    public void setUp() {
+        fileSystem = new CompressingFileSystemShard(new FileSystemShard(temporaryFolder.getRoot().getAbsolutePath()));
+        fileSystem.setEnabled(true);
+        fileSystem.setMinValueSize(100);
+        fileSystem.init();
+    }
+
+    @Test
+    public void shouldCompressOnlyValuesThatGetSmaller() throws IOException {
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            json.append("{\"id\":").append(i).append(",\"name\":\"value\"},");
+        }
+        byte[] compressible = json.toString().getBytes();
+        byte[] incompressible = new byte[10_000];
+        new Random(42).nextBytes(incompressible);
+        byte[] small = "small".getBytes();
+
+        String compressedLocation = write("json_key", compressible);
+        String randomLocation = write("random_key", incompressible);
+        String smallLocation = write("small_key", small);
+
+        assertThat(compressedLocation, startsWith("deflate:"));
+        assertThat(randomLocation, not(startsWith("deflate:")));
+        assertThat(smallLocation, not(startsWith("deflate:")));
+        assertThat(Files.size(Paths.get(compressedLocation.substring("deflate:".length()))), lessThan((long) compressible.length));
+
+        assertThat(Arrays.equals(fileSystem.getValueFrom(compressedLocation).get().get(), compressible), is(true));
+        assertThat(Arrays.equals(fileSystem.getValueFrom(randomLocation).get().get(), incompressible), is(true));
+        assertThat(Arrays.equals(fileSystem.getValueFrom(smallLocation).get().get(), small), is(true));
+        assertThat(fileSystem.getCompressedCount(), is(1L));
+    }
+
+    @Test
+    public void shouldStreamCompressedValues() throws IOException {
+        byte[] data = new byte[1024 * 1024];
+        Arrays.fill(data, (byte) 'x');
+        String location = write("stream_key", data);
+
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        ByteBuffer chunk = ByteBuffer.allocate(4096);
+        try (ReadableByteChannel channel = fileSystem.openValueFrom(location).get()) {
+            while (channel.read(chunk) >= 0) {
+                streamed.write(chunk.array(), 0, chunk.position());
+                chunk.clear();
+            }
+        }
+        assertThat(location, startsWith("deflate:"));
+        assertThat(Arrays.equals(streamed.toByteArray(), data), is(true));
+    }
+
+    @Test
+    public void shouldReadValuesOfPreviousCodecs() {
+        byte[] data = new byte[10_000];
+        Arrays.fill(data, (byte) 'x');
+        String location = write("codec_key", data);
+
+        fileSystem.setCodec(new DeflateCodec() {
+            @Override
+            public String getName() {
+                return "deflate9";
+            }
+        });
+        String newLocation = write("codec_key", data);
+        fileSystem.setEnabled(false);
+
+        assertThat(location, startsWith("deflate:"));
+        assertThat(newLocation, startsWith("deflate9:"));
+        assertThat(Arrays.equals(fileSystem.getValueFrom(location).get().get(), data), is(true));
+        assertThat(Arrays.equals(fileSystem.getValueFrom(newLocation).get().get(), data), is(true));
+    }
+
+    @Test
+    public void shouldStoreValuesThatDoNotGetSmaller() throws IOException {
+        byte[] incompressible = new byte[1000];
+        new Random(7).nextBytes(incompressible);
+        String location = write("stored_key", incompressible);
+
+        // a value no larger than a sample is encoded only once written, it is kept as it is then
+        assertThat(location, startsWith("deflate:"));
+        assertThat(Files.size(Paths.get(location.substring("deflate:".length()))), is((long) incompressible.length + Integer.BYTES));
+        assertThat(Arrays.equals(fileSystem.getValueFrom(location).get().get(), incompressible), is(true));
+        try (ReadableByteChannel channel = fileSystem.openValueFrom(location).get()) {
+            ByteBuffer streamed = ByteBuffer.allocate(incompressible.length);
+            while (streamed.hasRemaining() && channel.read(streamed) >= 0) {
+                // the value is read in chunks
+            }
+            assertThat(Arrays.equals(streamed.array(), incompressible), is(true));
+        }
+        assertThat(fileSystem.getCompressedCount(), is(0L));
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectCorruptedLengthHeader() throws IOException {
+        byte[] encoded = new DeflateCodec().encode(ByteBuffer.wrap(new byte[1000]), Integer.MAX_VALUE).get();
+        ByteBuffer.wrap(encoded).putInt(Integer.MAX_VALUE - 1);
+        new DeflateCodec().decode(ByteBuffer.wrap(encoded));
+    }
+
+    private String write(String key, byte[] data) {
+        ByteArrayValue value = new ByteArrayValue(data);
+        String location = fileSystem.newLocationFor(new StringKey(key), value).get();
+        fileSystem.createNewFileWithValue(location, value);
+        return location;
+    }
+}
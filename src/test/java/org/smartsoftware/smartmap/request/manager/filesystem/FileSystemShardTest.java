@@ -0,0 +1,234 @@
+package org.smartsoftware.smartmap.request.manager.filesystem;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.smartsoftware.smartmap.domain.data.ByteArrayValue;
+import org.smartsoftware.smartmap.domain.data.IValue;
+import org.smartsoftware.smartmap.domain.data.StringKey;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class FileSystemShardTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldReconcileOnlyOrphansOfPreviousRun() throws IOException {
+        String shardLocation = temporaryFolder.getRoot().getAbsolutePath();
+        FileSystemShard previousRun = new FileSystemShard(shardLocation);
+        previousRun.init();
+        String committed = write(previousRun, "committed_key");
+        String orphan = write(previousRun, "orphan_key");
+        Path lock = Files.createFile(Paths.get(shardLocation, "shard.lock"));
+        for (String location : Arrays.asList(committed, orphan, lock.toString())) {
+            Files.setLastModifiedTime(Paths.get(location), FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+        }
+
+        FileSystemShard fileSystem = new FileSystemShard(shardLocation);
+        fileSystem.init();
+        String fresh = write(fileSystem, "fresh_key");
+
+        Set<String> referencedLocations = new HashSet<>(Arrays.asList(committed));
+        int removedValues = fileSystem.reconcile(new ILocationRegister() {
+            @Override
+            public boolean isLatest(String key, String location) {
+                return referencedLocations.contains(location);
+            }
+
+            @Override
+            public boolean relocate(String key, String fromLocation, String toLocation) {
+                return false;
+            }
+
+            @Override
+            public boolean isReferenced(String key, String location) {
+                assertThat(location, containsString(key + "$"));
+                return referencedLocations.contains(location);
+            }
+        });
+
+        assertThat(removedValues, is(1));
+        assertThat(Files.exists(Paths.get(orphan)), is(false));
+        assertThat(Files.exists(lock), is(false));
+        assertThat(Files.exists(Paths.get(committed)), is(true));
+        assertThat(Files.exists(Paths.get(fresh)), is(true));
+    }
+
+    @Test
+    public void shouldFailPutOnWriteError() throws IOException {
+        FileSystemShard fileSystem = new FileSystemShard(temporaryFolder.getRoot().getAbsolutePath());
+        fileSystem.setDurability(Durability.ALWAYS);
+        fileSystem.init();
+
+        IValue failingValue = new IValue() {
+            @Override
+            public void writeTo(WritableByteChannel target) throws IOException {
+                target.write(ByteBuffer.wrap("partial".getBytes()));
+                throw new IOException("No space left on device");
+            }
+        };
+        String failedLocation = fileSystem.newLocationFor(new StringKey("failed_key"), failingValue).get();
+        assertThat(fileSystem.createNewFileWithValue(failedLocation, failingValue), is(false));
+        assertThat(Files.exists(Paths.get(failedLocation)), is(false));
+
+        String location = write(fileSystem, "durable_key");
+        assertThat(fileSystem.createNewFileWithValue(location, new ByteArrayValue("other".getBytes())), is(false));
+        assertThat(new String(Files.readAllBytes(Paths.get(location))), is("durable_key"));
+    }
+
+    @Test
+    public void shouldMoveFlatValuesIntoBuckets() throws IOException {
+        String shardLocation = temporaryFolder.getRoot().getAbsolutePath();
+        FileSystemShard flatShard = new FileSystemShard(shardLocation);
+        flatShard.init();
+        String flat = write(flatShard, "flat_key");
+        String removed = write(flatShard, "removed_key");
+
+        FileSystemShard fileSystem = new FileSystemShard(shardLocation);
+        fileSystem.setFanOutLevels(2);
+        fileSystem.init();
+        String bucketed = write(fileSystem, "bucketed_key");
+        assertThat(Paths.get(shardLocation).relativize(Paths.get(bucketed)).getNameCount(), is(3));
+
+        Map<String, String> locations = new HashMap<>();
+        locations.put("flat_key", flat);
+        locations.put("bucketed_key", bucketed);
+        ILocationRegister register = new ILocationRegister() {
+            @Override
+            public boolean isLatest(String key, String location) {
+                return location.equals(locations.get(key));
+            }
+
+            @Override
+            public boolean relocate(String key, String fromLocation, String toLocation) {
+                return locations.replace(key, fromLocation, toLocation);
+            }
+
+            @Override
+            public boolean isReferenced(String key, String location) {
+                return location.equals(locations.get(key));
+            }
+        };
+        fileSystem.compact(register);
+
+        String moved = locations.get("flat_key");
+        assertThat(moved, not(equalTo(flat)));
+        assertThat(Files.exists(Paths.get(flat)), is(false));
+        assertThat(new String(fileSystem.getValueFrom(moved).get().get()), is("flat_key"));
+        // a value the register does not refer to is left to the housekeeper
+        assertThat(Files.exists(Paths.get(removed)), is(true));
+
+        for (String location : Arrays.asList(moved, bucketed, removed)) {
+            Files.setLastModifiedTime(Paths.get(location), FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+        }
+        assertThat(fileSystem.reconcile(register), is(1));
+        assertThat(Files.exists(Paths.get(moved)), is(true));
+        assertThat(Files.exists(Paths.get(bucketed)), is(true));
+    }
+
+    @Test
+    public void shouldKeepValuesBeingMovedIntoBuckets() throws IOException {
+        String shardLocation = temporaryFolder.getRoot().getAbsolutePath();
+        FileSystemShard flatShard = new FileSystemShard(shardLocation);
+        flatShard.init();
+        String linked = write(flatShard, "linked_key");
+        String removed = write(flatShard, "removed_key");
+
+        FileSystemShard fileSystem = new FileSystemShard(shardLocation);
+        fileSystem.setFanOutLevels(2);
+        fileSystem.init();
+
+        // a move interrupted before the register has been relocated leaves the value under both the names
+        String bucketed = bucketedLocationOf(fileSystem, "linked_key", linked);
+        Files.createDirectories(Paths.get(bucketed).getParent());
+        Files.createLink(Paths.get(bucketed), Paths.get(linked));
+        Files.setLastModifiedTime(Paths.get(linked), FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+
+        Map<String, String> locations = new HashMap<>();
+        locations.put("linked_key", linked);
+        locations.put("removed_key", removed);
+        ILocationRegister register = new ILocationRegister() {
+            @Override
+            public boolean isLatest(String key, String location) {
+                return location.equals(locations.get(key));
+            }
+
+            @Override
+            public boolean relocate(String key, String fromLocation, String toLocation) {
+                return locations.replace(key, fromLocation, toLocation);
+            }
+
+            @Override
+            public boolean isReferenced(String key, String location) {
+                return location.equals(locations.get(key));
+            }
+        };
+        assertThat(fileSystem.reconcile(register), is(0));
+        assertThat(Files.exists(Paths.get(bucketed)), is(true));
+
+        // a remove which has read the flat location before the value has been moved releases the moved one
+        fileSystem.compact(register);
+        String moved = locations.remove("removed_key");
+        assertThat(moved, not(equalTo(removed)));
+        assertThat(fileSystem.removeFile(removed), is(true));
+        assertThat(Files.exists(Paths.get(moved)), is(false));
+
+        // the link of the interrupted move is dropped by the first pass and made again by the next one
+        fileSystem.compact(register);
+        assertThat(locations.get("linked_key"), is(bucketed));
+        assertThat(new String(fileSystem.getValueFrom(bucketed).get().get()), is("linked_key"));
+        assertThat(Files.exists(Paths.get(linked)), is(false));
+    }
+
+    @Test
+    public void shouldBoundMappingsByTheirBytes() throws Exception {
+        FileSystemShard fileSystem = new FileSystemShard(temporaryFolder.getRoot().getAbsolutePath());
+        fileSystem.setMemoryMappedReads(true);
+        fileSystem.setMemoryMappingThreshold(0);
+        fileSystem.setMaxMappedBytes(2500);
+        fileSystem.init();
+
+        for (int i = 0; i < 10; i++) {
+            byte[] data = new byte[1000];
+            Arrays.fill(data, (byte) i);
+            ByteArrayValue value = new ByteArrayValue(data);
+            String location = fileSystem.newLocationFor(new StringKey("mapped_key_" + i), value).get();
+            fileSystem.createNewFileWithValue(location, value);
+
+            assertThat(Arrays.equals(fileSystem.getValueFrom(location).get().get(), data), is(true));
+        }
+
+        Field mappedBytes = FileSystemShard.class.getDeclaredField("mappedBytes");
+        mappedBytes.setAccessible(true);
+        assertThat(mappedBytes.getLong(fileSystem), is(2000L));
+    }
+
+    private static String bucketedLocationOf(FileSystemShard fileSystem, String key, String flatLocation) {
+        String bucketed = fileSystem.newLocationFor(new StringKey(key), new ByteArrayValue()).get();
+        return bucketed.substring(0, bucketed.lastIndexOf('/') + 1) + Paths.get(flatLocation).getFileName();
+    }
+
+    private static String write(FileSystemShard fileSystem, String key) {
+        ByteArrayValue value = new ByteArrayValue(key.getBytes());
+        String location = fileSystem.newLocationFor(new StringKey(key), value).get();
+        fileSystem.createNewFileWithValue(location, value);
+        return location;
+    }
+}
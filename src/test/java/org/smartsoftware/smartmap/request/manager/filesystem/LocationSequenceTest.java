@@ -0,0 +1,29 @@
+package org.smartsoftware.smartmap.request.manager.filesystem;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class LocationSequenceTest {
+
+    @Test
+    public void shouldHandOutOrderedNamesNotReusedByNextRun() {
+        LocationSequence sequence = new LocationSequence();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            names.add(sequence.appendNext(new StringBuilder()).toString());
+        }
+        // a later run over the same directory, even within the same millisecond
+        String nextRunName = new LocationSequence().appendNext(new StringBuilder()).toString();
+
+        for (int i = 1; i < names.size(); i++) {
+            assertThat(names.get(i), greaterThan(names.get(i - 1)));
+        }
+        assertThat(names.get(0).length(), is(LocationSequence.nameLength()));
+        assertThat(nextRunName, greaterThan(names.get(names.size() - 1)));
+    }
+}
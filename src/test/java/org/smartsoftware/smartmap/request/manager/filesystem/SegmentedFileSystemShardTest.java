@@ -0,0 +1,146 @@
+package org.smartsoftware.smartmap.request.manager.filesystem;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.smartsoftware.smartmap.domain.data.ByteArrayValue;
+import org.smartsoftware.smartmap.domain.data.IValue;
+import org.smartsoftware.smartmap.domain.data.StringKey;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class SegmentedFileSystemShardTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private SegmentedFileSystemShard fileSystem;
+
+    @Before
+    public void setUp() {
+        fileSystem = new SegmentedFileSystemShard(temporaryFolder.getRoot().getAbsolutePath());
+        fileSystem.setMaxSegmentSize(64);
+        fileSystem.setCompactionGracePeriodMs(0);
+        fileSystem.init();
+    }
+
+    @Test
+    public void shouldReadWrittenValues() {
+        String location1 = put("key_1", "value_1");
+        String location2 = put("key_2", "value_2");
+
+        assertThat(read(location1), equalTo("value_1"));
+        assertThat(read(location2), equalTo("value_2"));
+    }
+
+    @Test
+    public void shouldRollSegmentsOverWhenFull() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            put("roll_key_" + i, "roll_value_" + i);
+        }
+
+        assertThat(countSegmentFiles(), greaterThan(1L));
+    }
+
+    @Test
+    public void shouldMoveLatestRecordsOutOfDeadSegments() throws IOException {
+        Map<String, String> latestLocations = new HashMap<>();
+        for (int i = 0; i < 10; i++) {
+            String key = "compact_key_" + (i % 2);
+            String location = put(key, "compact_value_" + i);
+            String previousLocation = latestLocations.put(key, location);
+            if (previousLocation != null) {
+                fileSystem.removeFile(previousLocation);
+            }
+        }
+
+        ILocationRegister register = new ILocationRegister() {
+            @Override
+            public boolean isLatest(String key, String location) {
+                return location.equals(latestLocations.get(key));
+            }
+
+            @Override
+            public boolean relocate(String key, String fromLocation, String toLocation) {
+                return latestLocations.replace(key, fromLocation, toLocation);
+            }
+        };
+        long segmentsBefore = countSegmentFiles();
+        fileSystem.compact(register);
+        fileSystem.compact(register);
+
+        assertThat(countSegmentFiles(), lessThan(segmentsBefore));
+        assertThat(read(latestLocations.get("compact_key_0")), equalTo("compact_value_8"));
+        assertThat(read(latestLocations.get("compact_key_1")), equalTo("compact_value_9"));
+    }
+
+    @Test
+    public void shouldCompactSegmentsOfPreviousRunOnceReconciled() throws IOException {
+        Map<String, String> latestLocations = new HashMap<>();
+        for (int i = 0; i < 10; i++) {
+            latestLocations.put("restart_key_" + (i % 2), put("restart_key_" + (i % 2), "restart_value_" + i));
+        }
+        // a record reserved and never committed, the register has dropped its entry on the restart
+        fileSystem.newLocationFor(new StringKey("restart_key_0"), new ByteArrayValue("uncommitted".getBytes()));
+
+        fileSystem = new SegmentedFileSystemShard(temporaryFolder.getRoot().getAbsolutePath());
+        fileSystem.setMaxSegmentSize(64);
+        fileSystem.setCompactionGracePeriodMs(0);
+        fileSystem.init();
+
+        ILocationRegister register = new ILocationRegister() {
+            @Override
+            public boolean isLatest(String key, String location) {
+                return location.equals(latestLocations.get(key));
+            }
+
+            @Override
+            public boolean relocate(String key, String fromLocation, String toLocation) {
+                return latestLocations.replace(key, fromLocation, toLocation);
+            }
+
+            @Override
+            public boolean isReferenced(String key, String location) {
+                return isLatest(key, location);
+            }
+        };
+        Path firstSegment = temporaryFolder.getRoot().toPath().resolve(String.format("%020d", 1) + ".segment");
+        fileSystem.compact(register);
+        fileSystem.compact(register);
+        assertThat(Files.exists(firstSegment), is(true));
+
+        fileSystem.reconcile(register);
+        fileSystem.compact(register);
+        fileSystem.compact(register);
+
+        assertThat(Files.exists(firstSegment), is(false));
+        assertThat(read(latestLocations.get("restart_key_0")), equalTo("restart_value_8"));
+        assertThat(read(latestLocations.get("restart_key_1")), equalTo("restart_value_9"));
+    }
+
+    private String put(String key, String value) {
+        IValue data = new ByteArrayValue(value.getBytes());
+        String location = fileSystem.newLocationFor(new StringKey(key), data).get();
+        assertThat(fileSystem.createNewFileWithValue(location, data), is(true));
+        return location;
+    }
+
+    private String read(String location) {
+        return new String(fileSystem.getValueFrom(location).get().orElse("Nan".getBytes()));
+    }
+
+    private long countSegmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(temporaryFolder.getRoot().toPath())) {
+            return files.filter(path -> path.toString().endsWith(".segment")).count();
+        }
+    }
+}
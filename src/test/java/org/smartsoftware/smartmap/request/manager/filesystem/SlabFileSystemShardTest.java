@@ -0,0 +1,91 @@
+package org.smartsoftware.smartmap.request.manager.filesystem;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.smartsoftware.smartmap.domain.data.ByteArrayValue;
+import org.smartsoftware.smartmap.domain.data.StringKey;
+import org.smartsoftware.smartmap.request.manager.metrics.ShardMetrics;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class SlabFileSystemShardTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private SlabFileSystemShard slabs;
+
+    @Before
+    public void setUp() {
+        slabs = new SlabFileSystemShard(new FileSystemShard(temporaryFolder.getRoot().getAbsolutePath()));
+        slabs.setMaxBytes(2 * 4096);
+        slabs.setSlabSize(4096);
+        slabs.setMaxValueSize(1024);
+        slabs.init();
+    }
+
+    @Test
+    public void shouldServeHotValuesWithoutDiskWithinBudget() throws IOException {
+        String hot = write("hot_key", 100, (byte) 7);
+        slabs.getValueFrom(hot);
+        // the file system is the durable copy only, a hit does not read it
+        Files.delete(Paths.get(hot));
+
+        for (int i = 0; i < 200; i++) {
+            String cold = write("cold_key_" + i, 100, (byte) i);
+            assertThat(slabs.getValueFrom(cold).get().get()[99], is((byte) i));
+            slabs.getValueFrom(hot);
+        }
+
+        byte[] expected = new byte[100];
+        Arrays.fill(expected, (byte) 7);
+        assertThat(Arrays.equals(slabs.getValueFrom(hot).get().get(), expected), is(true));
+        assertThat(slabs.getEvictionCount(), greaterThan(0L));
+        assertThat(slabs.getAllocatedBytes(), lessThanOrEqualTo(2 * 4096L));
+    }
+
+    @Test
+    public void shouldNotServeRemovedOrLargeValues() {
+        String removed = write("removed_key", 10, (byte) 1);
+        slabs.getValueFrom(removed);
+        slabs.removeFile(removed);
+        assertThat(slabs.getValueFrom(removed).get().isPresent(), is(false));
+
+        String large = write("large_key", 2048, (byte) 2);
+        slabs.getValueFrom(large);
+        long missesBefore = slabs.getMissCount();
+        assertThat(slabs.getValueFrom(large).get().get().length, is(2048));
+        assertThat(slabs.getMissCount(), is(missesBefore + 1));
+    }
+
+    @Test
+    public void shouldExposeCountersThroughShardMetrics() {
+        ShardMetrics metrics = new ShardMetrics("slab_shard");
+        slabs.bindMetrics(metrics);
+
+        String location = write("counted_key", 100, (byte) 1);
+        slabs.getValueFrom(location);
+        slabs.getValueFrom(location);
+
+        assertThat(metrics.getSlabMissCount(), is(1L));
+        assertThat(metrics.getSlabHitCount(), is(1L));
+        assertThat(metrics.getSlabEvictionCount(), is(0L));
+    }
+
+    private String write(String key, int size, byte content) {
+        byte[] data = new byte[size];
+        Arrays.fill(data, content);
+        ByteArrayValue value = new ByteArrayValue(data);
+        String location = slabs.newLocationFor(new StringKey(key), value).get();
+        slabs.createNewFileWithValue(location, value);
+        return location;
+    }
+}
@@ -0,0 +1,35 @@
+package org.smartsoftware.smartmap.request.manager.metrics;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void shouldReportPercentilesWithinTheBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long nanos = 1; nanos <= 1_000_000; nanos++) {
+            histogram.record(nanos);
+        }
+
+        LatencySnapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount(), is(1_000_000L));
+        assertThat(snapshot.getMaxNanos(), is(1_000_000L));
+        assertThat((double) snapshot.getP50Nanos(), closeTo(500_000, 500_000 * 0.125));
+        assertThat((double) snapshot.getP99Nanos(), closeTo(990_000, 990_000 * 0.125));
+        assertThat(snapshot.getP999Nanos(), greaterThanOrEqualTo(snapshot.getP99Nanos()));
+    }
+
+    @Test
+    public void shouldCoverEveryValueWithItsBucket() {
+        for (long nanos : new long[] {0, 7, 8, 15, 16, 17, 1_000_003, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucketOf(nanos);
+            assertThat(LatencyHistogram.upperBoundOf(bucket), greaterThanOrEqualTo(nanos));
+            if (bucket > 0) {
+                assertThat(LatencyHistogram.upperBoundOf(bucket - 1), lessThan(nanos));
+            }
+        }
+    }
+}